@@ -0,0 +1,50 @@
+package com.aliyun.oss;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * deleteObjects 按 batch 上限分批、多批同时发出
+ */
+@State(Scope.Benchmark)
+public class QiniuDeleteObjectsBenchmark {
+    private static final String BUCKET = "bench";
+
+    @Param({"100", "5000"})
+    public int keyCount;
+
+    private QiniuKodoStandIn kodo;
+    private QiniuOSSClient client;
+    private List<String> keys;
+
+    @Setup
+    public void setUp() throws IOException {
+        kodo = new QiniuKodoStandIn();
+        kodo.createBucket(BUCKET, false);
+        kodo.setVerify(false);
+        client = kodo.newClient(BUCKET);
+        keys = new ArrayList<String>(keyCount);
+        for (int i = 0; i < keyCount; i++) {
+            keys.add("dir/" + i + ".jpg");
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.shutdown();
+        kodo.close();
+    }
+
+    @Benchmark
+    public QiniuDeleteObjectsResult deleteObjects() {
+        return client.deleteObjects(BUCKET, keys, true);
+    }
+}
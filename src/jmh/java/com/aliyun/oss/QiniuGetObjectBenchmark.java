@@ -0,0 +1,55 @@
+package com.aliyun.oss;
+
+import com.aliyun.oss.model.GetObjectRequest;
+import com.aliyun.oss.model.ObjectMetadata;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * getObject 下载到文件，每次覆盖同一个临时文件
+ */
+@State(Scope.Thread)
+public class QiniuGetObjectBenchmark {
+    private static final String BUCKET = "bench";
+
+    @Param({"65536", "4194304"})
+    public int size;
+
+    private QiniuKodoStandIn kodo;
+    private QiniuOSSClient client;
+    private GetObjectRequest request;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        kodo = new QiniuKodoStandIn();
+        kodo.createBucket(BUCKET, false);
+        kodo.setVerify(false);
+        byte[] content = new byte[size];
+        Arrays.fill(content, (byte) 'a');
+        kodo.setCannedObject(content);
+        client = kodo.newClient(BUCKET);
+        request = new GetObjectRequest(BUCKET, "dir/a.bin");
+        file = File.createTempFile("qiniu-jmh", ".bin");
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.shutdown();
+        kodo.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public ObjectMetadata getObjectToFile() {
+        return client.getObject(request, file);
+    }
+}
@@ -0,0 +1,69 @@
+package com.aliyun.oss;
+
+import com.aliyun.oss.model.ListObjectsRequest;
+import com.aliyun.oss.model.ObjectListing;
+import com.qiniu.storage.model.FileListing;
+import com.qiniu.util.Json;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+
+/**
+ * listObjects 一页：含请求和 json 解析的完整调用，以及只把 FileListing 转成 ObjectListing 的部分
+ */
+@State(Scope.Benchmark)
+public class QiniuListObjectsBenchmark {
+    private static final String BUCKET = "bench";
+
+    @Param({"100", "1000"})
+    public int pageSize;
+
+    private QiniuKodoStandIn kodo;
+    private QiniuOSSClient client;
+    private ListObjectsRequest request;
+    private FileListing page;
+
+    @Setup
+    public void setUp() throws IOException {
+        kodo = new QiniuKodoStandIn();
+        kodo.createBucket(BUCKET, false);
+        kodo.setVerify(false);
+        String json = listingJson(pageSize);
+        kodo.setCannedListing(json.getBytes("UTF-8"));
+        client = kodo.newClient(BUCKET);
+        request = new ListObjectsRequest(BUCKET, "dir", null, null, pageSize);
+        page = Json.decode(json, FileListing.class);
+    }
+
+    private static String listingJson(int size) {
+        StringBuilder sb = new StringBuilder("{\"marker\":\"next\",\"commonPrefixes\":[\"dir/\"],\"items\":[");
+        for (int i = 0; i < size; i++) {
+            sb.append(i == 0 ? "" : ",").append("{\"key\":\"dir-").append(i)
+                    .append(".jpg\",\"hash\":\"FhBench").append(i)
+                    .append("\",\"fsize\":").append(1024 + i)
+                    .append(",\"mimeType\":\"image/jpeg\",\"putTime\":15000000000000000,\"type\":0}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.shutdown();
+        kodo.close();
+    }
+
+    @Benchmark
+    public ObjectListing listObjects() {
+        return client.listObjects(request);
+    }
+
+    @Benchmark
+    public ObjectListing toObjectListing() {
+        return QiniuOSSClient.toObjectListing(request, pageSize, page);
+    }
+}
@@ -0,0 +1,39 @@
+package com.aliyun.oss;
+
+import com.qiniu.common.Zone;
+import com.qiniu.storage.Configuration;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.net.URL;
+import java.util.Date;
+
+/**
+ * generatePresignedUrl ：同一个 key 反复签名（命中签名缓存），和每次不同的 key （每次都算 HMAC ）
+ */
+@State(Scope.Thread)
+public class QiniuPresignedUrlBenchmark {
+    private static final String BUCKET = "bench";
+
+    private QiniuOSSClient client;
+    private Date expiration;
+    private long seq;
+
+    @Setup
+    public void setUp() {
+        client = new QiniuOSSClient("ak", "sk", "http://bench.example.com", new Configuration(Zone.zone0()));
+        expiration = new Date(System.currentTimeMillis() + 3600 * 1000L);
+    }
+
+    @Benchmark
+    public URL sameKey() {
+        return client.generatePresignedUrl(BUCKET, "dir/a.jpg", expiration);
+    }
+
+    @Benchmark
+    public URL distinctKeys() {
+        return client.generatePresignedUrl(BUCKET, "dir/" + (seq++) + ".jpg", expiration);
+    }
+}
@@ -0,0 +1,48 @@
+package com.aliyun.oss;
+
+import com.aliyun.oss.model.PutObjectResult;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * 小文件 putObject(byte[]) ，表单上传，上传凭证走缓存
+ */
+@State(Scope.Benchmark)
+public class QiniuPutObjectBenchmark {
+    private static final String BUCKET = "bench";
+
+    @Param({"1024", "65536"})
+    public int size;
+
+    private QiniuKodoStandIn kodo;
+    private QiniuOSSClient client;
+    private byte[] content;
+
+    @Setup
+    public void setUp() throws IOException {
+        kodo = new QiniuKodoStandIn();
+        kodo.createBucket(BUCKET, false);
+        kodo.setVerify(false);
+        client = kodo.newClient(BUCKET);
+        content = new byte[size];
+        Arrays.fill(content, (byte) 'a');
+    }
+
+    @TearDown
+    public void tearDown() {
+        client.shutdown();
+        kodo.close();
+    }
+
+    @Benchmark
+    public PutObjectResult putObject() {
+        return client.putObject(BUCKET, "dir/a.bin", content);
+    }
+}
@@ -0,0 +1,136 @@
+package com.aliyun.oss;
+
+import com.qiniu.storage.Configuration;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 对同一个地址并发小文件 GET ，比较 HTTP/1.1 连接池和 HTTP/2 多路复用。每次调用同时发出 concurrency 个请求，
+ * 全部返回后结束，单个请求的耗时为结果除以 concurrency 。
+ * url 为空时对本地替身测试，替身只支持 http 上的 HTTP/1.1 ，只能跑 http1 ；
+ * http2 必须用 -p url=... 传支持 HTTP/2 的 https 下载地址（例如私有空间用 generatePresignedUrl 生成的地址），
+ * setUp 时先请求一次，协商出的不是 HTTP/2 就失败，不会把 HTTP/1.1 的结果记成 http2 。
+ */
+@State(Scope.Benchmark)
+public class QiniuTransportBenchmark {
+    private static final String BUCKET = "bench";
+
+    @Param({"http1", "http2"})
+    public String protocol;
+
+    @Param({"1", "8", "32"})
+    public int concurrency;
+
+    @Param({""})
+    public String url;
+
+    private QiniuKodoStandIn kodo;
+    private QiniuTransport transport;
+    private OkHttpClient client;
+    private ExecutorService pool;
+    private Callable<Integer> get;
+
+    @Setup
+    public void setUp() throws IOException {
+        if (!"http1".equals(protocol) && !"http2".equals(protocol)) {
+            throw new IllegalArgumentException("unknown protocol: " + protocol);
+        }
+        String target = url;
+        if (target.length() == 0 && "http2".equals(protocol)) {
+            throw new IllegalStateException("http2 needs an https url that supports HTTP/2, pass -p url=...");
+        }
+        if (target.length() == 0) {
+            kodo = new QiniuKodoStandIn();
+            kodo.createBucket(BUCKET, false);
+            kodo.setVerify(false);
+            byte[] content = new byte[1024];
+            Arrays.fill(content, (byte) 'a');
+            kodo.setCannedObject(content);
+            target = kodo.getDownloadHost(BUCKET) + "/small.txt";
+        }
+        Configuration config = new Configuration();
+        // 不限制在途请求数，并发只由测试线程数决定
+        config.dispatcherMaxRequests = Math.max(config.dispatcherMaxRequests, concurrency);
+        config.dispatcherMaxRequestsPerHost = Math.max(config.dispatcherMaxRequestsPerHost, concurrency);
+        config.connectionPoolMaxIdleCount = Math.max(config.connectionPoolMaxIdleCount, concurrency);
+        transport = new QiniuTransport(config);
+        client = "http2".equals(protocol) ? transport.newHttp2Client(concurrency) : transport.newHttp1Client();
+        pool = Executors.newFixedThreadPool(concurrency);
+        final Request request = new Request.Builder().url(target).build();
+        // setUp 失败时 JMH 不调用 tearDown
+        try {
+            checkProtocol(request);
+        } catch (IOException e) {
+            tearDown();
+            throw e;
+        } catch (RuntimeException e) {
+            tearDown();
+            throw e;
+        }
+        get = new Callable<Integer>() {
+            @Override
+            public Integer call() throws IOException {
+                Response res = client.newCall(request).execute();
+                try {
+                    return res.body().bytes().length;
+                } finally {
+                    res.close();
+                }
+            }
+        };
+    }
+
+    private void checkProtocol(Request request) throws IOException {
+        Response res = client.newCall(request).execute();
+        try {
+            if (!res.isSuccessful()) {
+                throw new IllegalStateException("GET " + request.url() + " returned " + res.code());
+            }
+            if ("http2".equals(protocol) && res.protocol() != Protocol.HTTP_2) {
+                throw new IllegalStateException(request.url() + " negotiated " + res.protocol() + ", not HTTP/2");
+            }
+        } finally {
+            res.close();
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        pool.shutdownNow();
+        client.dispatcher().executorService().shutdown();
+        transport.shutdown();
+        if (kodo != null) {
+            kodo.close();
+        }
+    }
+
+    @Benchmark
+    public long concurrentGets() throws Exception {
+        List<Future<Integer>> fs = new ArrayList<Future<Integer>>(concurrency);
+        for (int i = 0; i < concurrency; i++) {
+            fs.add(pool.submit(get));
+        }
+        long bytes = 0;
+        for (Future<Integer> f : fs) {
+            bytes += f.get();
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,133 @@
+package com.aliyun.oss;
+
+import com.qiniu.common.QiniuException;
+import com.qiniu.http.Response;
+import com.qiniu.storage.BucketManager;
+import com.qiniu.storage.model.BatchOpData;
+import com.qiniu.storage.model.BatchStatus;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * 七牛 batch 接口单次最多 1000 个操作。
+ * 按 batchSize 把 key 切成多批， taskNum 个线程同时发送，结果按 key 的原始顺序返回。
+ */
+final class QiniuBatchRunner {
+    static final int MAX_BATCH_SIZE = 1000;
+
+    /** 往一批操作里加入同一种操作 */
+    interface OpAdder {
+        void add(BucketManager.BatchOperations ops, String bucket, String[] keys);
+    }
+
+    static final OpAdder DELETE = new OpAdder() {
+        @Override
+        public void add(BucketManager.BatchOperations ops, String bucket, String[] keys) {
+            ops.addDeleteOp(bucket, keys);
+        }
+    };
+
+    static final OpAdder STAT = new OpAdder() {
+        @Override
+        public void add(BucketManager.BatchOperations ops, String bucket, String[] keys) {
+            ops.addStatOps(bucket, keys);
+        }
+    };
+
+    private QiniuBatchRunner() {
+    }
+
+    /**
+     * 返回的数组与 keys 一一对应。某一批整体失败（网络错误、鉴权失败等）时，这批 key 的状态码为异常的状态码
+     * （网络错误为 -1 ）， error 为异常信息；所有批都失败时抛出第一个异常。
+     */
+    static BatchStatus[] run(final BucketManager bucketManager, final String bucket, List<String> keys,
+                             final OpAdder adder, int batchSize, int taskNum) throws QiniuException {
+        final int size = batchSize <= 0 || batchSize > MAX_BATCH_SIZE ? MAX_BATCH_SIZE : batchSize;
+        final String[] all = keys.toArray(new String[keys.size()]);
+        final BatchStatus[] ret = new BatchStatus[all.length];
+        int batchCount = (all.length + size - 1) / size;
+        if (batchCount <= 1) {
+            if (all.length > 0) {
+                runBatch(bucketManager, bucket, all, 0, all.length, adder, ret);
+            }
+            return ret;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(taskNum, batchCount)));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(batchCount);
+        try {
+            for (int i = 0; i < batchCount; i++) {
+                final int from = i * size;
+                final int to = Math.min(all.length, from + size);
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        runBatch(bucketManager, bucket, all, from, to, adder, ret);
+                        return null;
+                    }
+                }));
+            }
+            pool.shutdown();
+            QiniuException firstError = null;
+            int completed = 0;
+            for (int i = 0; i < batchCount; i++) {
+                try {
+                    futures.get(i).get();
+                    completed++;
+                } catch (ExecutionException e) {
+                    // 一批失败不影响其它批，这批的 key 都记为失败
+                    QiniuException qe = QiniuBlockUploader.toQiniuException(e.getCause());
+                    if (firstError == null) {
+                        firstError = qe;
+                    }
+                    fail(ret, i * size, Math.min(all.length, (i + 1) * size), qe);
+                }
+            }
+            if (completed == 0) {
+                throw firstError;
+            }
+            return ret;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QiniuException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static void fail(BatchStatus[] ret, int from, int to, QiniuException e) {
+        for (int i = from; i < to; i++) {
+            BatchStatus st = new BatchStatus();
+            st.code = e.code();
+            st.data = new BatchOpData();
+            st.data.error = e.getMessage();
+            ret[i] = st;
+        }
+    }
+
+    private static void runBatch(BucketManager bucketManager, String bucket, String[] all, int from, int to,
+                                 OpAdder adder, BatchStatus[] ret) throws QiniuException {
+        String[] keys = new String[to - from];
+        System.arraycopy(all, from, keys, 0, keys.length);
+        BucketManager.BatchOperations ops = new BucketManager.BatchOperations();
+        adder.add(ops, bucket, keys);
+        // 部分失败时状态码为 298 ，不会抛异常，需要逐个看结果
+        Response res = bucketManager.batch(ops);
+        try {
+            BatchStatus[] status = res.jsonToObject(BatchStatus[].class);
+            if (status == null || status.length != keys.length) {
+                throw new QiniuException(res);
+            }
+            System.arraycopy(status, 0, ret, from, status.length);
+        } finally {
+            res.close();
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package com.aliyun.oss;
+
+import com.qiniu.common.Constants;
+import com.qiniu.common.QiniuException;
+import com.qiniu.http.Client;
+import com.qiniu.storage.Configuration;
+import com.qiniu.util.Crc32;
+import com.qiniu.util.Json;
+import com.qiniu.util.StringMap;
+import com.qiniu.util.StringUtils;
+import com.qiniu.util.UrlSafeBase64;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.aliyun.oss.common.utils.LogUtils.logException;
+
+/**
+ * 七牛分块上传： mkblk / bput 上传每个 4M 的块，最后 mkfile 合成文件。
+ * 块之间互不依赖，可以并发上传。
+ * https://developer.qiniu.com/kodo/api/1286/mkfile
+ */
+final class QiniuBlockUploader {
+    static final int BLOCK_SIZE = Constants.BLOCK_SIZE;
+    // 七牛各端 sdk 默认的片大小，再小 bput 次数太多，得不偿失
+    static final int MIN_CHUNK_SIZE = 256 * 1024;
+
+    private static final MediaType OCTET_STREAM = MediaType.parse(Client.DefaultMime);
+    private static final MediaType TEXT_PLAIN = MediaType.parse("text/plain");
+
+    private final OkHttpClient client;
+    private final Configuration config;
+    private final String token;
+    private final int chunkSize;
+    private final QiniuUpHostSelector selector;
+
+    /**
+     * @param partSize 片大小，即 mkblk / bput 每次请求的数据量，限制在 [256K, 4M] 之间
+     */
+    QiniuBlockUploader(OkHttpClient client, Configuration config, String token, long partSize) {
+        this(client, config, token, partSize, null);
+    }
+
+    /**
+     * @param selector 上传域名选择器， null 时按 config 先用主上传域名，失败后换备用域名
+     */
+    QiniuBlockUploader(OkHttpClient client, Configuration config, String token, long partSize,
+                       QiniuUpHostSelector selector) {
+        this.client = client;
+        this.config = config;
+        this.token = token;
+        this.chunkSize = chunkSize(partSize);
+        this.selector = selector;
+    }
+
+    static int chunkSize(long partSize) {
+        if (partSize <= 0 || partSize >= BLOCK_SIZE) {
+            return BLOCK_SIZE;
+        }
+        return (int) Math.max(partSize, MIN_CHUNK_SIZE);
+    }
+
+    static int blockCount(long size) {
+        return (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+    }
+
+    private static int blockLength(long size, int idx) {
+        return (int) Math.min(BLOCK_SIZE, size - (long) idx * BLOCK_SIZE);
+    }
+
+    /**
+     * 使用 taskNum 个线程并发上传文件的各个块。
+     * checkpoint 不为 null 时，记录已上传块的 ctx ，中断后再次调用只上传剩余的块。
+     */
+    com.qiniu.http.Response uploadFile(File file, String key, String mime, int taskNum, File checkpoint)
+            throws QiniuException {
+        final long size = file.length();
+        final int blockCount = blockCount(size);
+        final Checkpoint cp = Checkpoint.load(checkpoint, file, key, blockCount);
+
+        List<Integer> pending = new ArrayList<Integer>();
+        long now = System.currentTimeMillis() / 1000;
+        for (int i = 0; i < blockCount; i++) {
+            // ctx 有有效期，过期的块需要重新上传
+            if (cp.contexts[i] == null || cp.expiredAt[i] <= now) {
+                pending.add(i);
+            }
+        }
+
+        if (pending.size() > 0) {
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "r");
+                uploadBlocks(raf.getChannel(), size, pending, Math.max(1, taskNum), cp);
+            } catch (IOException e) {
+                // QiniuException 也是 IOException ，不能再包一层，否则丢失状态码
+                throw toQiniuException(e);
+            } finally {
+                if (raf != null) {
+                    try {
+                        raf.close();
+                    } catch (IOException e) {
+                        logException("Cannot close " + file + ": ", e);
+                    }
+                }
+            }
+        }
+
+        com.qiniu.http.Response res = makeFile(size, key, mime, cp.contexts);
+        cp.delete();
+        return res;
+    }
+
+    private void uploadBlocks(final FileChannel channel, final long size, List<Integer> pending,
+                              int taskNum, final Checkpoint cp) throws QiniuException {
+        int threads = Math.min(taskNum, pending.size());
+        // 每个线程一个块缓冲区，循环使用，内存占用为 threads * 4M
+        final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<byte[]>(threads);
+        for (int i = 0; i < threads; i++) {
+            buffers.add(new byte[(int) Math.min(BLOCK_SIZE, size)]);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(pending.size());
+        try {
+            for (final Integer idx : pending) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        byte[] buffer = buffers.take();
+                        try {
+                            int len = blockLength(size, idx);
+                            readFully(channel, buffer, len, (long) idx * BLOCK_SIZE);
+                            StringMap ret = uploadBlock(buffer, len);
+                            cp.done(idx, (String) ret.get("ctx"), ((Number) ret.get("expired_at")).longValue());
+                        } finally {
+                            buffers.put(buffer);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            pool.shutdown();
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            throw toQiniuException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QiniuException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * 流式上传：按块读取输入流，每读满一个块就提交上传，不需要预先知道长度。
+     * 缓冲区循环使用，最多 taskNum + 1 个（ taskNum 个在上传，一个在读取），内存占用与文件大小无关。
+     * 整个流不足一个块时，直接表单上传。
+     */
+    com.qiniu.http.Response uploadStream(InputStream in, String key, String mime, int taskNum)
+            throws QiniuException {
+        int threads = Math.max(1, taskNum);
+        final BlockingQueue<byte[]> buffers = new ArrayBlockingQueue<byte[]>(threads + 1);
+        int allocated = 0;
+        final List<String> contexts = new ArrayList<String>();
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long size = 0;
+        try {
+            int checked = 0;
+            while (true) {
+                byte[] buffer = buffers.poll();
+                if (buffer == null) {
+                    if (allocated < threads + 1) {
+                        buffer = new byte[BLOCK_SIZE];
+                        allocated++;
+                    } else {
+                        buffer = buffers.take();
+                    }
+                }
+                final int len = readFully(in, buffer);
+                if (size == 0 && len < BLOCK_SIZE) {
+                    return formUpload(buffer, len, key, mime);
+                }
+                if (len == 0) {
+                    break;
+                }
+                final int idx;
+                synchronized (contexts) {
+                    idx = contexts.size();
+                    contexts.add(null);
+                }
+                final byte[] data = buffer;
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        try {
+                            String ctx = (String) uploadBlock(data, len).get("ctx");
+                            synchronized (contexts) {
+                                contexts.set(idx, ctx);
+                            }
+                        } finally {
+                            buffers.put(data);
+                        }
+                        return null;
+                    }
+                }));
+                size += len;
+                // 已有块上传失败就不再继续读
+                while (checked < futures.size() && futures.get(checked).isDone()) {
+                    futures.get(checked++).get();
+                }
+                if (len < BLOCK_SIZE) {
+                    break;
+                }
+            }
+            pool.shutdown();
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } catch (IOException e) {
+            throw toQiniuException(e);
+        } catch (ExecutionException e) {
+            throw toQiniuException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QiniuException(e);
+        } finally {
+            pool.shutdownNow();
+        }
+        return makeFile(size, key, mime, contexts.toArray(new String[contexts.size()]));
+    }
+
+    private static int readFully(InputStream in, byte[] buffer) throws IOException {
+        int len = 0;
+        int n;
+        while (len < buffer.length && (n = in.read(buffer, len, buffer.length - len)) != -1) {
+            len += n;
+        }
+        return len;
+    }
+
+    /**
+     * 表单上传一段内存数据
+     * https://developer.qiniu.com/kodo/api/1312/upload
+     */
+    com.qiniu.http.Response formUpload(byte[] data, int len, String key, String mime) throws QiniuException {
+        MediaType type = StringUtils.isNullOrEmpty(mime) ? OCTET_STREAM : MediaType.parse(mime);
+        MultipartBody.Builder body = new MultipartBody.Builder().setType(MultipartBody.FORM)
+                .addFormDataPart("token", token)
+                .addFormDataPart("crc32", String.valueOf(Crc32.bytes(data, 0, len)));
+        if (key != null) {
+            body.addFormDataPart("key", key);
+        }
+        body.addFormDataPart("file", key == null ? "?" : key, RequestBody.create(type, data, 0, len));
+        QiniuException last = null;
+        String host = upHost();
+        for (int retry = 0; retry <= config.retryMax; retry++) {
+            try {
+                return post(host, body.build());
+            } catch (QiniuException e) {
+                if (e.response != null && !e.response.needRetry()) {
+                    throw e;
+                }
+                last = e;
+                host = upHostForRetry(host);
+            }
+        }
+        throw last;
+    }
+
+    static QiniuException toQiniuException(Throwable e) {
+        if (e instanceof QiniuException) {
+            return (QiniuException) e;
+        }
+        if (e instanceof Exception) {
+            return new QiniuException((Exception) e);
+        }
+        return new QiniuException(new RuntimeException(e));
+    }
+
+    private static void readFully(FileChannel channel, byte[] buffer, int len, long position) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(buffer, 0, len);
+        while (buf.hasRemaining()) {
+            int n = channel.read(buf, position + buf.position());
+            if (n < 0) {
+                throw new IOException("file changed while uploading, unexpected end of file");
+            }
+        }
+    }
+
+    /**
+     * 上传一个块，失败时整块重试，第一次失败后换到备用上传域名。
+     * 返回最后一片的响应，其中 ctx 用于 mkfile 。
+     */
+    StringMap uploadBlock(byte[] data, int len) throws QiniuException {
+        String host = upHost();
+        QiniuException last = null;
+        for (int retry = 0; retry <= config.retryMax; retry++) {
+            try {
+                return uploadBlock(host, data, len);
+            } catch (QiniuException e) {
+                if (e.response != null && !e.response.needRetry()) {
+                    throw e;
+                }
+                last = e;
+                host = upHostForRetry(host);
+            }
+        }
+        throw last;
+    }
+
+    private String upHost() throws QiniuException {
+        return selector != null ? selector.select() : config.upHost(token);
+    }
+
+    private String upHostForRetry(String failed) throws QiniuException {
+        return selector != null ? selector.selectExcluding(failed) : config.upHostBackup(token);
+    }
+
+    private StringMap uploadBlock(String host, byte[] data, int len) throws QiniuException {
+        int chunk = Math.min(chunkSize, len);
+        StringMap ret = postChunk(host + "/mkblk/" + len, data, 0, chunk);
+        int offset = chunk;
+        while (offset < len) {
+            chunk = Math.min(chunkSize, len - offset);
+            // bput 需发往 mkblk 返回的 host
+            String url = ret.get("host") + "/bput/" + ret.get("ctx") + "/" + offset;
+            ret = postChunk(url, data, offset, chunk);
+            offset += chunk;
+        }
+        return ret;
+    }
+
+    private StringMap postChunk(String url, byte[] data, int offset, int len) throws QiniuException {
+        com.qiniu.http.Response res = post(url, RequestBody.create(OCTET_STREAM, data, offset, len));
+        StringMap ret = res.jsonToMap();
+        long crc32 = ((Number) ret.get("crc32")).longValue();
+        if (crc32 != Crc32.bytes(data, offset, len)) {
+            throw new QiniuException(new IOException("block's crc32 is not match"));
+        }
+        return ret;
+    }
+
+    com.qiniu.http.Response makeFile(long size, String key, String mime, String[] contexts) throws QiniuException {
+        // 块的 ctx 在同一区域的上传域名间通用， mkfile 不必发往 mkblk 的域名
+        StringBuilder url = new StringBuilder(upHost()).append("/mkfile/").append(size);
+        if (!StringUtils.isNullOrEmpty(mime)) {
+            url.append("/mimeType/").append(UrlSafeBase64.encodeToString(mime));
+        }
+        if (key != null) {
+            url.append("/key/").append(UrlSafeBase64.encodeToString(key));
+        }
+        String body = StringUtils.join(contexts, ",");
+        return post(url.toString(), RequestBody.create(TEXT_PLAIN, body));
+    }
+
+    private com.qiniu.http.Response post(String url, RequestBody body) throws QiniuException {
+        Request request = new Request.Builder()
+                .url(url)
+                .addHeader("Authorization", "UpToken " + token)
+                .addHeader("User-Agent", QiniuOssUtil.userAgent())
+                .post(body)
+                .build();
+        long start = System.currentTimeMillis();
+        okhttp3.Response res;
+        try {
+            res = client.newCall(request).execute();
+        } catch (IOException e) {
+            if (selector != null) {
+                selector.record(url, System.currentTimeMillis() - start, false);
+            }
+            throw new QiniuException(e);
+        }
+        double duration = (System.currentTimeMillis() - start) / 1000.0;
+        com.qiniu.http.Response r = com.qiniu.http.Response.create(res, "", duration);
+        res.close();
+        if (selector != null) {
+            // 4xx 是请求本身的问题，不算域名出错
+            selector.record(url, System.currentTimeMillis() - start, !r.needRetry());
+        }
+        if (!r.isOK()) {
+            throw new QiniuException(r);
+        }
+        return r;
+    }
+
+
+    /**
+     * 断点记录，保存每个块的 ctx 及其过期时间。
+     * 文件大小、修改时间、key 变化后记录作废。
+     */
+    static final class Checkpoint {
+        String uploadFile;
+        long size;
+        long lastModified;
+        String key;
+        String[] contexts;
+        long[] expiredAt;
+
+        private transient File record;
+
+        static Checkpoint load(File record, File file, String key, int blockCount) {
+            if (record != null && record.isFile()) {
+                try {
+                    String json = new String(readAll(record), Constants.UTF_8);
+                    Checkpoint cp = Json.decode(json, Checkpoint.class);
+                    if (cp != null && cp.isValid(file, key, blockCount)) {
+                        cp.record = record;
+                        return cp;
+                    }
+                } catch (Exception e) {
+                    // 记录损坏，重新上传
+                    logException("Ignore corrupt upload record " + record + ": ", e);
+                }
+            }
+            Checkpoint cp = new Checkpoint();
+            cp.uploadFile = file.getAbsolutePath();
+            cp.size = file.length();
+            cp.lastModified = file.lastModified();
+            cp.key = key;
+            cp.contexts = new String[blockCount];
+            cp.expiredAt = new long[blockCount];
+            cp.record = record;
+            return cp;
+        }
+
+        private boolean isValid(File file, String key, int blockCount) {
+            return file.getAbsolutePath().equals(uploadFile) && file.length() == size
+                    && file.lastModified() == lastModified
+                    && (key == null ? this.key == null : key.equals(this.key))
+                    && contexts != null && contexts.length == blockCount
+                    && expiredAt != null && expiredAt.length == blockCount;
+        }
+
+        synchronized void done(int idx, String ctx, long expired) throws IOException {
+            contexts[idx] = ctx;
+            expiredAt[idx] = expired;
+            if (record != null) {
+                writeAtomically(record, Json.encode(this).getBytes(Constants.UTF_8));
+            }
+        }
+
+        void delete() {
+            if (record != null) {
+                record.delete();
+            }
+        }
+    }
+
+    static byte[] readAll(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "r");
+        try {
+            byte[] b = new byte[(int) raf.length()];
+            raf.readFully(b);
+            return b;
+        } finally {
+            raf.close();
+        }
+    }
+
+    /** 先写临时文件再改名，避免进程中断时留下半个记录 */
+    static void writeAtomically(File f, byte[] data) throws IOException {
+        File tmp = new File(f.getAbsolutePath() + ".tmp");
+        FileOutputStream os = new FileOutputStream(tmp);
+        try {
+            os.write(data);
+            os.getFD().sync();
+        } finally {
+            os.close();
+        }
+        if (!tmp.renameTo(f)) {
+            f.delete();
+            if (!tmp.renameTo(f)) {
+                throw new IOException("can not write checkpoint file: " + f);
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.aliyun.oss;
+
+import com.qiniu.common.QiniuException;
+import com.qiniu.storage.model.BucketInfo;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 空间信息缓存，缓存 uc 接口返回的 BucketInfo ，空间不存在（ 612 ）也会缓存。
+ * 条目在 ttl 内有效；进入最后 refreshAhead 的时间段后，命中时在后台刷新，调用方仍拿到旧值，不用等 uc 请求。
+ * 同一空间同时未命中时只发一个请求，其它线程等待同一个结果。
+ * 同一个 client 上修改空间的操作会让条目失效，其它地方的修改要等条目过期后才能看到。
+ */
+public class QiniuBucketInfoCache {
+
+    /** 未命中时加载空间信息 */
+    interface Loader {
+        BucketInfo load(String bucketName) throws QiniuException;
+    }
+
+    /** info 为 null 表示空间不存在 */
+    static final class Entry {
+        final BucketInfo info;
+        final long loadedAt;
+
+        Entry(BucketInfo info, long loadedAt) {
+            this.info = info;
+            this.loadedAt = loadedAt;
+        }
+    }
+
+    private final long ttl;
+    private final long refreshAhead;
+    private final ConcurrentHashMap<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private final ConcurrentHashMap<String, FutureTask<Entry>> loading =
+            new ConcurrentHashMap<String, FutureTask<Entry>>();
+    // 每个空间一个计数，失效时加一，加载开始后这个空间失效过的结果不写入缓存
+    private final ConcurrentHashMap<String, AtomicLong> generations = new ConcurrentHashMap<String, AtomicLong>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private volatile ExecutorService refresher;
+
+    /**
+     * @param ttl          条目有效期，毫秒
+     * @param refreshAhead 过期前多久开始后台刷新，毫秒， 0 表示不提前刷新
+     */
+    public QiniuBucketInfoCache(long ttl, long refreshAhead) {
+        if (ttl <= 0) {
+            throw new IllegalArgumentException("ttl must be positive");
+        }
+        this.ttl = ttl;
+        this.refreshAhead = Math.max(0, Math.min(refreshAhead, ttl));
+    }
+
+    Entry get(String bucketName, Loader loader) throws QiniuException {
+        Entry e = entries.get(bucketName);
+        long age = e == null ? 0 : System.currentTimeMillis() - e.loadedAt;
+        if (e != null && age < ttl) {
+            hitCount.incrementAndGet();
+            if (refreshAhead > 0 && age >= ttl - refreshAhead) {
+                refreshAsync(bucketName, loader);
+            }
+            return e;
+        }
+        missCount.incrementAndGet();
+        return load(bucketName, loader);
+    }
+
+    /**
+     * 去掉条目；正在进行的加载不再写入缓存，之后的调用也不会再等它的结果
+     */
+    public void invalidate(String bucketName) {
+        AtomicLong gen = generation(bucketName);
+        synchronized (gen) {
+            gen.incrementAndGet();
+            entries.remove(bucketName);
+            loading.remove(bucketName);
+        }
+    }
+
+    public void invalidateAll() {
+        for (String bucketName : generations.keySet()) {
+            invalidate(bucketName);
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * 停止后台刷新线程
+     */
+    public void shutdown() {
+        ExecutorService r = refresher;
+        if (r != null) {
+            r.shutdownNow();
+        }
+    }
+
+    private Entry load(String bucketName, Loader loader) throws QiniuException {
+        FutureTask<Entry> task = newTask(bucketName, loader);
+        FutureTask<Entry> running = loading.putIfAbsent(bucketName, task);
+        if (running == null) {
+            running = task;
+            try {
+                task.run();
+            } finally {
+                loading.remove(bucketName, task);
+            }
+        }
+        try {
+            return running.get();
+        } catch (ExecutionException e) {
+            throw QiniuBlockUploader.toQiniuException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new QiniuException(e);
+        }
+    }
+
+    private void refreshAsync(final String bucketName, Loader loader) {
+        final FutureTask<Entry> task = newTask(bucketName, loader);
+        if (loading.putIfAbsent(bucketName, task) != null) {
+            // 已经在加载
+            return;
+        }
+        try {
+            getRefresher().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        loading.remove(bucketName, task);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // 已 shutdown 或队列满，等过期后同步加载
+            loading.remove(bucketName, task);
+        }
+    }
+
+    private AtomicLong generation(String bucketName) {
+        AtomicLong gen = generations.get(bucketName);
+        if (gen == null) {
+            AtomicLong created = new AtomicLong();
+            gen = generations.putIfAbsent(bucketName, created);
+            if (gen == null) {
+                gen = created;
+            }
+        }
+        return gen;
+    }
+
+    private FutureTask<Entry> newTask(final String bucketName, final Loader loader) {
+        final AtomicLong generation = generation(bucketName);
+        final long gen = generation.get();
+        return new FutureTask<Entry>(new Callable<Entry>() {
+            @Override
+            public Entry call() throws Exception {
+                Entry e;
+                try {
+                    e = new Entry(loader.load(bucketName), System.currentTimeMillis());
+                } catch (QiniuException ex) {
+                    if (ex.code() != 612) {
+                        throw ex;
+                    }
+                    e = new Entry(null, System.currentTimeMillis());
+                }
+                // 与 invalidate 互斥，检查和写入之间不会插进失效
+                synchronized (generation) {
+                    if (generation.get() == gen) {
+                        entries.put(bucketName, e);
+                    }
+                }
+                return e;
+            }
+        });
+    }
+
+    private ExecutorService getRefresher() {
+        if (refresher == null) {
+            synchronized (this) {
+                if (refresher == null) {
+                    // 刷新请求很少，一个线程足够
+                    refresher = new ThreadPoolExecutor(0, 1, 60, TimeUnit.SECONDS,
+                            new LinkedBlockingQueue<Runnable>(1024), new ThreadFactory() {
+                        @Override
+                        public Thread newThread(Runnable r) {
+                            Thread t = new Thread(r, "qiniu-bucket-info-refresh");
+                            t.setDaemon(true);
+                            return t;
+                        }
+                    });
+                }
+            }
+        }
+        return refresher;
+    }
+}
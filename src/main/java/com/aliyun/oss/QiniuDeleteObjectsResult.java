@@ -0,0 +1,34 @@
+package com.aliyun.oss;
+
+import com.aliyun.oss.model.DeleteObjectsResult;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 批量删除结果。 getDeletedObjects 为删除成功的 key （ quiet 模式下为空），
+ * getFailedObjects 为删除失败的 key 及原因，不论是否 quiet 都会返回，只需重试这部分即可。
+ */
+public class QiniuDeleteObjectsResult extends DeleteObjectsResult {
+    private final Map<String, String> failedObjects = new LinkedHashMap<String, String>();
+
+    public QiniuDeleteObjectsResult() {
+        super();
+    }
+
+    public QiniuDeleteObjectsResult(List<String> deletedObjects) {
+        super(deletedObjects);
+    }
+
+    /**
+     * key -> 错误信息，如 "599: server error"
+     */
+    public Map<String, String> getFailedObjects() {
+        return failedObjects;
+    }
+
+    void addFailedObject(String key, String error) {
+        failedObjects.put(key, error);
+    }
+}
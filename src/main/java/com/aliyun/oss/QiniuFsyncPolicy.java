@@ -0,0 +1,13 @@
+package com.aliyun.oss;
+
+/**
+ * 下载到文件后是否刷盘
+ */
+public enum QiniuFsyncPolicy {
+    /** 不主动刷盘，交给操作系统 */
+    NONE,
+    /** 关闭前刷数据，不含文件元信息，即 FileChannel.force(false) */
+    DATA,
+    /** 关闭前刷数据和元信息，即 FileChannel.force(true) */
+    ALL
+}
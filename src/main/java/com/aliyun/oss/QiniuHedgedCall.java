@@ -0,0 +1,153 @@
+package com.aliyun.oss;
+
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一次对冲下载：依次向 requests 中的地址发请求，先收到响应头的胜出，其余取消。
+ * 请求都异步发出，调用线程只负责等结果、到点发对冲请求。
+ */
+final class QiniuHedgedCall {
+    private final QiniuHedgingPolicy policy;
+    private final List<Call.Factory> engines;
+    private final List<Request> requests;
+    private final List<Call> calls = new ArrayList<Call>();
+    private final LinkedBlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<Outcome>();
+    // 有请求胜出后，晚到的响应直接关闭。 guarded by outcomes
+    private boolean done;
+
+    private static final class Outcome {
+        final int attempt;
+        final long micros;
+        final Response response;
+        final IOException error;
+
+        Outcome(int attempt, long micros, Response response, IOException error) {
+            this.attempt = attempt;
+            this.micros = micros;
+            this.response = response;
+            this.error = error;
+        }
+    }
+
+    QiniuHedgedCall(QiniuHedgingPolicy policy, List<Call.Factory> engines, List<Request> requests) {
+        this.policy = policy;
+        this.engines = engines;
+        this.requests = requests;
+    }
+
+    Response execute() throws IOException {
+        int maxAttempts = Math.min(policy.getMaxAttempts(), requests.size());
+        long delayNanos = TimeUnit.MILLISECONDS.toNanos(policy.getHedgeDelayMillis());
+        start(0);
+        int pending = 1;
+        long hedgeAt = System.nanoTime() + delayNanos;
+        try {
+            while (true) {
+                Outcome o;
+                if (calls.size() < maxAttempts) {
+                    long wait = hedgeAt - System.nanoTime();
+                    o = wait > 0 ? outcomes.poll(wait, TimeUnit.NANOSECONDS) : null;
+                    if (o == null) {
+                        policy.hedgeCount.incrementAndGet();
+                        start(calls.size());
+                        pending++;
+                        hedgeAt = System.nanoTime() + delayNanos;
+                        continue;
+                    }
+                } else {
+                    o = outcomes.take();
+                }
+                pending--;
+                if (o.response != null) {
+                    return win(o);
+                }
+                boolean noOtherAddress = o.error instanceof QiniuHedgingPolicy.NoOtherAddressException;
+                if (noOtherAddress) {
+                    // 没有真正发出的请求不占 maxAttempts
+                    maxAttempts = Math.min(maxAttempts + 1, requests.size());
+                }
+                if (calls.size() < maxAttempts) {
+                    if (!noOtherAddress) {
+                        policy.failoverCount.incrementAndGet();
+                    }
+                    start(calls.size());
+                    pending++;
+                    hedgeAt = System.nanoTime() + delayNanos;
+                } else if (pending == 0) {
+                    throw o.error;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            finish(null);
+            throw new InterruptedIOException("interrupted while waiting for " + requests.get(0).url());
+        }
+    }
+
+    private void start(final int attempt) {
+        final long startNanos = System.nanoTime();
+        Call call = engines.get(attempt).newCall(requests.get(attempt));
+        calls.add(call);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                deliver(new Outcome(attempt, 0, null, e));
+            }
+
+            @Override
+            public void onResponse(Call call, Response response) {
+                deliver(new Outcome(attempt, (System.nanoTime() - startNanos) / 1000, response, null));
+            }
+        });
+    }
+
+    private void deliver(Outcome o) {
+        synchronized (outcomes) {
+            if (!done) {
+                outcomes.add(o);
+                return;
+            }
+        }
+        if (o.response != null) {
+            o.response.close();
+        }
+    }
+
+    private Response win(Outcome o) {
+        policy.record(o.micros);
+        if (o.attempt > 0) {
+            policy.alternateWinCount.incrementAndGet();
+        }
+        finish(calls.get(o.attempt));
+        return o.response;
+    }
+
+    /**
+     * 取消 winner 以外的请求，关闭已经到达的响应
+     */
+    private void finish(Call winner) {
+        synchronized (outcomes) {
+            done = true;
+        }
+        for (Call call : calls) {
+            if (call != winner) {
+                call.cancel();
+            }
+        }
+        for (Outcome o; (o = outcomes.poll()) != null; ) {
+            if (o.response != null) {
+                o.response.close();
+            }
+        }
+    }
+}
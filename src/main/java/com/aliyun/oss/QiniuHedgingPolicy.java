@@ -0,0 +1,264 @@
+package com.aliyun.oss;
+
+import com.qiniu.common.AutoZone;
+import com.qiniu.storage.Configuration;
+import okhttp3.Call;
+import okhttp3.Dns;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 下载的对冲与故障转移策略，设置给 QiniuOSSClient 、 QiniuOssUtil 后对 getObject 、 fetch 生效，默认不开启。
+ * 请求在对冲延迟内没有收到响应头时，向下一个地址再发一个，先收到响应头的胜出，其余取消；
+ * 建连失败等 IO 异常立即换下一个地址。对冲延迟取最近响应耗时的 percentile 分位数，限制在 [minDelay, maxDelay] 内，
+ * 样本不足时用 maxDelay 。 maxDelay 设得很大时只做故障转移。
+ * 地址依次为：同一域名解析出的另一个 ip （ otherAddress ）、 alternateHosts 、 zone 的 iovip 域名（ useZoneIovip ），
+ * 换地址时保留原来的 Host 头，私有空间的 token 仍然有效。
+ */
+public class QiniuHedgingPolicy {
+    // 样本少于这个数时用 maxDelay
+    private static final int MIN_SAMPLES = 20;
+    // 每攒够这么多样本重新算一次延迟并清空，延迟只反映最近的情况
+    private static final int WINDOW = 1000;
+
+    private final double percentile;
+    private final long minDelayMillis;
+    private final long maxDelayMillis;
+    private final int maxAttempts;
+    private volatile List<String> alternateHosts = Collections.emptyList();
+    private volatile boolean otherAddress = true;
+    private volatile boolean useZoneIovip = true;
+
+    private final QiniuLatencyHistogram latency = new QiniuLatencyHistogram();
+    private volatile long delayMillis;
+    private final Map<OkHttpClient, OkHttpClient> otherAddressClients =
+            Collections.synchronizedMap(new WeakHashMap<OkHttpClient, OkHttpClient>());
+
+    final AtomicLong hedgeCount = new AtomicLong();
+    final AtomicLong failoverCount = new AtomicLong();
+    final AtomicLong alternateWinCount = new AtomicLong();
+
+    /**
+     * @param percentile     对冲延迟取响应耗时的哪个分位数，如 0.95
+     * @param minDelayMillis 对冲延迟下限，毫秒
+     * @param maxDelayMillis 对冲延迟上限，毫秒，样本不足时也用它
+     * @param maxAttempts    一次下载最多发出的请求数，含第一个
+     */
+    public QiniuHedgingPolicy(double percentile, long minDelayMillis, long maxDelayMillis, int maxAttempts) {
+        if (percentile <= 0 || percentile > 1) {
+            throw new IllegalArgumentException("percentile must be in (0, 1]");
+        }
+        if (minDelayMillis < 0 || maxDelayMillis < minDelayMillis) {
+            throw new IllegalArgumentException("require 0 <= minDelayMillis <= maxDelayMillis");
+        }
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be positive");
+        }
+        this.percentile = percentile;
+        this.minDelayMillis = minDelayMillis;
+        this.maxDelayMillis = maxDelayMillis;
+        this.maxAttempts = maxAttempts;
+        this.delayMillis = maxDelayMillis;
+    }
+
+    /**
+     * 备用地址，如 "http://10.0.0.2:8080" ，只替换协议、主机和端口，路径和参数不变
+     */
+    public void setAlternateHosts(List<String> hosts) {
+        List<String> list = new ArrayList<String>();
+        if (hosts != null) {
+            for (String h : hosts) {
+                if (HttpUrl.parse(h) == null) {
+                    throw new IllegalArgumentException("invalid host: " + h);
+                }
+                list.add(h);
+            }
+        }
+        this.alternateHosts = Collections.unmodifiableList(list);
+    }
+
+    public List<String> getAlternateHosts() {
+        return alternateHosts;
+    }
+
+    /**
+     * 是否向同一域名解析出的另一个 ip 发请求，只解析出一个 ip 时跳过。默认开启
+     */
+    public void setOtherAddress(boolean otherAddress) {
+        this.otherAddress = otherAddress;
+    }
+
+    /**
+     * 是否把 zone 的 iovip 域名作为最后一个备用地址， AutoZone 时不用。默认开启
+     */
+    public void setUseZoneIovip(boolean useZoneIovip) {
+        this.useZoneIovip = useZoneIovip;
+    }
+
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    /**
+     * 超过对冲延迟而多发的请求数
+     */
+    public long getHedgeCount() {
+        return hedgeCount.get();
+    }
+
+    /**
+     * IO 异常后换地址重发的请求数
+     */
+    public long getFailoverCount() {
+        return failoverCount.get();
+    }
+
+    /**
+     * 不是第一个请求胜出的次数
+     */
+    public long getAlternateWinCount() {
+        return alternateWinCount.get();
+    }
+
+    /**
+     * 当前的对冲延迟，毫秒
+     */
+    public long getHedgeDelayMillis() {
+        return delayMillis;
+    }
+
+    /**
+     * 记录胜出请求收到响应头的耗时
+     */
+    void record(long micros) {
+        latency.recordMicros(micros);
+        if (latency.getCount() >= MIN_SAMPLES && (delayMillis == maxDelayMillis
+                || latency.getCount() >= WINDOW)) {
+            refreshDelay();
+        }
+    }
+
+    private synchronized void refreshDelay() {
+        QiniuLatencyHistogram.Snapshot s = latency.snapshot();
+        if (s.getCount() < MIN_SAMPLES) {
+            return;
+        }
+        long d = s.getPercentileMicros(percentile) / 1000;
+        delayMillis = Math.max(minDelayMillis, Math.min(maxDelayMillis, d));
+        if (s.getCount() >= WINDOW) {
+            latency.reset();
+        }
+    }
+
+    /**
+     * 按策略执行 request ， engine 为原本用来下载的引擎， config 用于取 iovip 域名，可为 null
+     */
+    Response execute(Call.Factory engine, Request request, Configuration config) throws IOException {
+        List<Call.Factory> engines = new ArrayList<Call.Factory>();
+        List<Request> requests = new ArrayList<Request>();
+        engines.add(engine);
+        requests.add(request);
+        if (otherAddress && engine instanceof OkHttpClient && hasOtherAddress((OkHttpClient) engine, request)) {
+            // 不同的 Dns 对应不同的连接池 Address ，不会复用到第一个 ip 上的连接
+            engines.add(otherAddressClient((OkHttpClient) engine));
+            requests.add(request);
+        }
+        for (String host : alternateHosts) {
+            engines.add(engine);
+            requests.add(rewrite(request, host));
+        }
+        HttpUrl iovip = useZoneIovip ? zoneIovip(config) : null;
+        if (iovip != null && !(iovip.host().equals(request.url().host()) && iovip.port() == request.url().port())) {
+            engines.add(engine);
+            requests.add(rewrite(request, iovip.toString()));
+        }
+        return new QiniuHedgedCall(this, engines, requests).execute();
+    }
+
+    /**
+     * 事先解析一次，只有一个 ip 的域名不加这个地址，不占 maxAttempts 。解析结果有缓存，第一个请求随后也要解析
+     */
+    private static boolean hasOtherAddress(OkHttpClient engine, Request request) {
+        try {
+            return engine.dns().lookup(request.url().host()).size() > 1;
+        } catch (UnknownHostException e) {
+            // 第一个请求会报同样的错
+            return false;
+        }
+    }
+
+    private OkHttpClient otherAddressClient(OkHttpClient base) {
+        OkHttpClient c = otherAddressClients.get(base);
+        if (c == null) {
+            c = base.newBuilder().dns(new OtherAddressDns(base.dns())).build();
+            otherAddressClients.put(base, c);
+        }
+        return c;
+    }
+
+    /**
+     * 换成 host 的协议、主机和端口， Host 头保留原来的
+     */
+    static Request rewrite(Request request, String host) {
+        HttpUrl target = HttpUrl.parse(host);
+        HttpUrl url = request.url();
+        String hostHeader = request.header("Host");
+        if (hostHeader == null) {
+            hostHeader = url.port() == HttpUrl.defaultPort(url.scheme()) ? url.host() : url.host() + ":" + url.port();
+        }
+        HttpUrl rewritten = url.newBuilder().scheme(target.scheme()).host(target.host()).port(target.port()).build();
+        return request.newBuilder().url(rewritten).header("Host", hostHeader).build();
+    }
+
+    private static HttpUrl zoneIovip(Configuration config) {
+        if (config == null || config.zone == null || config.zone instanceof AutoZone) {
+            return null;
+        }
+        // 固定 zone 不看 ZoneReqInfo
+        String io = config.useHttpsDomains ? config.zone.getIovipHttps(null) : config.zone.getIovipHttp(null);
+        return io == null ? null : HttpUrl.parse(io);
+    }
+
+    /**
+     * 只返回除第一个以外的 ip ；解析结果变成只有一个 ip 时失败，这个地址会被立即跳过
+     */
+    private static final class OtherAddressDns implements Dns {
+        private final Dns base;
+
+        OtherAddressDns(Dns base) {
+            this.base = base;
+        }
+
+        @Override
+        public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+            List<InetAddress> all = base.lookup(hostname);
+            if (all.size() < 2) {
+                throw new NoOtherAddressException(hostname);
+            }
+            return all.subList(1, all.size());
+        }
+    }
+
+    /**
+     * 域名只有一个 ip ，不算故障转移
+     */
+    static final class NoOtherAddressException extends UnknownHostException {
+        private static final long serialVersionUID = 1L;
+
+        NoOtherAddressException(String hostname) {
+            super(hostname + " has no other address");
+        }
+    }
+}
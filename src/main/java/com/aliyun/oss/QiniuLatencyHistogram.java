@@ -0,0 +1,140 @@
+package com.aliyun.oss;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 无锁的延迟直方图，单位微秒。
+ * 按 2 的幂分段，每段再均分 8 个桶，相对误差不超过 12.5% ，固定 488 个桶，与记录数无关。
+ * record 只做几次原子加，可以在请求线程上直接调用；读取时各计数不保证是同一时刻的值。
+ */
+public final class QiniuLatencyHistogram {
+    private static final int SUB_BUCKETS = 8;
+    private static final int BUCKETS = (63 - 2) * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    public void record(long duration, TimeUnit unit) {
+        recordMicros(unit.toMicros(duration));
+    }
+
+    public void recordMicros(long micros) {
+        long v = Math.max(0, micros);
+        buckets.incrementAndGet(index(v));
+        count.increment();
+        sum.add(v);
+        long m = max.get();
+        while (v > m && !max.compareAndSet(m, v)) {
+            m = max.get();
+        }
+    }
+
+    static int index(long v) {
+        if (v < SUB_BUCKETS) {
+            return (int) v;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(v);
+        return (msb - 2) * SUB_BUCKETS + (int) ((v >>> (msb - 3)) & (SUB_BUCKETS - 1));
+    }
+
+    /**
+     * 桶的上界（不含）
+     */
+    static long upperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index + 1;
+        } else if (index >= BUCKETS - 1) {
+            return Long.MAX_VALUE;
+        }
+        int msb = index / SUB_BUCKETS + 2;
+        long width = 1L << (msb - 3);
+        return (SUB_BUCKETS + index % SUB_BUCKETS) * width + width;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public Snapshot snapshot() {
+        long[] copy = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            copy[i] = buckets.get(i);
+        }
+        return new Snapshot(copy, count.sum(), sum.sum(), max.get());
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets.set(i, 0);
+        }
+        count.reset();
+        sum.reset();
+        max.set(0);
+    }
+
+    /**
+     * 某一时刻的副本，可以随意计算百分位
+     */
+    public static final class Snapshot {
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        Snapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        public long getSumMicros() {
+            return sum;
+        }
+
+        public long getMaxMicros() {
+            return max;
+        }
+
+        public double getMeanMicros() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * p 取 0 到 1 ，返回所在桶的上界，不超过记录到的最大值
+         */
+        public long getPercentileMicros(double p) {
+            long total = 0;
+            for (long b : buckets) {
+                total += b;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(p * total));
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank) {
+                    return Math.min(upperBound(i) - 1, max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + (long) getMeanMicros() + "us, p50=" + getPercentileMicros(0.5)
+                    + "us, p99=" + getPercentileMicros(0.99) + "us, max=" + max + "us";
+        }
+    }
+}
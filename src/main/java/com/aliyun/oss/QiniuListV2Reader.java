@@ -0,0 +1,165 @@
+package com.aliyun.oss;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.qiniu.common.QiniuException;
+import com.qiniu.http.Response;
+import com.qiniu.util.Auth;
+import com.qiniu.util.StringMap;
+import okhttp3.MediaType;
+import okhttp3.Call;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.Map;
+
+/**
+ * rsf /v2/list 流式列举。
+ * 响应体是一行一个 json ： {"item": {...}, "marker": "...", "dir": "..."} ，
+ * 边从 socket 读边解析，解析出一条就交给 handler ，内存占用与列举数量无关，第一条不用等整页下载完。
+ */
+final class QiniuListV2Reader {
+    private static final MediaType FORM = MediaType.parse("application/x-www-form-urlencoded");
+    private static final byte[] EMPTY = new byte[0];
+
+    private final Call.Factory client;
+    private final Auth auth;
+
+    QiniuListV2Reader(Call.Factory client, Auth auth) {
+        this.client = client;
+        this.auth = auth;
+    }
+
+    /**
+     * limit 为 0 表示不限数量，一次列举完 prefix 下全部文件。
+     * 返回下次列举的 marker ，列举完返回 null 。 handler 返回 false 时，返回的 marker 指向下一条
+     */
+    String list(String rsfHost, String bucket, String prefix, String delimiter, String marker, int limit,
+                QiniuListingHandler handler) throws QiniuException {
+        StringMap params = new StringMap().put("bucket", bucket).putNotEmpty("prefix", prefix)
+                .putNotEmpty("delimiter", delimiter).putNotEmpty("marker", marker).putWhen("limit", limit, limit > 0);
+        String url = rsfHost + "/v2/list?" + params.formString();
+        Request.Builder builder = new Request.Builder()
+                .url(url)
+                .post(RequestBody.create(FORM, EMPTY))
+                .addHeader("User-Agent", QiniuOssUtil.userAgent());
+        for (Map.Entry<String, Object> h : auth.authorization(url, null, FORM.toString()).map().entrySet()) {
+            builder.addHeader(h.getKey(), h.getValue().toString());
+        }
+
+        long start = System.currentTimeMillis();
+        okhttp3.Response res;
+        try {
+            res = client.newCall(builder.build()).execute();
+        } catch (IOException e) {
+            throw new QiniuException(e);
+        }
+        try {
+            if (res.code() != 200) {
+                throw new QiniuException(Response.create(res, null, (System.currentTimeMillis() - start) / 1000.0));
+            }
+            JsonReader reader = new JsonReader(new InputStreamReader(res.body().byteStream(), "UTF-8"));
+            // 多个顶层 json 对象
+            reader.setLenient(true);
+            String next = null;
+            Line line = new Line();
+            while (reader.peek() != JsonToken.END_DOCUMENT) {
+                readLine(reader, line);
+                if (line.error != null) {
+                    throw new QiniuException(new IOException("list v2 error: " + line.error + ", url: " + url));
+                }
+                next = line.marker;
+                boolean goOn = true;
+                if (line.key != null) {
+                    goOn = handler.onObject(line.key, line.fsize, line.hash, line.putTime, line.mimeType, line.type);
+                } else if (line.dir != null && line.dir.length() > 0) {
+                    goOn = handler.onCommonPrefix(line.dir);
+                }
+                if (!goOn) {
+                    break;
+                }
+            }
+            return next == null || next.length() == 0 ? null : next;
+        } catch (QiniuException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new QiniuException(e);
+        } finally {
+            res.close();
+        }
+    }
+
+    /** 一行的内容，每行复用 */
+    private static final class Line {
+        String key;
+        String hash;
+        long fsize;
+        long putTime;
+        String mimeType;
+        int type;
+        String marker;
+        String dir;
+        String error;
+
+        void reset() {
+            key = null;
+            hash = null;
+            fsize = 0;
+            putTime = 0;
+            mimeType = null;
+            type = 0;
+            marker = null;
+            dir = null;
+            error = null;
+        }
+    }
+
+    private static void readLine(JsonReader reader, Line line) throws IOException {
+        line.reset();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if ("item".equals(name)) {
+                readItem(reader, line);
+            } else if ("marker".equals(name)) {
+                line.marker = reader.nextString();
+            } else if ("dir".equals(name)) {
+                line.dir = reader.nextString();
+            } else if ("error".equals(name)) {
+                line.error = reader.nextString();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+
+    private static void readItem(JsonReader reader, Line line) throws IOException {
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.nextNull();
+            } else if ("key".equals(name)) {
+                line.key = reader.nextString();
+            } else if ("hash".equals(name)) {
+                line.hash = reader.nextString();
+            } else if ("fsize".equals(name)) {
+                line.fsize = reader.nextLong();
+            } else if ("putTime".equals(name)) {
+                line.putTime = reader.nextLong();
+            } else if ("mimeType".equals(name)) {
+                line.mimeType = reader.nextString();
+            } else if ("type".equals(name)) {
+                line.type = reader.nextInt();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+    }
+}
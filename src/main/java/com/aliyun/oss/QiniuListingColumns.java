@@ -0,0 +1,194 @@
+package com.aliyun.oss;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 列式保存列举结果，配合 listObjectsV2 使用。
+ * key 按 UTF-8 连续存放在一个 byte[] 中， size 、 putTime 、存储类型各占一个基本类型数组，
+ * 每条只多占 8 + 8 + 1 + 4 字节和 key 本身的字节，没有 FileInfo 、 OSSObjectSummary 、 Date 等对象。
+ * 数组满了按 1.5 倍扩容， clear 后复用。
+ * 指定 maxEntries 时，装满即停止列举，处理完后 clear ，再用返回的 marker 继续：
+ * <pre>
+ * String marker = null;
+ * do {
+ *     marker = client.listObjectsV2(bucket, prefix, null, marker, 0, columns);
+ *     // 处理 columns
+ *     columns.clear();
+ * } while (marker != null);
+ * </pre>
+ * 非线程安全。
+ */
+public class QiniuListingColumns implements QiniuListingHandler {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final int maxEntries;
+    private int count;
+    private byte[] keyBytes;
+    // 第 i 个 key 为 keyBytes[keyOffsets[i], keyOffsets[i + 1])
+    private int[] keyOffsets;
+    private long[] sizes;
+    private long[] putTimes;
+    private byte[] types;
+    private final List<String> commonPrefixes = new ArrayList<String>();
+
+    public QiniuListingColumns() {
+        this(1024, 0);
+    }
+
+    /**
+     * @param initialCapacity 初始条目数
+     * @param maxEntries      最多保存的条目数，装满后停止列举， 0 表示不限
+     */
+    public QiniuListingColumns(int initialCapacity, int maxEntries) {
+        int cap = Math.max(16, maxEntries > 0 ? Math.min(initialCapacity, maxEntries) : initialCapacity);
+        this.maxEntries = maxEntries;
+        this.keyBytes = new byte[cap * 32];
+        this.keyOffsets = new int[cap + 1];
+        this.sizes = new long[cap];
+        this.putTimes = new long[cap];
+        this.types = new byte[cap];
+    }
+
+    @Override
+    public boolean onObject(String key, long size, String hash, long putTime, String mimeType, int type) {
+        if (count == sizes.length) {
+            grow(count + (count >> 1));
+        }
+        int pos = keyOffsets[count];
+        // UTF-8 每个 char 最多 3 字节（代理对 2 个 char 共 4 字节）
+        ensureKeyBytes(pos + key.length() * 3);
+        keyOffsets[count + 1] = encodeUtf8(key, keyBytes, pos);
+        sizes[count] = size;
+        putTimes[count] = putTime;
+        types[count] = (byte) type;
+        count++;
+        return maxEntries <= 0 || count < maxEntries;
+    }
+
+    @Override
+    public boolean onCommonPrefix(String prefix) {
+        commonPrefixes.add(prefix);
+        return true;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public String key(int i) {
+        check(i);
+        return new String(keyBytes, keyOffsets[i], keyOffsets[i + 1] - keyOffsets[i], UTF_8);
+    }
+
+    /**
+     * key 的 UTF-8 字节都在这个数组中，从 keyOffset(i) 开始，长 keyLength(i) 。扩容后数组会变
+     */
+    public byte[] keyBuffer() {
+        return keyBytes;
+    }
+
+    public int keyOffset(int i) {
+        check(i);
+        return keyOffsets[i];
+    }
+
+    public int keyLength(int i) {
+        check(i);
+        return keyOffsets[i + 1] - keyOffsets[i];
+    }
+
+    public long size(int i) {
+        check(i);
+        return sizes[i];
+    }
+
+    /**
+     * 单位 100 纳秒
+     */
+    public long putTime(int i) {
+        check(i);
+        return putTimes[i];
+    }
+
+    /**
+     * 0 标准存储， 1 低频存储
+     */
+    public int type(int i) {
+        check(i);
+        return types[i];
+    }
+
+    public long totalSize() {
+        long total = 0;
+        for (int i = 0; i < count; i++) {
+            total += sizes[i];
+        }
+        return total;
+    }
+
+    public List<String> getCommonPrefixes() {
+        return commonPrefixes;
+    }
+
+    /**
+     * 清空内容，保留已分配的数组
+     */
+    public void clear() {
+        count = 0;
+        keyOffsets[0] = 0;
+        commonPrefixes.clear();
+    }
+
+    private void check(int i) {
+        if (i < 0 || i >= count) {
+            throw new IndexOutOfBoundsException("index: " + i + ", size: " + count);
+        }
+    }
+
+    private void grow(int cap) {
+        if (maxEntries > 0) {
+            cap = Math.max(Math.min(cap, maxEntries), count + 1);
+        }
+        keyOffsets = Arrays.copyOf(keyOffsets, cap + 1);
+        sizes = Arrays.copyOf(sizes, cap);
+        putTimes = Arrays.copyOf(putTimes, cap);
+        types = Arrays.copyOf(types, cap);
+    }
+
+    private void ensureKeyBytes(int min) {
+        if (min > keyBytes.length) {
+            keyBytes = Arrays.copyOf(keyBytes, Math.max(min, keyBytes.length + (keyBytes.length >> 1)));
+        }
+    }
+
+    // 直接编码进 buf ，不经过 String.getBytes 的临时数组
+    static int encodeUtf8(String s, byte[] buf, int pos) {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                buf[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                buf[pos++] = (byte) (0xc0 | (c >> 6));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                buf[pos++] = (byte) (0xf0 | (cp >> 18));
+                buf[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+                buf[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (cp & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // 不成对的代理字符，与 String.getBytes 一样替换为 '?'
+                buf[pos++] = '?';
+            } else {
+                buf[pos++] = (byte) (0xe0 | (c >> 12));
+                buf[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buf[pos++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+        return pos;
+    }
+}
@@ -0,0 +1,19 @@
+package com.aliyun.oss;
+
+/**
+ * 流式列举的回调，每解析出一条就调用一次，不创建 FileInfo 、 OSSObjectSummary 、 Date 等中间对象。
+ * 返回 false 停止列举。
+ */
+public interface QiniuListingHandler {
+
+    /**
+     * @param putTime 上传时间，单位 100 纳秒
+     * @param type    0 标准存储， 1 低频存储
+     */
+    boolean onObject(String key, long size, String hash, long putTime, String mimeType, int type);
+
+    /**
+     * 指定 delimiter 时，每个目录回调一次
+     */
+    boolean onCommonPrefix(String prefix);
+}
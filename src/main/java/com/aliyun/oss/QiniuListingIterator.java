@@ -0,0 +1,151 @@
+package com.aliyun.oss;
+
+import com.aliyun.oss.model.OSSObjectSummary;
+import com.aliyun.oss.model.ObjectListing;
+
+import java.io.Closeable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按 marker 自动翻页的列举迭代器。
+ * 后台线程在调用方处理当前页时继续拉取后面的页，最多提前缓存 prefetchPages 页，调用方消费后才继续拉取。
+ * 只能遍历一次。中途不再遍历时需要 close ，遍历结束或出错时自动 close 。
+ */
+public class QiniuListingIterator implements Iterator<OSSObjectSummary>, Iterable<OSSObjectSummary>, Closeable {
+
+    /** 从 marker 开始拉取一页， marker 为 null 表示从头开始 */
+    interface PageLoader {
+        ObjectListing load(String marker) throws OSSException, ClientException;
+    }
+
+    private static final Object END = new Object();
+    private static final long OFFER_TIMEOUT = 100;
+
+    // 元素为 ObjectListing 、 RuntimeException 或 END
+    private final BlockingQueue<Object> pages;
+    private final Thread producer;
+    private volatile boolean closed;
+
+    private Iterator<OSSObjectSummary> current = Collections.<OSSObjectSummary>emptyList().iterator();
+    private String nextMarker;
+    private boolean finished;
+
+    QiniuListingIterator(final PageLoader loader, final String marker, int prefetchPages) {
+        this.pages = new ArrayBlockingQueue<Object>(Math.max(1, prefetchPages));
+        this.nextMarker = marker;
+        this.producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                produce(loader, marker);
+            }
+        }, "qiniu-listing-prefetch");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    private void produce(PageLoader loader, String marker) {
+        try {
+            while (!closed) {
+                ObjectListing page = loader.load(marker);
+                if (!offer(page)) {
+                    return;
+                }
+                marker = page.getNextMarker();
+                if (!page.isTruncated() || marker == null || marker.length() == 0) {
+                    break;
+                }
+            }
+            offer(END);
+        } catch (RuntimeException e) {
+            offer(e);
+        }
+    }
+
+    // 队列满时等待调用方消费，已 close 则放弃
+    private boolean offer(Object o) {
+        try {
+            while (!closed) {
+                if (pages.offer(o, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        while (!current.hasNext()) {
+            if (finished) {
+                return false;
+            }
+            Object o;
+            try {
+                o = pages.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                close();
+                throw new ClientException("interrupted while waiting for listing page", e);
+            }
+            if (o == END) {
+                finished = true;
+                close();
+                return false;
+            }
+            if (o instanceof RuntimeException) {
+                finished = true;
+                close();
+                throw (RuntimeException) o;
+            }
+            ObjectListing page = (ObjectListing) o;
+            nextMarker = page.isTruncated() ? page.getNextMarker() : null;
+            current = page.getObjectSummaries().iterator();
+        }
+        return true;
+    }
+
+    @Override
+    public OSSObjectSummary next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    /**
+     * 只能遍历一次，返回自身，方便 for-each
+     */
+    @Override
+    public Iterator<OSSObjectSummary> iterator() {
+        return this;
+    }
+
+    /**
+     * 已取出的最后一页的 nextMarker ，当前页遍历完后可用它从下一页继续列举； null 表示没有更多
+     */
+    public String getNextMarker() {
+        return nextMarker;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        producer.interrupt();
+        pages.clear();
+    }
+}
@@ -0,0 +1,200 @@
+package com.aliyun.oss;
+
+import com.qiniu.storage.model.FileInfo;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内文件元信息缓存，按 bucket + key 缓存 stat 结果。
+ * 条目数有上限，超过后淘汰最久未访问的；条目在 ttl 后过期，文件不存在的结果只缓存 negativeTtl 。
+ * 同一个 client 上的上传、删除会更新对应条目，其它进程的修改要等条目过期后才能看到。
+ * stat 开始后这个 key 被上传、删除过时， stat 的结果不写入缓存，避免写之前读到的旧值被缓存整个 ttl 。
+ * 可以同时设置给 QiniuOSSClient 和 QiniuOssUtil 共用。
+ */
+public class QiniuMetaCache {
+
+    /** 查询结果， info 为 null 表示缓存了文件不存在 */
+    static final class Entry {
+        final FileInfo info;
+        final long expireAt;
+
+        Entry(FileInfo info, long expireAt) {
+            this.info = info;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private final long ttl;
+    private final long negativeTtl;
+    private final Map<String, Entry> entries;
+    // key 最近一次失效（上传、删除）时的版本，条目数与 entries 相同上限，按版本从小到大排列
+    private final Map<String, Long> invalidations;
+    // 以下两个字段由 entries 的锁保护。每次失效加一
+    private long version;
+    // 被淘汰的失效记录中最大的版本，比它早开始的 stat 一律不写入
+    private long evictedVersion;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    /**
+     * @param maxEntries  最多缓存的条目数
+     * @param ttl         存在的文件缓存多久，毫秒
+     * @param negativeTtl 不存在的文件缓存多久，毫秒， 0 表示不缓存
+     */
+    public QiniuMetaCache(final int maxEntries, long ttl, long negativeTtl) {
+        if (maxEntries <= 0) {
+            throw new IllegalArgumentException("maxEntries must be positive");
+        }
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        // accessOrder ，最久未访问的排在最前
+        this.entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, QiniuMetaCache.Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.invalidations = new LinkedHashMap<String, Long>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                if (size() > maxEntries) {
+                    evictedVersion = Math.max(evictedVersion, eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * 未命中或已过期返回 null
+     */
+    Entry get(String bucket, String key) {
+        String k = cacheKey(bucket, key);
+        Entry e;
+        synchronized (entries) {
+            e = entries.get(k);
+            if (e != null && e.expireAt <= System.currentTimeMillis()) {
+                entries.remove(k);
+                e = null;
+            }
+        }
+        if (e == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        hitCount.incrementAndGet();
+        return e.info == null ? e : new Entry(copy(e.info), e.expireAt);
+    }
+
+    /**
+     * 上传、删除之后写入的结果， info 为 null 表示文件不存在。之前开始的 stat 的结果不再写入
+     */
+    void put(String bucket, String key, FileInfo info) {
+        String k = cacheKey(bucket, key);
+        synchronized (entries) {
+            markInvalidated(k);
+            putLocked(k, info);
+        }
+    }
+
+    /**
+     * stat 之前取当前版本，传给 putLoaded
+     */
+    long version() {
+        synchronized (entries) {
+            return version;
+        }
+    }
+
+    /**
+     * 写入 stat 的结果， since 为 stat 之前取的 version() 。这之后 key 失效过时丢弃
+     */
+    void putLoaded(String bucket, String key, FileInfo info, long since) {
+        String k = cacheKey(bucket, key);
+        synchronized (entries) {
+            Long v = invalidations.get(k);
+            if (evictedVersion > since || v != null && v > since) {
+                return;
+            }
+            putLocked(k, info);
+        }
+    }
+
+    private void putLocked(String k, FileInfo info) {
+        long t = info == null ? negativeTtl : ttl;
+        if (t <= 0) {
+            entries.remove(k);
+            return;
+        }
+        entries.put(k, new Entry(info == null ? null : copy(info), System.currentTimeMillis() + t));
+    }
+
+    private void markInvalidated(String k) {
+        version++;
+        // 先删再放，保持按版本排列，淘汰的总是最早的记录
+        invalidations.remove(k);
+        invalidations.put(k, version);
+    }
+
+    public void invalidate(String bucket, String key) {
+        String k = cacheKey(bucket, key);
+        synchronized (entries) {
+            markInvalidated(k);
+            entries.remove(k);
+        }
+    }
+
+    public void invalidateAll() {
+        synchronized (entries) {
+            evictedVersion = ++version;
+            invalidations.clear();
+            entries.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public double getHitRate() {
+        long hit = hitCount.get();
+        long total = hit + missCount.get();
+        return total == 0 ? 0 : (double) hit / total;
+    }
+
+    // bucket 名不含 ':' ，与七牛 entry 的写法一致
+    private static String cacheKey(String bucket, String key) {
+        return bucket + ":" + key;
+    }
+
+    // FileInfo 字段可修改，缓存内外各持一份
+    private static FileInfo copy(FileInfo info) {
+        FileInfo c = new FileInfo();
+        c.key = info.key;
+        c.hash = info.hash;
+        c.fsize = info.fsize;
+        c.putTime = info.putTime;
+        c.mimeType = info.mimeType;
+        c.endUser = info.endUser;
+        c.type = info.type;
+        return c;
+    }
+
+    @Override
+    public String toString() {
+        return "QiniuMetaCache{size=" + size() + ", hit=" + hitCount.get() + ", miss=" + missCount.get() + "}";
+    }
+}
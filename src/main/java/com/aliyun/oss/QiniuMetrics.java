@@ -0,0 +1,303 @@
+package com.aliyun.oss;
+
+import okhttp3.Call;
+import okhttp3.Connection;
+import okhttp3.EventListener;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.Response;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * QiniuTransport 上所有请求的客户端指标：按操作、按域名的延迟直方图，收发字节数，按状态码的错误数，在途请求数。
+ * 经 OkHttp 的 EventListener 记录，覆盖直接发出的请求和 BucketManager 、 UploadManager 内部的请求。
+ * 操作按请求路径区分（ /stat/ 、 /delete/ 、 /batch 、 /list 、分片上传等），其余 GET 为下载， POST 为上传。
+ * 延迟从发起请求到响应体读完或关闭，下载包含读取内容的时间；响应体没有关闭的请求不会结束计时。
+ * <p>
+ * 接入其他监控系统时，定时读取 getXxx 的快照，或用 addListener 逐个请求转发：
+ * <pre>
+ * transport.getMetrics().addListener(new QiniuMetrics.Listener() {
+ *     public void onRequest(QiniuMetrics.Operation op, String host, int statusCode, long micros,
+ *                           long bytesSent, long bytesReceived) {
+ *         timer(op.name(), host).record(micros, TimeUnit.MICROSECONDS);
+ *     }
+ * });
+ * </pre>
+ */
+public class QiniuMetrics {
+
+    public enum Operation {
+        GET, PUT, STAT, LIST, BATCH, DELETE, OTHER
+    }
+
+    /**
+     * 在请求结束的线程上同步调用，不要阻塞。 statusCode 为 -1 表示没有收到响应（网络错误、取消）
+     */
+    public interface Listener {
+        void onRequest(Operation operation, String host, int statusCode, long micros, long bytesSent,
+                       long bytesReceived);
+    }
+
+    private final Map<Operation, QiniuLatencyHistogram> operationLatency =
+            new EnumMap<Operation, QiniuLatencyHistogram>(Operation.class);
+    private final Map<Operation, LongAdder> inFlight = new EnumMap<Operation, LongAdder>(Operation.class);
+    private final ConcurrentMap<String, QiniuLatencyHistogram> hostLatency =
+            new ConcurrentHashMap<String, QiniuLatencyHistogram>();
+    private final ConcurrentMap<Integer, LongAdder> errors = new ConcurrentHashMap<Integer, LongAdder>();
+    private final LongAdder bytesSent = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final CopyOnWriteArrayList<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+    public QiniuMetrics() {
+        // 预先创建，记录时只读
+        for (Operation op : Operation.values()) {
+            operationLatency.put(op, new QiniuLatencyHistogram());
+            inFlight.put(op, new LongAdder());
+        }
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    public QiniuLatencyHistogram.Snapshot getLatency(Operation operation) {
+        return operationLatency.get(operation).snapshot();
+    }
+
+    /**
+     * 域名为 host:port
+     */
+    public Map<String, QiniuLatencyHistogram.Snapshot> getHostLatencies() {
+        Map<String, QiniuLatencyHistogram.Snapshot> m = new TreeMap<String, QiniuLatencyHistogram.Snapshot>();
+        for (Map.Entry<String, QiniuLatencyHistogram> e : hostLatency.entrySet()) {
+            m.put(e.getKey(), e.getValue().snapshot());
+        }
+        return m;
+    }
+
+    public long getInFlight(Operation operation) {
+        return inFlight.get(operation).sum();
+    }
+
+    public long getBytesSent() {
+        return bytesSent.sum();
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    /**
+     * 状态码 -> 次数，包括 4xx 、 5xx 和七牛的 6xx ， -1 为网络错误
+     */
+    public Map<Integer, Long> getErrorCounts() {
+        Map<Integer, Long> m = new TreeMap<Integer, Long>();
+        for (Map.Entry<Integer, LongAdder> e : errors.entrySet()) {
+            m.put(e.getKey(), e.getValue().sum());
+        }
+        return Collections.unmodifiableMap(m);
+    }
+
+    /**
+     * 清零直方图和计数，在途请求数不变
+     */
+    public void reset() {
+        for (QiniuLatencyHistogram h : operationLatency.values()) {
+            h.reset();
+        }
+        hostLatency.clear();
+        errors.clear();
+        bytesSent.reset();
+        bytesReceived.reset();
+    }
+
+    /**
+     * 只认七牛接口的完整形式，其余按方法算下载或上传，文件名像 "list" 、 "stat/x.png" 的下载不会被算错
+     */
+    static Operation operationOf(Request request) {
+        HttpUrl url = request.url();
+        String path = url.encodedPath();
+        String method = request.method();
+        boolean post = "POST".equals(method);
+        if ((path.equals("/list") || path.equals("/v2/list")) && url.queryParameter("bucket") != null) {
+            return Operation.LIST;
+        } else if (post && path.equals("/batch")) {
+            return Operation.BATCH;
+        } else if (isEntryOp(path, "/stat/")) {
+            return Operation.STAT;
+        } else if (post && isEntryOp(path, "/delete/")) {
+            return Operation.DELETE;
+        } else if ("GET".equals(method)) {
+            return Operation.GET;
+        } else if (post && (path.indexOf('/', 1) < 0 || path.startsWith("/mkblk/") || path.startsWith("/bput/")
+                || path.startsWith("/mkfile/"))) {
+            // 表单上传和分片上传；其它带参数路径的 POST 是 rs 的 copy 、 move 、 chgm 等
+            return Operation.PUT;
+        }
+        return Operation.OTHER;
+    }
+
+    /**
+     * prefix 后只有一段 urlsafe base64 编码的 "bucket:key"
+     */
+    private static boolean isEntryOp(String path, String prefix) {
+        if (!path.startsWith(prefix) || path.length() == prefix.length()) {
+            return false;
+        }
+        for (int i = prefix.length(); i < path.length(); i++) {
+            char c = path.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_'
+                    || c == '=')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private QiniuLatencyHistogram hostHistogram(String host) {
+        QiniuLatencyHistogram h = hostLatency.get(host);
+        if (h == null) {
+            QiniuLatencyHistogram created = new QiniuLatencyHistogram();
+            h = hostLatency.putIfAbsent(host, created);
+            if (h == null) {
+                h = created;
+            }
+        }
+        return h;
+    }
+
+    void record(Operation op, String host, int statusCode, long micros, long sent, long received) {
+        operationLatency.get(op).recordMicros(micros);
+        hostHistogram(host).recordMicros(micros);
+        bytesSent.add(sent);
+        bytesReceived.add(received);
+        if (statusCode < 200 || statusCode >= 400) {
+            LongAdder n = errors.get(statusCode);
+            if (n == null) {
+                LongAdder created = new LongAdder();
+                n = errors.putIfAbsent(statusCode, created);
+                if (n == null) {
+                    n = created;
+                }
+            }
+            n.increment();
+        }
+        for (Listener l : listeners) {
+            try {
+                l.onRequest(op, host, statusCode, micros, sent, received);
+            } catch (RuntimeException e) {
+                // 监听器的错误不影响请求
+            }
+        }
+    }
+
+    /**
+     * 每个请求一个实例，记录开始时间、状态码和字节数， delegate 为 QiniuTransport 的连接统计
+     */
+    EventListener.Factory listenerFactory(final EventListener delegate) {
+        return new EventListener.Factory() {
+            @Override
+            public EventListener create(Call call) {
+                return new CallMetrics(call.request(), delegate);
+            }
+        };
+    }
+
+    private final class CallMetrics extends EventListener {
+        private final EventListener delegate;
+        private final Operation op;
+        private final String host;
+        private long start;
+        private int statusCode = -1;
+        private long sent;
+        private long received;
+        private boolean finished;
+
+        CallMetrics(Request request, EventListener delegate) {
+            this.delegate = delegate;
+            HttpUrl url = request.url();
+            this.op = operationOf(request);
+            this.host = url.host() + ":" + url.port();
+        }
+
+        @Override
+        public void callStart(Call call) {
+            delegate.callStart(call);
+            start = System.nanoTime();
+            inFlight.get(op).increment();
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress address, Proxy proxy) {
+            delegate.connectStart(call, address, proxy);
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            delegate.secureConnectStart(call);
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            delegate.connectionAcquired(call, connection);
+        }
+
+        @Override
+        public void requestBodyEnd(Call call, long byteCount) {
+            delegate.requestBodyEnd(call, byteCount);
+            sent += byteCount;
+        }
+
+        @Override
+        public void responseHeadersEnd(Call call, Response response) {
+            delegate.responseHeadersEnd(call, response);
+            statusCode = response.code();
+        }
+
+        @Override
+        public void responseBodyEnd(Call call, long byteCount) {
+            delegate.responseBodyEnd(call, byteCount);
+            received += byteCount;
+            // OkHttp 3.9 对没有响应体的请求（如 HEAD ）不调用 callEnd ，响应体结束即视为请求结束
+            finish();
+        }
+
+        @Override
+        public void callEnd(Call call) {
+            delegate.callEnd(call);
+            finish();
+        }
+
+        @Override
+        public void callFailed(Call call, IOException ioe) {
+            delegate.callFailed(call, ioe);
+            statusCode = -1;
+            finish();
+        }
+
+        private void finish() {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            inFlight.get(op).decrement();
+            record(op, host, statusCode, TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start), sent, received);
+        }
+    }
+}
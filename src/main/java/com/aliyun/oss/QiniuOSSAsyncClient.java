@@ -0,0 +1,327 @@
+package com.aliyun.oss;
+
+import com.aliyun.oss.model.GetObjectRequest;
+import com.aliyun.oss.model.ListObjectsRequest;
+import com.aliyun.oss.model.OSSObject;
+import com.aliyun.oss.model.ObjectListing;
+import com.aliyun.oss.model.ObjectMetadata;
+import com.aliyun.oss.model.PutObjectResult;
+import com.qiniu.common.QiniuException;
+import com.qiniu.storage.Configuration;
+import com.qiniu.storage.model.FileInfo;
+import com.qiniu.storage.model.FileListing;
+import com.qiniu.util.Auth;
+import com.qiniu.util.Json;
+import com.qiniu.util.StringMap;
+import com.qiniu.util.UrlSafeBase64;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.MediaType;
+import okhttp3.MultipartBody;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * QiniuOSSClient 的异步版本，每个方法立即返回 CompletableFuture ，不占用调用线程。
+ * 请求经 OkHttp enqueue 发出，与 QiniuOSSClient 共用 QiniuTransport 的下载、管理引擎，
+ * 同时进行的请求数受 config.dispatcherMaxRequests 、 dispatcherMaxRequestsPerHost 限制，超出的排队等待。
+ * future 在 OkHttp 的回调线程中完成，后续的 thenApply 等默认也在该线程执行，不要在其中做阻塞操作。
+ * 元数据缓存、上传凭证缓存与 QiniuOSSClient 共用。
+ * 失败时 future 以 OSSException （服务端返回错误，错误码为七牛状态码）或 ClientException （网络错误）结束；
+ * 取消 future 会取消对应的请求。
+ */
+public class QiniuOSSAsyncClient {
+    private static final MediaType FORM = MediaType.parse("application/x-www-form-urlencoded");
+    private static final MediaType OCTET_STREAM = MediaType.parse("application/octet-stream");
+    private static final byte[] EMPTY = new byte[0];
+
+    private final QiniuOSSClient client;
+
+    public QiniuOSSAsyncClient(QiniuOSSClient client) {
+        this.client = client;
+    }
+
+    /** 解析响应，成功时负责关闭 res （返回值持有 res 的除外），抛出异常时由调用方关闭 */
+    private interface ResponseHandler<T> {
+        T handle(okhttp3.Response res) throws IOException;
+    }
+
+    public CompletableFuture<OSSObject> getObject(String bucketName, String key) {
+        return getObject(new GetObjectRequest(bucketName, key));
+    }
+
+    /**
+     * 收到响应头后完成，返回的 OSSObject 持有 http 响应，内容流的读取是阻塞的，读完后需调用 close 释放连接
+     */
+    public CompletableFuture<OSSObject> getObject(final GetObjectRequest getObjectRequest) {
+        Request request;
+        try {
+            request = client.newGetObjectRequest(getObjectRequest);
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+        return call(client.getTransport().getDownloadEngine(), request, new ResponseHandler<OSSObject>() {
+            @Override
+            public OSSObject handle(okhttp3.Response res) {
+                return QiniuOSSClient.toOSSObject(res, getObjectRequest.getBucketName(), getObjectRequest.getKey());
+            }
+        });
+    }
+
+    /**
+     * 表单上传，适合小文件；大文件用 QiniuOSSClient.uploadFile 分块上传
+     */
+    public CompletableFuture<PutObjectResult> putObject(String bucketName, String key, byte[] content,
+                                                        ObjectMetadata metadata) {
+        return putObject(bucketName, key, RequestBody.create(mediaType(metadata), content), content.length);
+    }
+
+    /**
+     * 表单上传，文件在 OkHttp 的线程中边读边发，适合小文件；大文件用 QiniuOSSClient.uploadFile 分块上传
+     */
+    public CompletableFuture<PutObjectResult> putObject(String bucketName, String key, File file,
+                                                        ObjectMetadata metadata) {
+        return putObject(bucketName, key, RequestBody.create(mediaType(metadata), file), file.length());
+    }
+
+    private CompletableFuture<PutObjectResult> putObject(final String bucketName, final String key,
+                                                         RequestBody file, long size) {
+        Request request;
+        final QiniuUpHostSelector selector = client.getUpHostSelector();
+        final String upHost;
+        try {
+            String token = client.uploadToken(bucketName, key, size);
+            upHost = selector != null ? selector.select() : client.getConfig().upHost(token);
+            MultipartBody body = new MultipartBody.Builder()
+                    .setType(MultipartBody.FORM)
+                    .addFormDataPart("token", token)
+                    .addFormDataPart("key", key)
+                    .addFormDataPart("file", key, file)
+                    .build();
+            request = new Request.Builder()
+                    .url(upHost)
+                    .post(body)
+                    .addHeader("User-Agent", QiniuOssUtil.userAgent())
+                    .build();
+        } catch (QiniuException e) {
+            return failed(QiniuOSSClient.toAliException(e));
+        } catch (RuntimeException e) {
+            return failed(e);
+        }
+        return call(client.getClient(), request, new ResponseHandler<PutObjectResult>() {
+            @Override
+            public PutObjectResult handle(okhttp3.Response res) throws IOException {
+                if (!res.isSuccessful()) {
+                    throw QiniuOSSClient.toOSSException(res);
+                }
+                Map<?, ?> ret = Json.decode(res.body().string(), Map.class);
+                PutObjectResult result = new PutObjectResult();
+                result.setETag((String) ret.get("hash"));
+                result.setRequestId(res.header("X-Reqid"));
+                return result;
+            }
+        }, new BiConsumer<PutObjectResult, Throwable>() {
+            private final long start = System.currentTimeMillis();
+
+            @Override
+            public void accept(PutObjectResult r, Throwable t) {
+                client.invalidateMeta(bucketName, key);
+                if (selector != null) {
+                    // 4xx 是请求本身的问题，不算域名出错
+                    boolean ok = t == null || t instanceof OSSException
+                            && !String.valueOf(((OSSException) t).getErrorCode()).startsWith("5");
+                    selector.record(upHost, System.currentTimeMillis() - start, ok);
+                }
+            }
+        });
+    }
+
+    public CompletableFuture<Void> deleteObject(final String bucketName, final String key) {
+        Configuration config = client.getConfig();
+        Auth auth = client.getAuth();
+        String url = config.rsHost(auth.accessKey, bucketName) + "/delete/" + encodedEntry(bucketName, key);
+        Request request = new Request.Builder()
+                .url(url)
+                .post(RequestBody.create(FORM, EMPTY))
+                .headers(okhttp3.Headers.of(headers(auth.authorization(url, null, FORM.toString()))))
+                .addHeader("User-Agent", QiniuOssUtil.userAgent())
+                .build();
+        return call(client.getTransport().getManagementEngine(), request, new ResponseHandler<Void>() {
+            @Override
+            public Void handle(okhttp3.Response res) {
+                if (!res.isSuccessful()) {
+                    throw QiniuOSSClient.toOSSException(res);
+                }
+                res.close();
+                return null;
+            }
+        }, new BiConsumer<Void, Throwable>() {
+            @Override
+            public void accept(Void v, Throwable t) {
+                if (t == null) {
+                    client.cacheMeta(bucketName, key, null);
+                } else {
+                    client.invalidateMeta(bucketName, key);
+                }
+            }
+        });
+    }
+
+    /**
+     * 优先读取 QiniuOSSClient 的元数据缓存
+     */
+    public CompletableFuture<ObjectMetadata> getObjectMetadata(final String bucketName, final String key) {
+        QiniuMetaCache metaCache = client.getMetaCache();
+        QiniuMetaCache.Entry cached = metaCache == null ? null : metaCache.get(bucketName, key);
+        if (cached != null) {
+            if (cached.info == null) {
+                return failed(QiniuOSSClient.noSuchKey(bucketName, key));
+            }
+            return CompletableFuture.completedFuture(QiniuOSSClient.toObjectMetadata(cached.info));
+        }
+
+        final long since = client.metaVersion();
+        Configuration config = client.getConfig();
+        Auth auth = client.getAuth();
+        String url = config.rsHost(auth.accessKey, bucketName) + "/stat/" + encodedEntry(bucketName, key);
+        Request request = new Request.Builder()
+                .url(url)
+                .headers(okhttp3.Headers.of(headers(auth.authorization(url))))
+                .addHeader("User-Agent", QiniuOssUtil.userAgent())
+                .build();
+        return call(client.getTransport().getManagementEngine(), request, new ResponseHandler<ObjectMetadata>() {
+            @Override
+            public ObjectMetadata handle(okhttp3.Response res) throws IOException {
+                if (!res.isSuccessful()) {
+                    if (res.code() == 612) {
+                        client.cacheLoadedMeta(bucketName, key, null, since);
+                        res.close();
+                        throw QiniuOSSClient.noSuchKey(bucketName, key);
+                    }
+                    throw QiniuOSSClient.toOSSException(res);
+                }
+                FileInfo info = Json.decode(res.body().string(), FileInfo.class);
+                client.cacheLoadedMeta(bucketName, key, info, since);
+                return QiniuOSSClient.toObjectMetadata(info);
+            }
+        });
+    }
+
+    public CompletableFuture<ObjectListing> listObjects(String bucketName, String prefix) {
+        return listObjects(new ListObjectsRequest(bucketName, prefix, null, null, null));
+    }
+
+    /**
+     * 与 QiniuOSSClient.listObjects 相同， maxKeys 默认 200
+     */
+    public CompletableFuture<ObjectListing> listObjects(final ListObjectsRequest p) {
+        final int max = p.getMaxKeys() == null ? 200 : p.getMaxKeys().intValue();
+        Configuration config = client.getConfig();
+        Auth auth = client.getAuth();
+        StringMap params = new StringMap().put("bucket", p.getBucketName()).putNotEmpty("marker", p.getMarker())
+                .putNotEmpty("prefix", p.getPrefix()).putNotEmpty("delimiter", p.getDelimiter())
+                .putWhen("limit", max, max > 0);
+        String url = config.rsfHost(auth.accessKey, p.getBucketName()) + "/list?" + params.formString();
+        Request request = new Request.Builder()
+                .url(url)
+                .headers(okhttp3.Headers.of(headers(auth.authorization(url))))
+                .addHeader("User-Agent", QiniuOssUtil.userAgent())
+                .build();
+        return call(client.getTransport().getManagementEngine(), request, new ResponseHandler<ObjectListing>() {
+            @Override
+            public ObjectListing handle(okhttp3.Response res) throws IOException {
+                if (!res.isSuccessful()) {
+                    throw QiniuOSSClient.toOSSException(res);
+                }
+                FileListing files = Json.decode(res.body().string(), FileListing.class);
+                if (files.items == null) {
+                    files.items = new FileInfo[0];
+                }
+                return QiniuOSSClient.toObjectListing(p, max, files);
+            }
+        });
+    }
+
+    private <T> CompletableFuture<T> call(Call.Factory engine, Request request, ResponseHandler<T> handler) {
+        return call(engine, request, handler, null);
+    }
+
+    /**
+     * beforeComplete 在 future 完成之前调用，用于更新缓存，保证后续阶段看到的是更新后的缓存
+     */
+    private <T> CompletableFuture<T> call(Call.Factory engine, Request request, final ResponseHandler<T> handler,
+                                          final BiConsumer<? super T, ? super Throwable> beforeComplete) {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        final Call call = engine.newCall(request);
+        call.enqueue(new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                complete(null, new ClientException(e.getMessage(), e));
+            }
+
+            @Override
+            public void onResponse(Call call, okhttp3.Response res) {
+                T value;
+                try {
+                    value = handler.handle(res);
+                } catch (Throwable t) {
+                    res.close();
+                    complete(null, t instanceof IOException ? new ClientException(t.getMessage(), t) : t);
+                    return;
+                }
+                complete(value, null);
+            }
+
+            private void complete(T value, Throwable t) {
+                if (beforeComplete != null) {
+                    beforeComplete.accept(value, t);
+                }
+                if (t == null) {
+                    future.complete(value);
+                } else {
+                    future.completeExceptionally(t);
+                }
+            }
+        });
+        future.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T v, Throwable t) {
+                if (future.isCancelled()) {
+                    call.cancel();
+                }
+            }
+        });
+        return future;
+    }
+
+    private static <T> CompletableFuture<T> failed(Throwable t) {
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(t);
+        return future;
+    }
+
+    private static MediaType mediaType(ObjectMetadata metadata) {
+        String mime = metadata == null ? null : metadata.getContentType();
+        MediaType type = mime == null ? null : MediaType.parse(mime);
+        return type == null ? OCTET_STREAM : type;
+    }
+
+    private static String encodedEntry(String bucketName, String key) {
+        return UrlSafeBase64.encodeToString(bucketName + ":" + key);
+    }
+
+    private static Map<String, String> headers(StringMap map) {
+        Map<String, String> ret = new HashMap<String, String>();
+        for (Map.Entry<String, Object> e : map.map().entrySet()) {
+            ret.put(e.getKey(), e.getValue().toString());
+        }
+        return ret;
+    }
+}
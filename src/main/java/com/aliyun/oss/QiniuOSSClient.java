@@ -24,6 +24,8 @@ import com.aliyun.oss.common.auth.CredentialsProvider;
 import com.aliyun.oss.common.comm.ResponseMessage;
 import com.aliyun.oss.common.utils.HttpUtil;
 import com.aliyun.oss.common.utils.VersionInfoUtils;
+import com.aliyun.oss.internal.OSSHeaders;
+import com.aliyun.oss.internal.OSSUtils;
 import com.aliyun.oss.model.*;
 import com.aliyun.oss.model.SetBucketCORSRequest.CORSRule;
 import com.qiniu.common.AutoZone;
@@ -33,22 +35,20 @@ import com.qiniu.storage.BucketManager;
 import com.qiniu.storage.Configuration;
 import com.qiniu.storage.UploadManager;
 import com.qiniu.storage.model.AclType;
+import com.qiniu.storage.model.BatchStatus;
 import com.qiniu.storage.model.FileInfo;
 import com.qiniu.storage.model.FileListing;
 import com.qiniu.storage.model.IndexPageType;
 import com.qiniu.util.Auth;
 import com.qiniu.util.StringUtils;
-import okhttp3.Authenticator;
 import okhttp3.*;
 
 import java.io.*;
 import java.net.*;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
 
 import static com.aliyun.oss.common.utils.IOUtils.safeClose;
 import static com.aliyun.oss.common.utils.LogUtils.logException;
-import static com.aliyun.oss.internal.OSSConstants.DEFAULT_BUFFER_SIZE;
 import static com.aliyun.oss.internal.OSSUtils.OSS_RESOURCE_MANAGER;
 
 // 若部分代码要求传入 OSSClient ，可修改为 public class QiniuOSSClient extends OSSClient 以满足语法要求
@@ -68,6 +68,19 @@ public class QiniuOSSClient implements OSS {
     private UploadManager _uploadManager;
     // 空间绑定的域名
     private String host;
+    private int streamUploadTaskNum = 2;
+    private QiniuFsyncPolicy downloadFsyncPolicy = QiniuFsyncPolicy.NONE;
+    private int batchSize = QiniuBatchRunner.MAX_BATCH_SIZE;
+    private int batchTaskNum = 4;
+    // 默认不缓存
+    private QiniuMetaCache metaCache;
+    private QiniuBucketInfoCache bucketInfoCache;
+    private volatile QiniuUrlSigner urlSigner;
+    private volatile QiniuUploadTokenCache uploadTokenCache;
+    // 默认不对冲
+    private volatile QiniuHedgingPolicy hedgingPolicy;
+    // 默认按 config 先主后备
+    private volatile QiniuUpHostSelector upHostSelector;
 
     public QiniuOSSClient(String accessKeyId, String secretAccessKey, String host, Configuration config) {
         if (config.zone == null || config.zone instanceof AutoZone ||
@@ -75,21 +88,43 @@ public class QiniuOSSClient implements OSS {
             throw new IllegalArgumentException("region must be set-up or not a fix zone");
         }
         this.auth = Auth.create(accessKeyId, secretAccessKey);
+        this.urlSigner = new QiniuUrlSigner(accessKeyId, secretAccessKey, 60, 10000);
+        this.uploadTokenCache = new QiniuUploadTokenCache(auth, 3600, 1800, 10000);
         this.config = config;
         this.host = host;
     }
 
 
+    Auth getAuth() {
+        return auth;
+    }
+
+    Configuration getConfig() {
+        return config;
+    }
+
+    /**
+     * 与其他 QiniuOSSClient 、 QiniuOssUtil 共用 transport 的连接池
+     */
+    public QiniuOSSClient(String accessKeyId, String secretAccessKey, String host, QiniuTransport transport) {
+        this(accessKeyId, secretAccessKey, host, transport.getConfig());
+        this.transport = transport;
+    }
+
     private String getRegion() {
         return config.zone.getRegion();
     }
 
     private void throwAliException(QiniuException e) {
+        throw toAliException(e);
+    }
+
+    static RuntimeException toAliException(QiniuException e) {
         //TODO
         if (e.code() > -1) {
-            throw new OSSException(e.getMessage());
+            return new OSSException(e.getMessage());
         }
-        throw new ClientException(e.getMessage());
+        return new ClientException(e.getMessage());
     }
 
     @Override
@@ -109,6 +144,7 @@ public class QiniuOSSClient implements OSS {
             // TODO 不支持创建时指定是否低频，是否私有
             // https://developer.qiniu.com/kodo/api/1382/mkbucketv2
             getBucketManager().createBucket(bucketName, region);
+            invalidateBucketInfo(bucketName);
             Bucket bkt = new Bucket(bucketName);
             bkt.setLocation(region);
             bkt.setCreationDate(new Date());
@@ -132,7 +168,11 @@ public class QiniuOSSClient implements OSS {
     public void deleteBucket(String bucketName) throws OSSException, ClientException {
         try {
             if (isEmptyBucket(bucketName)) {
-                getBucketManager().deleteBucket(bucketName);
+                try {
+                    getBucketManager().deleteBucket(bucketName);
+                } finally {
+                    invalidateBucketInfo(bucketName);
+                }
             } else {
                 throw new OSSException("BucketNotEmpty: " + bucketName);
             }
@@ -144,6 +184,9 @@ public class QiniuOSSClient implements OSS {
         }
     }
 
+    /**
+     * 空间内容随时变化，不缓存
+     */
     public boolean isEmptyBucket(String bucketName) throws OSSException, ClientException {
         ObjectListing objs = listObjects(new ListObjectsRequest(bucketName, null, null, null, 2));
         return objs.getObjectSummaries().size() == 0;
@@ -194,7 +237,9 @@ public class QiniuOSSClient implements OSS {
     public void deleteObject(String bucketName, String key) throws OSSException, ClientException {
         try {
             getBucketManager().delete(bucketName, key);
+            cacheMeta(bucketName, key, null);
         } catch (QiniuException e) {
+            invalidateMeta(bucketName, key);
             throwAliException(e);
         }
     }
@@ -204,29 +249,104 @@ public class QiniuOSSClient implements OSS {
         deleteObject(genericRequest.getBucketName(), genericRequest.getKey());
     }
 
+    /**
+     * 按七牛 batch 的上限分批， batchTaskNum 批同时删除，返回 QiniuDeleteObjectsResult 。
+     * DeleteObjectsRequest 限制一次最多 1000 个 key ，更多的 key 用 deleteObjects(bucketName, keys, quiet)
+     */
     @Override
     public DeleteObjectsResult deleteObjects(DeleteObjectsRequest req)
             throws OSSException, ClientException {
-        List<String> keys = req.getKeys();
-        if (keys.size() == 0) {
-            return new DeleteObjectsResult();
-        }
-        BucketManager.BatchOperations opt = new BucketManager.BatchOperations();
-        for (String key : keys) {
-            opt.addDeleteOp(req.getBucketName(), key);
+        return deleteObjects(req.getBucketName(), req.getKeys(), req.isQuiet());
+    }
+
+    /**
+     * key 数量不受限制。不存在的 key 视为删除成功；其它失败的 key （含整批请求失败的）放在 getFailedObjects 中，可以只重试这部分
+     */
+    public QiniuDeleteObjectsResult deleteObjects(String bucketName, List<String> keys, boolean quiet)
+            throws OSSException, ClientException {
+        QiniuDeleteObjectsResult ret = new QiniuDeleteObjectsResult();
+        if (keys == null || keys.size() == 0) {
+            return ret;
         }
         try {
-            Response res = getBucketManager().batch(opt);
-            DeleteObjectsResult ret = new DeleteObjectsResult();
-            // TODO 组装响应结果 // 不要求实现，只实现了删除功能，没有组装响应结果
-            res.close();
+            BatchStatus[] status = QiniuBatchRunner.run(getBucketManager(), bucketName, keys,
+                    QiniuBatchRunner.DELETE, batchSize, batchTaskNum);
+            List<String> deleted = ret.getDeletedObjects();
+            for (int i = 0; i < status.length; i++) {
+                String key = keys.get(i);
+                int code = status[i].code;
+                // 612: 文件不存在
+                if (code == 200 || code == 612) {
+                    cacheMeta(bucketName, key, null);
+                    if (!quiet) {
+                        deleted.add(key);
+                    }
+                } else {
+                    invalidateMeta(bucketName, key);
+                    String error = status[i].data == null ? null : status[i].data.error;
+                    ret.addFailedObject(key, code + ": " + error);
+                }
+            }
             return ret;
         } catch (QiniuException e) {
             throwAliException(e);
             return null;
         }
-//        // 不要求实现，需要的话，可以考虑 batch 删除
-//        throw new UnsupportedOperationException(unsupportedMsg);
+    }
+
+    /**
+     * 批量操作每批的 key 数，不超过 1000
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * 批量操作同时进行的批数
+     */
+    public void setBatchTaskNum(int batchTaskNum) {
+        this.batchTaskNum = batchTaskNum;
+    }
+
+    /**
+     * 设置元信息缓存， getObjectMetadata 、 batchStat 、 doesObjectExist 等先查缓存， null 表示不缓存
+     */
+    public void setMetaCache(QiniuMetaCache metaCache) {
+        this.metaCache = metaCache;
+    }
+
+    public QiniuMetaCache getMetaCache() {
+        return metaCache;
+    }
+
+    void cacheMeta(String bucketName, String key, FileInfo info) {
+        if (metaCache != null) {
+            metaCache.put(bucketName, key, info);
+        }
+    }
+
+    void invalidateMeta(String bucketName, String key) {
+        if (metaCache != null) {
+            metaCache.invalidate(bucketName, key);
+        }
+    }
+
+    /**
+     * stat 之前取，传给 cacheLoadedMeta
+     */
+    long metaVersion() {
+        QiniuMetaCache cache = metaCache;
+        return cache == null ? 0 : cache.version();
+    }
+
+    /**
+     * 写入 stat 的结果， stat 开始后同一个 key 上传、删除过时不写入
+     */
+    void cacheLoadedMeta(String bucketName, String key, FileInfo info, long since) {
+        QiniuMetaCache cache = metaCache;
+        if (cache != null) {
+            cache.putLoaded(bucketName, key, info, since);
+        }
     }
 
 
@@ -234,32 +354,137 @@ public class QiniuOSSClient implements OSS {
     @Override
     public PutObjectResult putObject(String bucketName, String key, InputStream input)
             throws OSSException, ClientException {
-        // 不要求实现
-        throw new UnsupportedOperationException(unsupportedMsg);
+        return putObject(bucketName, key, input, null);
     }
 
+    /**
+     * 流式上传，不需要先把输入流写到临时文件或内存。
+     * metadata 中给出了 Content-Length 且不超过 config.putThreshold 时，读入内存后表单上传；
+     * 否则按 4M 块边读边传，同时最多 streamUploadTaskNum 个块在上传。
+     */
     @Override
     public PutObjectResult putObject(String bucketName, String key, InputStream input, ObjectMetadata metadata)
             throws OSSException, ClientException {
-        // 不要求实现
-        throw new UnsupportedOperationException(unsupportedMsg);
+        String mime = metadata == null ? null : metadata.getContentType();
+        Object length = metadata == null ? null : metadata.getRawMetadata().get(OSSHeaders.CONTENT_LENGTH);
+        String token = uploadToken(bucketName, key, length == null ? -1 : metadata.getContentLength());
+        QiniuUpHostSelector selector = upHostSelector;
+        try {
+            Response res;
+            if (length != null && metadata.getContentLength() <= config.putThreshold) {
+                byte[] content = readContent(input, (int) metadata.getContentLength());
+                res = selector == null ? getUploadManager().put(content, key, token, null, mime, false)
+                        : new QiniuBlockUploader(getClient(), config, token, 0, selector)
+                        .formUpload(content, content.length, key, mime);
+            } else {
+                QiniuBlockUploader uploader = new QiniuBlockUploader(getClient(), config, token, 0, selector);
+                res = uploader.uploadStream(input, key, mime, streamUploadTaskNum);
+            }
+            return toPutObjectResult(res);
+        } catch (QiniuException e) {
+            throwAliException(e);
+        } finally {
+            invalidateMeta(bucketName, key);
+        }
+        return null;
+    }
+
+    /**
+     * 表单上传的小文件用缓存的凭证；分块上传耗时不定，且一次上传只生成一个凭证，每次生成完整有效期的新凭证。
+     * size 为 -1 表示长度未知
+     */
+    String uploadToken(String bucketName, String key, long size) {
+        QiniuUploadTokenCache cache = uploadTokenCache;
+        if (cache != null && size >= 0 && size <= config.putThreshold) {
+            return cache.get(bucketName, key);
+        }
+        return auth.uploadToken(bucketName, key);
+    }
+
+    /**
+     * 替换上传凭证缓存，传 null 关闭缓存。默认凭证有效期 1 小时，剩余不足半小时时重新生成，最多 10000 个
+     */
+    public void setUploadTokenCache(QiniuUploadTokenCache uploadTokenCache) {
+        this.uploadTokenCache = uploadTokenCache;
+    }
+
+    public QiniuUploadTokenCache getUploadTokenCache() {
+        return uploadTokenCache;
+    }
+
+    static byte[] readFile(File file) throws QiniuException {
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            return readContent(in, (int) file.length());
+        } catch (IOException e) {
+            throw new QiniuException(e);
+        } finally {
+            safeClose(in);
+        }
+    }
+
+    private static byte[] readContent(InputStream input, int length) throws QiniuException {
+        byte[] content = new byte[length];
+        int len = 0;
+        int n;
+        try {
+            while (len < length && (n = input.read(content, len, length - len)) != -1) {
+                len += n;
+            }
+        } catch (IOException e) {
+            throw new QiniuException(e);
+        }
+        if (len != length) {
+            throw new QiniuException(new IOException("Content-Length is " + length + ", but only read " + len));
+        }
+        return content;
+    }
+
+    /**
+     * 上传域名选择器，设置后 putObject 、 uploadFile 不再经 SDK 的 UploadManager ，
+     * 表单上传和分块上传都按选择器挑域名，失败时换得分次好的域名重试。 null 表示按 config 先主后备
+     */
+    public void setUpHostSelector(QiniuUpHostSelector upHostSelector) {
+        this.upHostSelector = upHostSelector;
+    }
+
+    public QiniuUpHostSelector getUpHostSelector() {
+        return upHostSelector;
+    }
+
+    /**
+     * 流式上传时同时上传的块数，每个块占用 4M 内存
+     */
+    public void setStreamUploadTaskNum(int taskNum) {
+        this.streamUploadTaskNum = Math.max(1, taskNum);
+    }
+
+    private PutObjectResult toPutObjectResult(Response res) throws QiniuException {
+        PutObjectResult objres = new PutObjectResult();
+        Map<String, String> putRet = res.jsonToObject(Map.class);
+        objres.setETag(putRet.get("hash")); //TODO 是 文件 hash ，还是响应头信息
+        objres.setCallbackResponseBody(res.bodyStream());
+        objres.setRequestId(res.reqId);
+
+        res.close();
+        return objres;
     }
 
 
     public PutObjectResult putObject(String bucketName, String key, byte[] content) {
-        String token = auth.uploadToken(bucketName, key);
+        // 字节数组总是表单上传
+        String token = uploadToken(bucketName, key, content.length);
+        QiniuUpHostSelector selector = upHostSelector;
         try {
-            Response res = getUploadManager().put(content, key, token);
-            PutObjectResult objres = new PutObjectResult();
-            Map<String, String> putRet = res.jsonToObject(Map.class);
-            objres.setETag(putRet.get("hash")); //TODO 是 文件 hash ，还是响应头信息
-            objres.setCallbackResponseBody(res.bodyStream());
-            objres.setRequestId(res.reqId);
-
-            res.close();
-            return objres;
+            Response res = selector == null ? getUploadManager().put(content, key, token)
+                    : new QiniuBlockUploader(getClient(), config, token, 0, selector)
+                    .formUpload(content, content.length, key, null);
+            return toPutObjectResult(res);
         } catch (QiniuException e) {
             throwAliException(e);
+        } finally {
+            invalidateMeta(bucketName, key);
         }
         return null;
     }
@@ -267,24 +492,29 @@ public class QiniuOSSClient implements OSS {
      @Override
     public PutObjectResult putObject(String bucketName, String key, File file, ObjectMetadata metadata)
             throws OSSException, ClientException {
-        String token = auth.uploadToken(bucketName, key);
+        String token = uploadToken(bucketName, key, file.length());
         //TODO 先忽略 metadata ，还不知道怎么用
+        QiniuUpHostSelector selector = upHostSelector;
         try {
-            Response res = getUploadManager().put(file, key, token, null, null, true);
-
-            PutObjectResult objres = new PutObjectResult();
-            Map<String, String> putRet = res.jsonToObject(Map.class);
-            objres.setETag(putRet.get("hash")); //TODO 是 文件 hash ，还是响应头信息
-            objres.setCallbackResponseBody(res.bodyStream());
-            objres.setRequestId(res.reqId);
+            Response res;
+            if (selector == null) {
+                res = getUploadManager().put(file, key, token, null, null, true);
+            } else if (file.length() <= config.putThreshold) {
+                byte[] content = readFile(file);
+                res = new QiniuBlockUploader(getClient(), config, token, 0, selector)
+                        .formUpload(content, content.length, key, null);
+            } else {
+                res = new QiniuBlockUploader(getClient(), config, token, 0, selector)
+                        .uploadFile(file, key, null, streamUploadTaskNum, null);
+            }
 //            objres.setServerCRC();
 //            objres.setClientCRC();
 //            objres.setResponse(); //TODO 不设置会有什么影响
-
-            res.close();
-            return objres;
+            return toPutObjectResult(res);
         } catch (QiniuException e) {
             throwAliException(e);
+        } finally {
+            invalidateMeta(bucketName, key);
         }
         return null;
     }
@@ -333,52 +563,160 @@ public class QiniuOSSClient implements OSS {
 
     @Override
     public OSSObject getObject(String bucketName, String key) throws OSSException, ClientException {
-        String url = genUrlWithToken(bucketName, key);
+        return getObject(new GetObjectRequest(bucketName, key));
+    }
 
-        Request request = new Request.Builder()
+    /**
+     * 返回的 OSSObject 持有 http 响应，内容流读完后需调用 close 释放连接。
+     * 支持 GetObjectRequest 的 range ， ObjectMetadata 直接取自响应头，不再额外 stat 。
+     */
+    @Override
+    public OSSObject getObject(GetObjectRequest getObjectRequest) throws OSSException, ClientException {
+        Request request = newGetObjectRequest(getObjectRequest);
+        Call.Factory engine = getTransport().getDownloadEngine();
+        QiniuHedgingPolicy hedging = hedgingPolicy;
+        okhttp3.Response res;
+        try {
+            res = hedging == null ? engine.newCall(request).execute() : hedging.execute(engine, request, config);
+        } catch (IOException e) {
+            throw new OSSException(e.getMessage(), e);
+        }
+        return toOSSObject(res, getObjectRequest.getBucketName(), getObjectRequest.getKey());
+    }
+
+    Request newGetObjectRequest(GetObjectRequest getObjectRequest) {
+        String url = genUrlWithToken(getObjectRequest.getBucketName(), getObjectRequest.getKey());
+        Request.Builder builder = new Request.Builder()
                 .url(url)
-                .addHeader("User-Agent", VersionInfoUtils.getDefaultUserAgent())
-                .build();
+                .addHeader("User-Agent", VersionInfoUtils.getDefaultUserAgent());
+        String range = rangeHeader(getObjectRequest.getRange());
+        if (range != null) {
+            builder.addHeader("Range", range);
+        }
+        return builder.build();
+    }
 
-        try {
-            okhttp3.Response res = getClient().newCall(request).execute();
+    /**
+     * 成功时返回持有 res 的 OSSObject ，否则关闭 res 抛出 OSSException
+     */
+    static OSSObject toOSSObject(okhttp3.Response res, String bucketName, String key) {
+        if (!res.isSuccessful()) {
+            throw toOSSException(res);
+        }
+        QiniuObject obj = new QiniuObject(res);
+        obj.setBucketName(bucketName);
+        obj.setKey(key);
+        obj.setRequestId(res.header("X-Reqid"));
+        obj.setObjectMetadata(toObjectMetadata(res));
+        obj.setObjectContent(res.body().byteStream());
+        return obj;
+    }
 
-            if (!res.isSuccessful()) {
-                byte[] b = res.body().source().readByteArray(Math.min(512, res.body().contentLength()));
-                String rawResponseError = new String(b);
-                res.close();
+    /**
+     * 读取最多 512 字节的错误信息，关闭 res
+     */
+    static OSSException toOSSException(okhttp3.Response res) {
+        String rawResponseError = errorBody(res);
+        res.close();
+        return new OSSException(res.message(), res.code() + "", res.header("X-Reqid"),
+                res.request().url().toString(), null, null, res.request().method(), rawResponseError);
+    }
 
-                throw new OSSException(res.message(), res.code() + "", res.header("X-Reqid"),
-                        url, null, null, "GET", rawResponseError);
-            }
-            OSSObject obj = new OSSObject();
-            obj.setBucketName(bucketName);
-            obj.setKey(key);
-            obj.setObjectMetadata(new ObjectMetadata()); // TODO ObjectMetadata  怎么获取？应该是什么数据
-            obj.setObjectContent(res.body().byteStream());
-
-            res.close();
-            return obj;
+    /**
+     * 文件不存在（ 612 ），实时 stat 与缓存的不存在抛同样的异常
+     */
+    static OSSException noSuchKey(String bucketName, String key) {
+        return new OSSException("no such file or directory, bucket: " + bucketName + ", key: " + key,
+                "612", null, null, null, null, null);
+    }
+
+    /** 与阿里一致： -1 表示该端不限 */
+    private static String rangeHeader(long[] range) {
+        if (range == null || range.length != 2 || (range[0] < 0 && range[1] < 0)) {
+            return null;
+        }
+        if (range[0] < 0) {
+            return "bytes=-" + range[1];
+        }
+        if (range[1] < 0) {
+            return "bytes=" + range[0] + "-";
+        }
+        return "bytes=" + range[0] + "-" + range[1];
+    }
+
+    private static ObjectMetadata toObjectMetadata(okhttp3.Response res) {
+        ObjectMetadata metadata = new ObjectMetadata();
+        long length = res.body().contentLength();
+        if (length >= 0) {
+            metadata.setContentLength(length);
+        }
+        String contentType = res.header("Content-Type");
+        if (contentType != null) {
+            metadata.setContentType(contentType);
+        }
+        String etag = res.header("ETag");
+        if (etag != null) {
+            metadata.setHeader(OSSHeaders.ETAG, OSSUtils.trimQuotes(etag));
+        }
+        Date lastModified = res.headers().getDate("Last-Modified");
+        if (lastModified != null) {
+            metadata.setLastModified(lastModified);
+        }
+        String contentRange = res.header("Content-Range");
+        if (contentRange != null) {
+            metadata.setHeader("Content-Range", contentRange);
+        }
+        return metadata;
+    }
+
+    private static String errorBody(okhttp3.Response res) {
+        try {
+            // 最多读 512 字节，长度未知时 request 读到流结束为止
+            okio.BufferedSource source = res.body().source();
+            source.request(512);
+            return source.buffer().readUtf8(Math.min(512, source.buffer().size()));
         } catch (IOException e) {
-            throw new OSSException(e.getMessage(), e);
+            return "";
         }
-//        return null;
     }
 
+    /**
+     * 持有 http 响应的 OSSObject ， close 关闭内容流即释放连接， forcedClose 直接断开
+     */
+    private static class QiniuObject extends OSSObject {
+        final okhttp3.Response response;
+
+        QiniuObject(okhttp3.Response response) {
+            this.response = response;
+        }
+
+        @Override
+        public void forcedClose() throws IOException {
+            response.close();
+        }
+    }
+
+    /**
+     * getObject 的对冲与故障转移策略， null 表示只发一个请求
+     */
+    public void setHedgingPolicy(QiniuHedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+    public QiniuHedgingPolicy getHedgingPolicy() {
+        return hedgingPolicy;
+    }
+
+    /**
+     * 响应体经堆外缓冲区直接写入 FileChannel ，长度已知时预分配文件，按 downloadFsyncPolicy 刷盘
+     */
     @Override
     public ObjectMetadata getObject(GetObjectRequest getObjectRequest, File file)
             throws OSSException, ClientException {
-        OSSObject ossObject = getObject(getObjectRequest.getBucketName(), getObjectRequest.getKey());
-
-        OutputStream outputStream = null;
+        QiniuObject ossObject = (QiniuObject) getObject(getObjectRequest);
         try {
-            outputStream = new BufferedOutputStream(new FileOutputStream(file));
-            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-            int bytesRead;
-            while ((bytesRead = ossObject.getObjectContent().read(buffer)) != -1) {
-                outputStream.write(buffer, 0, bytesRead);
-            }
-            outputStream.flush();
+            ResponseBody body = ossObject.response.body();
+            QiniuFileWriter.write(body.source(), body.contentLength(), file, downloadFsyncPolicy);
 
             // TODO 没有校验 etag
             return ossObject.getObjectMetadata();
@@ -386,14 +724,15 @@ public class QiniuOSSClient implements OSS {
             logException("Cannot read object content stream: ", ex);
             throw new ClientException(OSS_RESOURCE_MANAGER.getString("CannotReadContentStream"), ex);
         } finally {
-            safeClose(outputStream);
             safeClose(ossObject.getObjectContent());
         }
     }
 
-    @Override
-    public OSSObject getObject(GetObjectRequest getObjectRequest) throws OSSException, ClientException {
-        return getObject(getObjectRequest.getBucketName(), getObjectRequest.getKey());
+    /**
+     * getObject 下载到文件后的刷盘策略，默认不主动刷盘
+     */
+    public void setDownloadFsyncPolicy(QiniuFsyncPolicy policy) {
+        this.downloadFsyncPolicy = policy == null ? QiniuFsyncPolicy.NONE : policy;
     }
 
     @Override
@@ -420,49 +759,124 @@ public class QiniuOSSClient implements OSS {
             int max = p.getMaxKeys() == null ? 200 : p.getMaxKeys().intValue();
             FileListing files = getBucketManager().listFiles(p.getBucketName(), p.getPrefix(),
                     p.getMarker(), max, p.getDelimiter());
-            ObjectListing objs = new ObjectListing();
-
-            objs.setBucketName(p.getBucketName());
-            objs.setPrefix(p.getPrefix());
-            objs.setMarker(p.getMarker());
-            objs.setMaxKeys(max);
-            objs.setDelimiter(p.getDelimiter());
-
-            objs.setTruncated(!files.isEOF());
-            objs.setNextMarker(files.marker);
-            if (files.commonPrefixes != null) {
-                objs.setCommonPrefixes(Arrays.asList(files.commonPrefixes));
-            }
+            return toObjectListing(p, max, files);
+        } catch (QiniuException e) {
+            throwAliException(e);
+            return null;
+        }
+    }
 
-            List<OSSObjectSummary> objectSummaries = new ArrayList<OSSObjectSummary>(files.items.length);
-            for (int i = 0; i < files.items.length; i++) {
-                FileInfo info = files.items[i];
-                OSSObjectSummary obj = new OSSObjectSummary();
-                // 0 表示标准存储；1 表示低频存储
-                StorageClass storageClass = info.type == 0 ? StorageClass.Standard : StorageClass.IA;
-                obj.setStorageClass(storageClass.toString());
-                obj.setSize(info.fsize);
-                obj.setLastModified(new Date(info.putTime / 10000000)); // 百纳秒， 7 个 0
-                obj.setKey(info.key);
-                obj.setETag(info.hash);
-                // 0 公开  1 私有
-                //TODO no owner
-                objectSummaries.add(i, obj);
+    static ObjectListing toObjectListing(ListObjectsRequest p, int max, FileListing files) {
+        ObjectListing objs = new ObjectListing();
+
+        objs.setBucketName(p.getBucketName());
+        objs.setPrefix(p.getPrefix());
+        objs.setMarker(p.getMarker());
+        objs.setMaxKeys(max);
+        objs.setDelimiter(p.getDelimiter());
+
+        objs.setTruncated(!files.isEOF());
+        objs.setNextMarker(files.marker);
+        if (files.commonPrefixes != null) {
+            objs.setCommonPrefixes(Arrays.asList(files.commonPrefixes));
+        }
+
+        List<OSSObjectSummary> objectSummaries = new ArrayList<OSSObjectSummary>(files.items.length);
+        for (int i = 0; i < files.items.length; i++) {
+            FileInfo info = files.items[i];
+            OSSObjectSummary obj = new OSSObjectSummary();
+            // 0 表示标准存储；1 表示低频存储
+            StorageClass storageClass = info.type == 0 ? StorageClass.Standard : StorageClass.IA;
+            obj.setStorageClass(storageClass.toString());
+            obj.setSize(info.fsize);
+            obj.setLastModified(new Date(info.putTime / 10000000)); // 百纳秒， 7 个 0
+            obj.setKey(info.key);
+            obj.setETag(info.hash);
+            // 0 公开  1 私有
+            //TODO no owner
+            objectSummaries.add(i, obj);
+        }
+        objs.setObjectSummaries(objectSummaries);
+
+        return objs;
+    }
+
+    /**
+     * 列举 prefix 下全部文件，自动翻页，后台预取下一页
+     */
+    public QiniuListingIterator listAllObjects(String bucketName, String prefix) throws OSSException, ClientException {
+        return listAllObjects(new ListObjectsRequest(bucketName, prefix, null, null, 1000), 2);
+    }
+
+    /**
+     * 从 request 的 marker 开始自动翻页， maxKeys 为每页数量（默认 1000 ），最多提前拉取 prefetchPages 页。
+     * 中途停止遍历时需要调用 close
+     */
+    public QiniuListingIterator listAllObjects(final ListObjectsRequest request, int prefetchPages)
+            throws OSSException, ClientException {
+        final int max = request.getMaxKeys() == null ? 1000 : request.getMaxKeys().intValue();
+        return new QiniuListingIterator(new QiniuListingIterator.PageLoader() {
+            @Override
+            public ObjectListing load(String marker) {
+                return listObjects(new ListObjectsRequest(request.getBucketName(), request.getPrefix(), marker,
+                        request.getDelimiter(), max));
             }
-            objs.setObjectSummaries(objectSummaries);
+        }, request.getMarker(), prefetchPages);
+    }
+
+    /**
+     * 并发列举 prefix 下全部文件。按 delimiter （默认 "/" ）翻页列出一级目录（ commonPrefixes ），每列出一个目录就作为一个分片开始列举，
+     * taskNum 个线程同时列举；不在任何目录下的 key 由翻页的线程边列边输出。 sorted 为 true 时按 key 的字典序输出，否则按拉取到的先后输出。
+     * 没有目录的空间只能顺序列举，可以改用按前缀分片的 listObjectsParallel ，如按 key 的首字符分片。
+     * 中途停止遍历时需要调用 close
+     */
+    public QiniuParallelListing listObjectsParallel(String bucketName, String prefix, String delimiter,
+                                                    boolean sorted, int taskNum)
+            throws OSSException, ClientException {
+        if (delimiter == null || delimiter.length() == 0) {
+            delimiter = "/";
+        }
+        return new QiniuParallelListing(shardLoader(bucketName), prefix, delimiter, sorted, taskNum);
+    }
+
+    /**
+     * 按给定的前缀分片并发列举，前缀之间不能互相包含。
+     * 如 "a", "b", ..., "z", "0", ..., "9" 可以把 key 分布较均匀的空间切成 36 片
+     */
+    public QiniuParallelListing listObjectsParallel(String bucketName, List<String> prefixes,
+                                                    boolean sorted, int taskNum)
+            throws OSSException, ClientException {
+        return new QiniuParallelListing(shardLoader(bucketName), prefixes, sorted, taskNum);
+    }
 
-            return objs;
+    /**
+     * 基于 rsf /v2/list 的流式列举，边下载边解析，每解析出一条就回调 handler ，内存占用与列举数量无关。
+     * limit 为 0 表示不限数量。返回下次列举的 marker ，列举完返回 null
+     */
+    public String listObjectsV2(String bucketName, String prefix, String delimiter, String marker, int limit,
+                                QiniuListingHandler handler) throws OSSException, ClientException {
+        try {
+            return new QiniuListV2Reader(getTransport().getManagementEngine(), auth).list(config.rsfHost(auth.accessKey, bucketName),
+                    bucketName, prefix, delimiter, marker, limit, handler);
         } catch (QiniuException e) {
             throwAliException(e);
             return null;
         }
     }
 
+    private QiniuParallelListing.ShardLoader shardLoader(final String bucketName) {
+        return new QiniuParallelListing.ShardLoader() {
+            @Override
+            public ObjectListing load(String prefix, String delimiter, String marker) {
+                return listObjects(new ListObjectsRequest(bucketName, prefix, marker, delimiter, 1000));
+            }
+        };
+    }
+
 
     @Override
     public URL generatePresignedUrl(String bucketName, String key, Date expiration) throws ClientException {
-        String url = "http://" + host + "/" + HttpUtil.urlEncode(key, "UTF-8");
-        String signedUrl = auth.privateDownloadUrlWithDeadline(url, expiration.getTime() / 1000);
+        String signedUrl = urlSigner.signWithDeadline(genUrl(bucketName, key), expiration.getTime() / 1000);
         try {
             return new URL(signedUrl);
         } catch (MalformedURLException e) {
@@ -481,6 +895,41 @@ public class QiniuOSSClient implements OSS {
         return generatePresignedUrl(request.getBucketName(), request.getKey(), request.getExpiration());
     }
 
+    /**
+     * 私有空间下载地址，至少 expires 秒内有效。过期时间按 urlSigner 的粒度取整，结果会被缓存
+     */
+    public String signDownloadUrl(String bucketName, String key, long expires) {
+        return urlSigner.sign(genUrl(bucketName, key), expires);
+    }
+
+    /**
+     * 批量生成私有空间下载地址，返回 key -> 地址，顺序与 keys 一致
+     */
+    public Map<String, String> signDownloadUrls(String bucketName, List<String> keys, long expires) {
+        QiniuUrlSigner signer = urlSigner;
+        Map<String, String> ret = new LinkedHashMap<String, String>(keys.size() * 4 / 3 + 1);
+        List<String> urls = new ArrayList<String>(keys.size());
+        for (String key : keys) {
+            urls.add(genUrl(bucketName, key));
+        }
+        Map<String, String> signed = signer.sign(urls, expires);
+        for (int i = 0; i < keys.size(); i++) {
+            ret.put(keys.get(i), signed.get(urls.get(i)));
+        }
+        return ret;
+    }
+
+    /**
+     * quantum 为过期时间取整的粒度（秒，默认 60 ）， cacheSize 为缓存的地址数（默认 10000 ， 0 表示不缓存）
+     */
+    public void setUrlSignerOptions(long quantum, int cacheSize) {
+        urlSigner = urlSigner.withOptions(quantum, cacheSize);
+    }
+
+    public QiniuUrlSigner getUrlSigner() {
+        return urlSigner;
+    }
+
 
     @Override
     public void setBucketAcl(String bucketName, CannedAccessControlList cannedACL)
@@ -493,6 +942,8 @@ public class QiniuOSSClient implements OSS {
             getBucketManager().setBucketAcl(bucketName, acl);
         } catch (QiniuException e) {
             throwAliException(e);
+        } finally {
+            invalidateBucketInfo(bucketName);
         }
     }
 
@@ -518,7 +969,10 @@ public class QiniuOSSClient implements OSS {
     @Override
     public BucketInfo getBucketInfo(String bucketName) throws OSSException, ClientException {
         try {
-            com.qiniu.storage.model.BucketInfo qinfo = getBucketManager().getBucketInfo(bucketName);
+            com.qiniu.storage.model.BucketInfo qinfo = qiniuBucketInfo(bucketName);
+            if (qinfo == null) {
+                throw new OSSException("NoSuchBucket: " + bucketName);
+            }
             BucketInfo info = new BucketInfo();
             Bucket bkt = new Bucket(bucketName);
             bkt.setLocation(qinfo.getRegion());
@@ -531,6 +985,43 @@ public class QiniuOSSClient implements OSS {
         }
     }
 
+    /**
+     * 空间不存在返回 null 。设置了 bucketInfoCache 时先查缓存
+     */
+    private com.qiniu.storage.model.BucketInfo qiniuBucketInfo(String bucketName) throws QiniuException {
+        QiniuBucketInfoCache cache = bucketInfoCache;
+        if (cache != null) {
+            return cache.get(bucketName, new QiniuBucketInfoCache.Loader() {
+                @Override
+                public com.qiniu.storage.model.BucketInfo load(String bucketName) throws QiniuException {
+                    return getBucketManager().getBucketInfo(bucketName);
+                }
+            }).info;
+        }
+        try {
+            return getBucketManager().getBucketInfo(bucketName);
+        } catch (QiniuException e) {
+            if (e.code() == 612) { // 612 no such entry
+                return null;
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 设置空间信息缓存， getBucketInfo 、 getBucketAcl 、 getBucketWebsite 、 doesBucketExist 先查缓存，
+     * null 表示不缓存
+     */
+    public void setBucketInfoCache(QiniuBucketInfoCache bucketInfoCache) {
+        this.bucketInfoCache = bucketInfoCache;
+    }
+
+    private void invalidateBucketInfo(String bucketName) {
+        if (bucketInfoCache != null) {
+            bucketInfoCache.invalidate(bucketName);
+        }
+    }
+
     @Override
     public BucketInfo getBucketInfo(GenericRequest genericRequest) throws OSSException, ClientException {
         return getBucketInfo(genericRequest.getBucketName());
@@ -540,15 +1031,10 @@ public class QiniuOSSClient implements OSS {
     @Override
     public boolean doesBucketExist(String bucketName) throws OSSException, ClientException {
         try {
-            getBucketManager().getBucketInfo(bucketName);
-            return true;
+            return qiniuBucketInfo(bucketName) != null;
         } catch (QiniuException e) {
-            if (e.response != null && e.response.statusCode == 612) { // 612 no such entry
-                return false;
-            } else {
-                throwAliException(e);
-                return false;
-            }
+            throwAliException(e);
+            return false;
         }
     }
 
@@ -574,6 +1060,8 @@ public class QiniuOSSClient implements OSS {
                 getBucketManager().setIndexPage(request.getBucketName(), IndexPageType.NO);
             } catch (QiniuException e) {
                 throwAliException(e);
+            } finally {
+                invalidateBucketInfo(request.getBucketName());
             }
             return;
         }
@@ -584,13 +1072,18 @@ public class QiniuOSSClient implements OSS {
             getBucketManager().setIndexPage(request.getBucketName(), IndexPageType.HAS);
         } catch (QiniuException e) {
             throwAliException(e);
+        } finally {
+            invalidateBucketInfo(request.getBucketName());
         }
     }
 
     @Override
     public BucketWebsiteResult getBucketWebsite(String bucketName) throws OSSException, ClientException {
         try {
-            com.qiniu.storage.model.BucketInfo qinfo = getBucketManager().getBucketInfo(bucketName);
+            com.qiniu.storage.model.BucketInfo qinfo = qiniuBucketInfo(bucketName);
+            if (qinfo == null) {
+                throw new OSSException("NoSuchBucket: " + bucketName);
+            }
             BucketWebsiteResult ret = new BucketWebsiteResult();
             if (qinfo.getNoIndexPage() == IndexPageType.HAS.getType()) {
                 ret.setErrorDocument("error-404");
@@ -614,6 +1107,8 @@ public class QiniuOSSClient implements OSS {
             getBucketManager().setIndexPage(bucketName, IndexPageType.NO);
         } catch (QiniuException e) {
             throwAliException(e);
+        } finally {
+            invalidateBucketInfo(bucketName);
         }
     }
 
@@ -688,22 +1183,92 @@ public class QiniuOSSClient implements OSS {
     @Override
     public SimplifiedObjectMeta getSimplifiedObjectMeta(String bucketName, String key)
             throws OSSException, ClientException {
-        // 不要求实现
-        throw new UnsupportedOperationException(unsupportedMsg);
+        FileInfo info = batchStat(bucketName, Collections.singletonList(key)).get(key);
+        if (info == null) {
+            throw noSuchKey(bucketName, key);
+        }
+        SimplifiedObjectMeta meta = new SimplifiedObjectMeta();
+        meta.setETag(info.hash);
+        meta.setSize(info.fsize);
+        meta.setLastModified(new Date(info.putTime / 10000));
+        return meta;
     }
 
     @Override
     public SimplifiedObjectMeta getSimplifiedObjectMeta(GenericRequest genericRequest)
             throws OSSException, ClientException {
-//        try {
-//            FileInfo info = getBucketManager().stat(genericRequest.getBucketName(), genericRequest.getKey());
-//            SimplifiedObjectMeta meta = new SimplifiedObjectMeta();
-//            meta.setETag();
-//        } catch (QiniuException e) {
-//            throwAliException(e);
-//        }
-        // 不要求实现
-        throw new UnsupportedOperationException(unsupportedMsg);
+        return getSimplifiedObjectMeta(genericRequest.getBucketName(), genericRequest.getKey());
+    }
+
+    /**
+     * 批量 stat ，按七牛 batch 上限分批并发请求。
+     * 返回 key -> FileInfo ，顺序与 keys 一致，不存在的 key 对应 null 。
+     * 除不存在外，任一 key stat 失败都抛出异常
+     */
+    public Map<String, FileInfo> batchStat(String bucketName, List<String> keys)
+            throws OSSException, ClientException {
+        Map<String, FileInfo> ret = new LinkedHashMap<String, FileInfo>(keys.size() * 4 / 3 + 1);
+        if (keys.size() == 0) {
+            return ret;
+        }
+        // 先查缓存，只 stat 未命中的
+        List<String> misses = keys;
+        if (metaCache != null) {
+            misses = new ArrayList<String>();
+            for (String key : keys) {
+                QiniuMetaCache.Entry cached = metaCache.get(bucketName, key);
+                if (cached == null) {
+                    misses.add(key);
+                }
+                ret.put(key, cached == null ? null : cached.info);
+            }
+            if (misses.size() == 0) {
+                return ret;
+            }
+        }
+        long since = metaVersion();
+        BatchStatus[] status = null;
+        try {
+            status = QiniuBatchRunner.run(getBucketManager(), bucketName, misses,
+                    QiniuBatchRunner.STAT, batchSize, batchTaskNum);
+        } catch (QiniuException e) {
+            throwAliException(e);
+        }
+        for (int i = 0; i < status.length; i++) {
+            String key = misses.get(i);
+            BatchStatus st = status[i];
+            if (st.code == 612) {
+                ret.put(key, null);
+                cacheLoadedMeta(bucketName, key, null, since);
+            } else if (st.code == 200 && st.data != null) {
+                FileInfo info = new FileInfo();
+                info.key = key;
+                info.hash = st.data.hash;
+                info.fsize = st.data.fsize;
+                info.putTime = st.data.putTime;
+                info.mimeType = st.data.mimeType;
+                ret.put(key, info);
+                cacheLoadedMeta(bucketName, key, info, since);
+            } else {
+                String error = st.data == null ? null : st.data.error;
+                throw new OSSException("stat failed, bucket: " + bucketName + ", key: " + key
+                        + ", code: " + st.code + ", error: " + error);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * 批量判断是否存在，返回 key -> 是否存在
+     */
+    public Map<String, Boolean> doesObjectsExist(String bucketName, List<String> keys)
+            throws OSSException, ClientException {
+        Map<String, FileInfo> infos = batchStat(bucketName, keys);
+        Map<String, Boolean> ret = new LinkedHashMap<String, Boolean>(infos.size() * 4 / 3 + 1);
+        for (Map.Entry<String, FileInfo> e : infos.entrySet()) {
+            ret.put(e.getKey(), e.getValue() != null);
+        }
+        return ret;
     }
 
     /**
@@ -712,11 +1277,29 @@ public class QiniuOSSClient implements OSS {
     @Override
     public ObjectMetadata getObjectMetadata(String bucketName, String key) throws OSSException, ClientException {
         FileInfo info = null;
-        try{
-            info = getBucketManager().stat(bucketName, key);
-        } catch (QiniuException e) {
-            throwAliException(e);
+        QiniuMetaCache.Entry cached = metaCache == null ? null : metaCache.get(bucketName, key);
+        if (cached != null) {
+            if (cached.info == null) {
+                throw noSuchKey(bucketName, key);
+            }
+            info = cached.info;
+        } else {
+            long since = metaVersion();
+            try {
+                info = getBucketManager().stat(bucketName, key);
+                cacheLoadedMeta(bucketName, key, info, since);
+            } catch (QiniuException e) {
+                if (e.code() == 612) {
+                    cacheLoadedMeta(bucketName, key, null, since);
+                    throw noSuchKey(bucketName, key);
+                }
+                throwAliException(e);
+            }
         }
+        return toObjectMetadata(info);
+    }
+
+    static ObjectMetadata toObjectMetadata(FileInfo info) {
         ObjectMetadata metadata = new ObjectMetadata();
         metadata.setContentType(info.mimeType);
         metadata.setContentLength(info.fsize);
@@ -744,26 +1327,26 @@ public class QiniuOSSClient implements OSS {
 
     @Override
     public boolean doesObjectExist(String bucketName, String key) throws OSSException, ClientException {
-        // 不要求实现 stat
-        throw new UnsupportedOperationException(unsupportedMsg);
+        return batchStat(bucketName, Collections.singletonList(key)).get(key) != null;
     }
 
+    /**
+     * 七牛没有镜像回源的区分， isOnlyInOSS 不起作用
+     */
     @Override
     public boolean doesObjectExist(String bucketName, String key, boolean isOnlyInOSS) {
-        throw new UnsupportedOperationException(unsupportedMsg);
+        return doesObjectExist(bucketName, key);
     }
 
     @Deprecated
     @Override
     public boolean doesObjectExist(HeadObjectRequest headObjectRequest) throws OSSException, ClientException {
-        // 不要求实现 batch
-        throw new UnsupportedOperationException(unsupportedMsg);
+        return doesObjectExist(headObjectRequest.getBucketName(), headObjectRequest.getKey());
     }
 
     @Override
     public boolean doesObjectExist(GenericRequest genericRequest) throws OSSException, ClientException {
-        // 不要求实现 batch
-        throw new UnsupportedOperationException(unsupportedMsg);
+        return doesObjectExist(genericRequest.getBucketName(), genericRequest.getKey());
     }
 
     @Override
@@ -1158,14 +1741,101 @@ public class QiniuOSSClient implements OSS {
         throw new UnsupportedOperationException(unsupportedMsg);
     }
 
+    /**
+     * 分块并发上传，块大小固定 4M ，taskNum 个线程同时上传不同的块，最后 mkfile 合成文件。
+     * partSize 对应七牛的片大小（ mkblk / bput 每次请求的数据量），限制在 [256K, 4M] 。
+     * 开启 checkpoint 后，已上传块的 ctx 记录在 checkpointFile（默认 uploadFile + ".ucp"）中，中断后可续传。
+     */
     @Override
     public UploadFileResult uploadFile(UploadFileRequest uploadFileRequest) throws Throwable {
-        throw new UnsupportedOperationException(unsupportedMsg);
+        String bucketName = uploadFileRequest.getBucketName();
+        String key = uploadFileRequest.getKey();
+        File file = new File(uploadFileRequest.getUploadFile());
+        ObjectMetadata metadata = uploadFileRequest.getObjectMetadata();
+
+        CompleteMultipartUploadResult ret = new CompleteMultipartUploadResult();
+        ret.setBucketName(bucketName);
+        ret.setKey(key);
+        ret.setLocation(genUrl(bucketName, key));
+
+        // 只有一个块，没有可以并发的，直接表单上传
+        if (file.length() <= QiniuBlockUploader.BLOCK_SIZE) {
+            PutObjectResult putRet = putObject(bucketName, key, file, metadata);
+            ret.setETag(putRet.getETag());
+            ret.setRequestId(putRet.getRequestId());
+        } else {
+            File checkpoint = null;
+            if (uploadFileRequest.isEnableCheckpoint()) {
+                String cpFile = uploadFileRequest.getCheckpointFile();
+                checkpoint = new File(cpFile != null ? cpFile : uploadFileRequest.getUploadFile() + ".ucp");
+            }
+            String mime = metadata == null ? null : metadata.getContentType();
+            String token = auth.uploadToken(bucketName, key);
+            try {
+                QiniuBlockUploader uploader = new QiniuBlockUploader(getClient(), config, token,
+                        uploadFileRequest.getPartSize(), upHostSelector);
+                Response res = uploader.uploadFile(file, key, mime, uploadFileRequest.getTaskNum(), checkpoint);
+                ret.setETag((String) res.jsonToMap().get("hash"));
+                ret.setRequestId(res.reqId);
+            } catch (QiniuException e) {
+                throwAliException(e);
+            } finally {
+                invalidateMeta(bucketName, key);
+            }
+        }
+
+        UploadFileResult result = new UploadFileResult();
+        result.setMultipartUploadResult(ret);
+        return result;
     }
 
+    /**
+     * 多连接分段下载，taskNum 个线程各自下载 partSize 大小的 Range ，直接写入临时文件的对应位置。
+     * 开启 checkpoint 后，已完成的段记录在 checkpointFile（默认 downloadFile + ".dcp"）中，中断后可续传。
+     */
     @Override
     public DownloadFileResult downloadFile(DownloadFileRequest downloadFileRequest) throws Throwable {
-        throw new UnsupportedOperationException(unsupportedMsg);
+        final String bucketName = downloadFileRequest.getBucketName();
+        final String key = downloadFileRequest.getKey();
+        FileInfo info = null;
+        try {
+            info = getBucketManager().stat(bucketName, key);
+        } catch (QiniuException e) {
+            throwAliException(e);
+        }
+
+        File checkpoint = null;
+        if (downloadFileRequest.isEnableCheckpoint()) {
+            String cpFile = downloadFileRequest.getCheckpointFile();
+            checkpoint = new File(cpFile != null ? cpFile : downloadFileRequest.getDownloadFile() + ".dcp");
+        }
+        File tempFile = new File(downloadFileRequest.getTempDownloadFile());
+        File file = new File(downloadFileRequest.getDownloadFile());
+
+        QiniuRangeDownloader downloader = new QiniuRangeDownloader(getTransport().getDownloadEngine(), new QiniuRangeDownloader.UrlSource() {
+            @Override
+            public String url() {
+                return genUrlWithToken(bucketName, key);
+            }
+        }, downloadFileRequest.getPartSize(), downloadFileRequest.getTaskNum(), config.retryMax);
+        try {
+            downloader.download(info.fsize, info.hash, tempFile, checkpoint);
+        } catch (IOException ex) {
+            logException("Cannot download object: ", ex);
+            throw new ClientException(ex.getMessage(), ex);
+        }
+        if (file.exists() && !file.delete() || !tempFile.renameTo(file)) {
+            throw new ClientException("Cannot rename " + tempFile + " to " + file);
+        }
+
+        ObjectMetadata metadata = new ObjectMetadata();
+        metadata.setContentType(info.mimeType);
+        metadata.setContentLength(info.fsize);
+        metadata.setLastModified(new Date(info.putTime / 10000));
+        metadata.setHeader("ETag", info.hash);
+        DownloadFileResult ret = new DownloadFileResult();
+        ret.setObjectMetadata(metadata);
+        return ret;
     }
 
     @Override
@@ -1382,6 +2052,10 @@ public class QiniuOSSClient implements OSS {
             throw new IllegalArgumentException("creds should not be null.");
         }
         auth = Auth.create(creds.getAccessKeyId(), creds.getSecretAccessKey());
+        urlSigner = urlSigner.withCredentials(creds.getAccessKeyId(), creds.getSecretAccessKey());
+        if (uploadTokenCache != null) {
+            uploadTokenCache = uploadTokenCache.withAuth(auth);
+        }
         _bucketManager = null;
         _uploadManager = null;
         this.credsProvider.setCredentials(creds);
@@ -1397,8 +2071,20 @@ public class QiniuOSSClient implements OSS {
         throw new UnsupportedOperationException(unsupportedMsg);
     }
 
+    /**
+     * 停止 warmUp 开启的探测；自己创建的 transport 一并关闭，构造时传入的共享 transport 不关闭
+     */
     @Override
     public synchronized void shutdown() {
+        QiniuTransport t = transport;
+        if (t != null) {
+            if (ownsTransport) {
+                t.shutdown();
+            } else if (keepingWarm) {
+                t.stopKeepWarm();
+            }
+        }
+        keepingWarm = false;
         _bucketManager = null;
         _uploadManager = null;
         auth = null;
@@ -1414,12 +2100,11 @@ public class QiniuOSSClient implements OSS {
     }
 
     private String genUrlWithToken(String bucket, String object) {
-        String ourl = genUrl(bucket, object);
-        String url = auth.privateDownloadUrl(ourl);
-        return url;
+        // 与 auth.privateDownloadUrl 一样默认 1 小时有效
+        return urlSigner.sign(genUrl(bucket, object), 3600);
     }
 
-    private String getHost() {
+    String getHost() {
         if (host.startsWith("http://") || host.startsWith("https://")) {
             return host;
         } else {
@@ -1431,7 +2116,7 @@ public class QiniuOSSClient implements OSS {
         if (_bucketManager == null) {
             synchronized (config) {
                 if (_bucketManager == null) {
-                    _bucketManager = new BucketManager(auth, config);
+                    _bucketManager = getTransport().newBucketManager(auth);
                 }
             }
         }
@@ -1442,74 +2127,66 @@ public class QiniuOSSClient implements OSS {
         if (_uploadManager == null) {
             synchronized (config) {
                 if (_uploadManager == null) {
-                    _uploadManager = new UploadManager(config);
+                    _uploadManager = getTransport().newUploadManager();
                 }
             }
         }
         return _uploadManager;
     }
 
-    private OkHttpClient _client;
+    private volatile QiniuTransport transport;
+    // transport 是 getTransport 按 config 创建的
+    private volatile boolean ownsTransport;
+    // warmUp 开启了定时探测
+    private volatile boolean keepingWarm;
 
-    private OkHttpClient getClient() {
-        // almost copy from com.qiniu.http.Client
-        if (_client == null) {
+    /**
+     * 构造时没有传入 QiniuTransport 的，第一次使用时按 config 创建，下载、管理、上传共用
+     */
+    public QiniuTransport getTransport() {
+        if (transport == null) {
             synchronized (config) {
-                if (_client == null) {
-                    Dispatcher dispatcher = new Dispatcher();
-                    dispatcher.setMaxRequests(config.dispatcherMaxRequests);
-                    dispatcher.setMaxRequestsPerHost(config.dispatcherMaxRequestsPerHost);
-                    ConnectionPool connectionPool = new ConnectionPool(config.connectionPoolMaxIdleCount,
-                            config.connectionPoolMaxIdleMinutes, TimeUnit.MINUTES);
-                    OkHttpClient.Builder builder = new OkHttpClient.Builder();
-
-                    builder.dispatcher(dispatcher);
-                    builder.connectionPool(connectionPool);
-                    builder.addNetworkInterceptor(new Interceptor() {
-                        @Override
-                        public okhttp3.Response intercept(Chain chain) throws IOException {
-                            Request request = chain.request();
-                            okhttp3.Response response = chain.proceed(request);
-                            return response;
-                        }
-                    });
-                    if (config.dns != null) {
-                        builder.dns(new okhttp3.Dns() {
-                            @Override
-                            public List<InetAddress> lookup(String hostname) throws UnknownHostException {
-                                try {
-                                    return config.dns.lookup(hostname);
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                }
-                                return okhttp3.Dns.SYSTEM.lookup(hostname);
-                            }
-                        });
-                    }
-                    if (config.proxy != null) {
-                        Proxy proxy = new Proxy(config.proxy.type, new InetSocketAddress(config.proxy.hostAddress, config.proxy.port));
-                        builder.proxy(proxy);
-                        if (config.proxy.user != null && config.proxy.password != null) {
-                            Authenticator authenticator = new Authenticator() {
-                                @Override
-                                public okhttp3.Request authenticate(Route route, okhttp3.Response response) throws IOException {
-                                    String credential = okhttp3.Credentials.basic(config.proxy.user, config.proxy.password);
-                                    return response.request().newBuilder().
-                                            header("Proxy-Authorization", credential).
-                                            header("Proxy-Connection", "Keep-Alive").build();
-                                }
-                            };
-                            builder.proxyAuthenticator(authenticator);
-                        }
-                    }
-                    builder.connectTimeout(config.connectTimeout, TimeUnit.SECONDS);
-                    builder.readTimeout(config.readTimeout, TimeUnit.SECONDS);
-                    builder.writeTimeout(config.writeTimeout, TimeUnit.SECONDS);
-                    _client = builder.build();
+                if (transport == null) {
+                    QiniuTransport t = new QiniuTransport(config);
+                    ownsTransport = true;
+                    transport = t;
                 }
             }
         }
-        return _client;
+        return transport;
+    }
+
+    /**
+     * 预热：初始化 BucketManager 、 UploadManager ，并对上传、下载、 rs 、 rsf 域名和绑定的域名各建立 connectionsPerHost 个连接，
+     * 避免重启后的第一批请求承担 DNS 、 tcp 、 TLS 的耗时。
+     * keepAliveSeconds 大于 0 时，之后每隔 keepAliveSeconds 秒用 HEAD 请求探测一次，保持连接可用，直到 stopWarmUp 。
+     * 默认不预热。返回成功的预热请求数
+     */
+    public int warmUp(String bucketName, int connectionsPerHost, long keepAliveSeconds) {
+        getBucketManager();
+        getUploadManager();
+        QiniuTransport t = getTransport();
+        try {
+            List<String> urls = QiniuTransport.hostUrls(config, auth, bucketName, getHost());
+            int n = t.warmUp(urls, connectionsPerHost, config.connectTimeout * 1000L);
+            if (keepAliveSeconds > 0) {
+                t.keepWarm(urls, connectionsPerHost, keepAliveSeconds);
+                keepingWarm = true;
+            }
+            return n;
+        } catch (QiniuException e) {
+            throwAliException(e);
+            return 0;
+        }
+    }
+
+    public void stopWarmUp() {
+        keepingWarm = false;
+        getTransport().stopKeepWarm();
+    }
+
+    OkHttpClient getClient() {
+        return getTransport().getHttpClient();
     }
 
 }
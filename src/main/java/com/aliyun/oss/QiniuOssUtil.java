@@ -19,14 +19,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.*;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.Proxy;
-import java.net.UnknownHostException;
 import java.util.*;
-import java.util.concurrent.TimeUnit;
-
-import static com.aliyun.oss.internal.OSSConstants.DEFAULT_BUFFER_SIZE;
 
 public class QiniuOssUtil {
 
@@ -49,23 +42,59 @@ public class QiniuOssUtil {
     /////////////////////////////////
 
 
+    // 选择器分块上传时同时上传的块数，与 QiniuOSSClient 默认的 streamUploadTaskNum 相同
+    private static final int UPLOAD_TASK_NUM = 2;
+
     private final Logger log = LoggerFactory.getLogger(this.getClass());
     private String host;
     private Configuration config;
     private Auth auth;
+    private QiniuFsyncPolicy fsyncPolicy = QiniuFsyncPolicy.NONE;
+    private QiniuMetaCache metaCache;
+    private QiniuBucketInfoCache bucketInfoCache;
+    private QiniuUrlSigner urlSigner;
+    private QiniuUploadTokenCache uploadTokenCache;
+    private volatile QiniuHedgingPolicy hedgingPolicy;
+    private volatile QiniuUpHostSelector upHostSelector;
 
 
     public QiniuOssUtil(String accessKey, String secretKey, String host) {
-        this(accessKey, secretKey, host, null);
+        this(accessKey, secretKey, host, (Configuration) null);
+    }
+
+    /**
+     * 与其他 QiniuOSSClient 、 QiniuOssUtil 共用 transport 的连接池
+     */
+    public QiniuOssUtil(String accessKey, String secretKey, String host, QiniuTransport transport) {
+        this(accessKey, secretKey, host, transport.getConfig());
+        this.transport = transport;
     }
 
     public QiniuOssUtil(String accessKey, String secretKey, String host, Configuration config) {
         this.host = host;
         this.config = config != null ? config : new Configuration();
         this.auth = Auth.create(accessKey, secretKey);
+        this.urlSigner = new QiniuUrlSigner(accessKey, secretKey, 60, 10000);
+        this.uploadTokenCache = new QiniuUploadTokenCache(auth, 3600, 1800, 100);
     }
 
 
+    /**
+     * 替换上传凭证缓存，传 null 关闭缓存
+     */
+    public void setUploadTokenCache(QiniuUploadTokenCache uploadTokenCache) {
+        this.uploadTokenCache = uploadTokenCache;
+    }
+
+    // 只能新增的空间级凭证，每个空间一个；分块上传的大文件每次生成完整有效期的新凭证
+    private String uploadToken(String bucket, long size) {
+        QiniuUploadTokenCache cache = uploadTokenCache;
+        if (cache != null && size <= config.putThreshold) {
+            return cache.get(bucket, null);
+        }
+        return auth.uploadToken(bucket);
+    }
+
     public void ossClientShutDown() {
         _bucketManager = null;
         _uploadManager = null;
@@ -73,6 +102,39 @@ public class QiniuOssUtil {
     }
 
 
+    /**
+     * fetchFile 下载完成后的刷盘策略，默认不主动刷盘
+     * */
+    public void setFsyncPolicy(QiniuFsyncPolicy policy) {
+        this.fsyncPolicy = policy == null ? QiniuFsyncPolicy.NONE : policy;
+    }
+
+
+    /**
+     * fetch 下载的对冲与故障转移策略， null 表示只发一个请求
+     * */
+    public void setHedgingPolicy(QiniuHedgingPolicy hedgingPolicy) {
+        this.hedgingPolicy = hedgingPolicy;
+    }
+
+
+    /**
+     * 上传域名选择器，设置后 uploadContent 、 uploadFile 不再经 SDK 的 UploadManager ，
+     * 按选择器挑域名，失败时换得分次好的域名重试，与 QiniuOSSClient.setUpHostSelector 相同。 null 表示按 config 先主后备
+     * */
+    public void setUpHostSelector(QiniuUpHostSelector upHostSelector) {
+        this.upHostSelector = upHostSelector;
+    }
+
+
+    /**
+     * getMeta 先查缓存，上传、删除会更新缓存， null 表示不缓存
+     * */
+    public void setMetaCache(QiniuMetaCache metaCache) {
+        this.metaCache = metaCache;
+    }
+
+
     /**
      * 什么都不做，七牛只认 ak sk，额外的 token 没什么意义
      * */
@@ -87,10 +149,29 @@ public class QiniuOssUtil {
      * */
     public ObjectMetadata getMeta(String bucket, String object) throws OSSException, ClientException {
         FileInfo info = null;
-        try{
-            info = getBucketManager().stat(bucket, object);
-        } catch (QiniuException e) {
-            throwAliException(e);
+        QiniuMetaCache cache = metaCache;
+        QiniuMetaCache.Entry cached = cache == null ? null : cache.get(bucket, object);
+        if (cached != null) {
+            if (cached.info == null) {
+                throw QiniuOSSClient.noSuchKey(bucket, object);
+            }
+            info = cached.info;
+        } else {
+            long since = cache == null ? 0 : cache.version();
+            try {
+                info = getBucketManager().stat(bucket, object);
+                if (cache != null) {
+                    cache.putLoaded(bucket, object, info, since);
+                }
+            } catch (QiniuException e) {
+                if (e.code() == 612) {
+                    if (cache != null) {
+                        cache.putLoaded(bucket, object, null, since);
+                    }
+                    throw QiniuOSSClient.noSuchKey(bucket, object);
+                }
+                throwAliException(e);
+            }
         }
         ObjectMetadata metadata = new ObjectMetadata();
         metadata.setContentType(info.mimeType);
@@ -105,7 +186,20 @@ public class QiniuOssUtil {
      * 七牛要求空间需先创建，不存在空间直接抛异常
      * */
     public boolean isBucketExist(String bucketName) {
+        QiniuBucketInfoCache cache = bucketInfoCache;
         try {
+            if (cache != null) {
+                QiniuBucketInfoCache.Entry e = cache.get(bucketName, new QiniuBucketInfoCache.Loader() {
+                    @Override
+                    public com.qiniu.storage.model.BucketInfo load(String bucketName) throws QiniuException {
+                        return getBucketManager().getBucketInfo(bucketName);
+                    }
+                });
+                if (e.info == null) {
+                    throw new OssServiceException(" qiniu bucket: "  + bucketName + " is not exist, create it first.", "612");
+                }
+                return true;
+            }
             getBucketManager().getBucketInfo(bucketName);
             return true;
         } catch (QiniuException e) {
@@ -119,6 +213,14 @@ public class QiniuOssUtil {
     }
 
 
+    /**
+     * isBucketExist 先查缓存， null 表示不缓存
+     * */
+    public void setBucketInfoCache(QiniuBucketInfoCache bucketInfoCache) {
+        this.bucketInfoCache = bucketInfoCache;
+    }
+
+
     /**
      * 阿里 是空间不存在，就新建一个， 一个域名可以访问多个空间内容。
      * 七牛 一个域名只能访问一个空间，域名通过构造方法传入，要求空间、域名都已经配置好在启动服务。
@@ -157,7 +259,7 @@ public class QiniuOssUtil {
             statusCode = res.code();
             filterOk(res, url);
             long contentLength = res.body().contentLength();
-            saveToFile(res.body().byteStream(), file);
+            QiniuFileWriter.write(res.body().source(), contentLength, file, fsyncPolicy);
             log.info("OssBucket: " + bucket + ", ossObject: " + object + ", destPath: " + destPath
                     + ", size: " + contentLength);
         } catch (IOException e) {
@@ -205,10 +307,18 @@ public class QiniuOssUtil {
      * */
     public String uploadContent(String bucket, String object, String content, String contentType, Date expire,
                                 Integer maxAge) throws OssServiceException {
-        String token = auth.uploadToken(bucket);
+        // 字节数组总是表单上传
+        String token = uploadToken(bucket, 0);
         com.qiniu.http.Response ret = null;
         try {
-            ret = getUploadManager().put(content.getBytes(), object, token, null, contentType, true);
+            QiniuUpHostSelector selector = upHostSelector;
+            if (selector == null) {
+                ret = getUploadManager().put(content.getBytes(), object, token, null, contentType, true);
+            } else {
+                byte[] data = content.getBytes();
+                ret = new QiniuBlockUploader(getClient(), config, token, 0, selector)
+                        .formUpload(data, data.length, object, contentType);
+            }
             if (ret.isOK()) {
                 // key, object are equal
                 Object key = ret.jsonToMap().get("key");
@@ -229,6 +339,7 @@ public class QiniuOssUtil {
                         ", errorCode: " + e.getErrorCode() + ", "  + e.getMessage(), e.getErrorCode());
             }
         } finally {
+            invalidateMeta(bucket, object);
             if (ret != null) {
                 ret.close();
             }
@@ -239,10 +350,21 @@ public class QiniuOssUtil {
 
     public void uploadFile(String bucket, String object, String filePath, String contentType,
                            Map<String, String> userMeta, Date expire, Integer maxAge) throws OssServiceException {
-        String token = auth.uploadToken(bucket);
+        File file = new File(filePath);
+        String token = uploadToken(bucket, file.length());
         com.qiniu.http.Response ret = null;
         try {
-            ret = getUploadManager().put(filePath, object, token, null, contentType, true);
+            QiniuUpHostSelector selector = upHostSelector;
+            if (selector == null) {
+                ret = getUploadManager().put(filePath, object, token, null, contentType, true);
+            } else if (file.length() <= config.putThreshold) {
+                byte[] data = QiniuOSSClient.readFile(file);
+                ret = new QiniuBlockUploader(getClient(), config, token, 0, selector)
+                        .formUpload(data, data.length, object, contentType);
+            } else {
+                ret = new QiniuBlockUploader(getClient(), config, token, 0, selector)
+                        .uploadFile(file, object, contentType, UPLOAD_TASK_NUM, null);
+            }
             if (!ret.isOK()) {
                 throw new OssServiceException(ret.toString(), ret.statusCode + "");
             }
@@ -257,6 +379,7 @@ public class QiniuOssUtil {
                         ", errorCode: " + e.getErrorCode() + ", " + e.getMessage(), e.getErrorCode());
             }
         } finally {
+            invalidateMeta(bucket, object);
             if (ret != null) {
                 ret.close();
             }
@@ -267,7 +390,11 @@ public class QiniuOssUtil {
     public void deleteOssObject(String bucket, String object) throws OssServiceException {
         try {
             getBucketManager().delete(bucket, object);
+            if (metaCache != null) {
+                metaCache.put(bucket, object, null);
+            }
         } catch (QiniuException e0) {
+            invalidateMeta(bucket, object);
             try {
                 throwAliException(e0);
             } catch (OSSException e) {
@@ -281,6 +408,30 @@ public class QiniuOssUtil {
     }
 
 
+    /**
+     * 流式列举，每解析出一条就回调 handler ，不需要把整页读入内存。
+     * limit 为 0 表示不限数量。返回下次列举的 marker ，列举完返回 null
+     * */
+    public String listObjectV2(String bucket, String prefix, String marker, int limit,
+                               QiniuListingHandler handler) throws OssServiceException {
+        try {
+            return new QiniuListV2Reader(getTransport().getManagementEngine(), auth).list(config.rsfHost(auth.accessKey, bucket),
+                    bucket, prefix, null, marker, limit, handler);
+        } catch (QiniuException e0) {
+            try {
+                throwAliException(e0);
+            } catch (OSSException e) {
+                throw new OssServiceException("OssBucket: " + bucket + ", marker: " + marker +
+                        ", errorCode: " + e.getErrorCode() + ", " + e.getMessage(), e.getErrorCode());
+            } catch (ClientException e) {
+                throw new OssServiceException("OssBucket: " + bucket + ", marker: " + marker +
+                        ", errorCode: " + e.getErrorCode() + ", " + e.getMessage(), e.getErrorCode());
+            }
+            return null;
+        }
+    }
+
+
     public ObjectListing listObject(String bucket, String prefix, String marker, Integer maxKeys) throws OssServiceException {
         try{
             int max = maxKeys == null ? 200 : maxKeys.intValue();
@@ -338,7 +489,11 @@ public class QiniuOssUtil {
                 .addHeader("User-Agent", userAgent())
                 .tag(new IpTag())
                 .build();
-        Response res = getClient().newCall(request).execute();
+        QiniuHedgingPolicy hedging = hedgingPolicy;
+        if (hedging != null) {
+            return hedging.execute(downloadEngine(), request, config);
+        }
+        Response res = downloadEngine().newCall(request).execute();
         return res;
     }
 
@@ -358,38 +513,21 @@ public class QiniuOssUtil {
     }
 
 
-    private void saveToFile(InputStream is, File file) throws IOException {
-        OutputStream os = null;
-        try {
-            os = new BufferedOutputStream(new FileOutputStream(file));
-            byte[] buffer = new byte[DEFAULT_BUFFER_SIZE];
-            int bytesRead;
-            while ((bytesRead = is.read(buffer)) != -1) {
-                os.write(buffer, 0, bytesRead);
-            }
-            os.flush();
-        } finally {
-            if (os != null) {
-                try {
-                    os.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
+    private void invalidateMeta(String bucket, String object) {
+        if (metaCache != null) {
+            metaCache.invalidate(bucket, object);
         }
     }
 
 
-
     /** 实际使用中，bucket 和 host 一直不变，不需要动态去获取不同空间的不同域名， */
     private String genUrl(String bucket, String object) {
         return getHost() + "/" + HttpUtil.urlEncode(object, "UTF-8");
     }
 
     private String genUrlWithToken(String bucket, String object) {
-        String ourl = genUrl(bucket, object);
-        String url = auth.privateDownloadUrl(ourl);
-        return url;
+        // 与 auth.privateDownloadUrl 一样默认 1 小时有效，地址会被缓存
+        return urlSigner.sign(genUrl(bucket, object), 3600);
     }
 
     private String getHost() {
@@ -433,7 +571,7 @@ public class QiniuOssUtil {
         if (_bucketManager == null) {
             synchronized (config) {
                 if (_bucketManager == null) {
-                    _bucketManager = new BucketManager(auth, config);
+                    _bucketManager = getTransport().newBucketManager(auth);
                 }
             }
         }
@@ -445,7 +583,7 @@ public class QiniuOssUtil {
         if (_uploadManager == null) {
             synchronized (config) {
                 if (_uploadManager == null) {
-                    _uploadManager = new UploadManager(config);
+                    _uploadManager = getTransport().newUploadManager();
                 }
             }
         }
@@ -454,66 +592,67 @@ public class QiniuOssUtil {
 
     private OkHttpClient _client;
 
+    private volatile QiniuTransport transport;
+
+    /**
+     * 构造时没有传入 QiniuTransport 的，第一次使用时按 config 创建，下载、管理、上传共用
+     */
+    public QiniuTransport getTransport() {
+        if (transport == null) {
+            synchronized (config) {
+                if (transport == null) {
+                    transport = new QiniuTransport(config);
+                }
+            }
+        }
+        return transport;
+    }
+
+    /**
+     * 预热：初始化 BucketManager 、 UploadManager ，并对上传、下载、 rs 、 rsf 域名和绑定的域名各建立 connectionsPerHost 个连接，
+     * 避免重启后的第一批请求承担 DNS 、 tcp 、 TLS 的耗时。
+     * keepAliveSeconds 大于 0 时，之后每隔 keepAliveSeconds 秒用 HEAD 请求探测一次，保持连接可用，直到 stopWarmUp 。
+     * 默认不预热。返回成功的预热请求数
+     */
+    public int warmUp(String bucketName, int connectionsPerHost, long keepAliveSeconds) throws OssServiceException {
+        getBucketManager();
+        getUploadManager();
+        QiniuTransport t = getTransport();
+        try {
+            List<String> urls = QiniuTransport.hostUrls(config, auth, bucketName, getHost());
+            int n = t.warmUp(urls, connectionsPerHost, config.connectTimeout * 1000L);
+            if (keepAliveSeconds > 0) {
+                t.keepWarm(urls, connectionsPerHost, keepAliveSeconds);
+            }
+            return n;
+        } catch (QiniuException e) {
+            throw new OssServiceException("OssBucket: " + bucketName + ", warm up failed: " + e.getMessage(),
+                    e.code() + "");
+        }
+    }
+
+    public void stopWarmUp() {
+        getTransport().stopKeepWarm();
+    }
+
     private OkHttpClient getClient() {
-        // almost copy from com.qiniu.http.Client
         if (_client == null) {
             synchronized (config) {
                 if (_client == null) {
-                    Dispatcher dispatcher = new Dispatcher();
-                    dispatcher.setMaxRequests(config.dispatcherMaxRequests);
-                    dispatcher.setMaxRequestsPerHost(config.dispatcherMaxRequestsPerHost);
-                    ConnectionPool connectionPool = new ConnectionPool(config.connectionPoolMaxIdleCount,
-                            config.connectionPoolMaxIdleMinutes, TimeUnit.MINUTES);
-                    OkHttpClient.Builder builder = new OkHttpClient.Builder();
-
-                    builder.dispatcher(dispatcher);
-                    builder.connectionPool(connectionPool);
+                    // 派生的 OkHttpClient 与 transport 共用连接池和 Dispatcher ，只多了记录对端 ip 的 interceptor
+                    OkHttpClient.Builder builder = getTransport().getHttpClient().newBuilder();
                     builder.addNetworkInterceptor(new Interceptor() {
                         @Override
                         public okhttp3.Response intercept(Chain chain) throws IOException {
                             Request request = chain.request();
                             okhttp3.Response response = chain.proceed(request);
-                            try {
-                                IpTag tag = (IpTag) request.tag();
-                                tag.ip = chain.connection().socket().getRemoteSocketAddress().toString();
-                            } catch (Exception e) {
-                                e.printStackTrace();
+                            if (request.tag() instanceof IpTag) {
+                                ((IpTag) request.tag()).ip =
+                                        chain.connection().socket().getRemoteSocketAddress().toString();
                             }
                             return response;
                         }
                     });
-                    if (config.dns != null) {
-                        builder.dns(new okhttp3.Dns() {
-                            @Override
-                            public List<InetAddress> lookup(String hostname) throws UnknownHostException {
-                                try {
-                                    return config.dns.lookup(hostname);
-                                } catch (Exception e) {
-                                    e.printStackTrace();
-                                }
-                                return okhttp3.Dns.SYSTEM.lookup(hostname);
-                            }
-                        });
-                    }
-                    if (config.proxy != null) {
-                        Proxy proxy = new Proxy(config.proxy.type, new InetSocketAddress(config.proxy.hostAddress, config.proxy.port));
-                        builder.proxy(proxy);
-                        if (config.proxy.user != null && config.proxy.password != null) {
-                            Authenticator authenticator = new Authenticator() {
-                                @Override
-                                public okhttp3.Request authenticate(Route route, okhttp3.Response response) throws IOException {
-                                    String credential = okhttp3.Credentials.basic(config.proxy.user, config.proxy.password);
-                                    return response.request().newBuilder().
-                                            header("Proxy-Authorization", credential).
-                                            header("Proxy-Connection", "Keep-Alive").build();
-                                }
-                            };
-                            builder.proxyAuthenticator(authenticator);
-                        }
-                    }
-                    builder.connectTimeout(config.connectTimeout, TimeUnit.SECONDS);
-                    builder.readTimeout(config.readTimeout, TimeUnit.SECONDS);
-                    builder.writeTimeout(config.writeTimeout, TimeUnit.SECONDS);
                     _client = builder.build();
                 }
             }
@@ -521,6 +660,14 @@ public class QiniuOssUtil {
         return _client;
     }
 
+    /**
+     * transport 没有换下载引擎时用带 ip 记录的 getClient
+     */
+    private Call.Factory downloadEngine() {
+        Call.Factory engine = getTransport().getDownloadEngine();
+        return engine == getTransport().getHttpClient() ? getClient() : engine;
+    }
+
     public static class IpTag {
         public String ip = "";
     }
@@ -0,0 +1,364 @@
+package com.aliyun.oss;
+
+import com.aliyun.oss.model.OSSObjectSummary;
+import com.aliyun.oss.model.ObjectListing;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按前缀分片并发列举，合并为一个迭代器。
+ * 七牛列举只能按前缀过滤、 marker 不是 key ，无法按 key 区间切分，所以分片是一组互不包含的前缀。
+ * 分片可以事先给定；也可以只给一个根前缀和 delimiter ，根分片按 delimiter 翻页列举，
+ * 每列出一个 commonPrefix 就作为新的分片开始列举，根分片自己只输出不属于任何子目录的零散 key 。
+ * taskNum 个线程同时列举不同分片，每个分片最多缓存几页，调用方消费后才继续拉取，零散的 key 也不会整体留在内存里。
+ * sorted 为 true 时按 key 的字典序输出：分片按前缀顺序依次输出，与根分片的零散 key 按顺序交错；
+ * 为 false 时哪个分片先拉到就先输出，吞吐更高。
+ * 只能遍历一次。中途不再遍历时需要 close ，遍历结束或出错时自动 close 。
+ */
+public class QiniuParallelListing implements Iterator<OSSObjectSummary>, Iterable<OSSObjectSummary>, Closeable {
+
+    /** 列举 prefix 下从 marker 开始的一页， delimiter 为 null 时不分目录 */
+    interface ShardLoader {
+        ObjectListing load(String prefix, String delimiter, String marker) throws OSSException, ClientException;
+    }
+
+    private static final Object SHARD_END = new Object();
+    private static final long OFFER_TIMEOUT = 100;
+    // 每个分片最多缓存的页数
+    private static final int PAGES_PER_SHARD = 2;
+
+    private final ShardLoader loader;
+    private final boolean sorted;
+    // 不排序时所有分片共用；排序时只放根分片的页，页内元素为 OSSObjectSummary 或子分片的队列，按 key 的顺序排列
+    private final BlockingQueue<Object> main;
+    // 还没输出完的队列， close 时清空；排序时子分片输出完就移除，目录很多时不会一直留在内存里
+    private final Set<BlockingQueue<Object>> queues =
+            Collections.newSetFromMap(new ConcurrentHashMap<BlockingQueue<Object>, Boolean>());
+    private final AtomicInteger shardCount = new AtomicInteger();
+    private final ExecutorService pool;
+    private volatile boolean closed;
+
+    private int finishedShards;
+    private Iterator<?> mainPage = Collections.emptyList().iterator();
+    // 排序时正在输出的子分片
+    private BlockingQueue<Object> active;
+    private Iterator<?> activePage = Collections.emptyList().iterator();
+    private OSSObjectSummary peeked;
+    private boolean finished;
+
+    /**
+     * 按给定的前缀分片， prefixes 要求互不包含（没有一个是另一个的前缀），否则同一个 key 会被列举多次
+     */
+    QiniuParallelListing(ShardLoader loader, List<String> prefixes, boolean sorted, int taskNum) {
+        List<String> shards = new ArrayList<String>(prefixes);
+        Collections.sort(shards);
+        checkDisjoint(shards);
+        int n = Math.max(1, taskNum);
+        this.loader = loader;
+        this.sorted = sorted;
+        this.main = newQueue(sorted ? PAGES_PER_SHARD : PAGES_PER_SHARD * n);
+        this.pool = newPool(n);
+        // 按前缀顺序提交，排序输出时当前需要的分片一定已经开始或已完成
+        List<Object> page = new ArrayList<Object>();
+        for (String prefix : shards) {
+            BlockingQueue<Object> queue = sorted ? newQueue(PAGES_PER_SHARD) : main;
+            if (!startShard(prefix, queue)) {
+                break;
+            }
+            page.add(queue);
+        }
+        pool.shutdown();
+        if (sorted) {
+            main.offer(page);
+            main.offer(SHARD_END);
+        }
+    }
+
+    /**
+     * 从 root 开始按 delimiter 分目录，一级目录各为一个分片。根分片占一个线程，另有 taskNum 个线程列举子分片
+     */
+    QiniuParallelListing(ShardLoader loader, final String root, final String delimiter, boolean sorted, int taskNum) {
+        int n = Math.max(1, taskNum);
+        this.loader = loader;
+        this.sorted = sorted;
+        this.main = newQueue(sorted ? PAGES_PER_SHARD : PAGES_PER_SHARD * n);
+        this.pool = newPool(n + 1);
+        shardCount.incrementAndGet();
+        try {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        listRoot(root == null ? "" : root, delimiter);
+                    } finally {
+                        // 子分片都已提交
+                        pool.shutdown();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // 构造过程中被 close
+        }
+    }
+
+    private BlockingQueue<Object> newQueue(int capacity) {
+        BlockingQueue<Object> q = new ArrayBlockingQueue<Object>(capacity);
+        queues.add(q);
+        return q;
+    }
+
+    private static ExecutorService newPool(int n) {
+        return Executors.newFixedThreadPool(n, new ThreadFactory() {
+            private final AtomicInteger seq = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "qiniu-parallel-listing-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    static void checkDisjoint(List<String> sortedPrefixes) {
+        for (int i = 1; i < sortedPrefixes.size(); i++) {
+            String prev = sortedPrefixes.get(i - 1);
+            if (sortedPrefixes.get(i).startsWith(prev)) {
+                throw new IllegalArgumentException("prefix '" + prev + "' contains '"
+                        + sortedPrefixes.get(i) + "', shards must be disjoint");
+            }
+        }
+    }
+
+    private boolean startShard(final String prefix, final BlockingQueue<Object> queue) {
+        shardCount.incrementAndGet();
+        try {
+            pool.execute(new Runnable() {
+                @Override
+                public void run() {
+                    listShard(prefix, queue);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            // 已经 close
+            shardCount.decrementAndGet();
+            return false;
+        }
+    }
+
+    private void listShard(String prefix, BlockingQueue<Object> queue) {
+        String marker = null;
+        try {
+            while (!closed) {
+                ObjectListing page = loader.load(prefix, null, marker);
+                if (page.getObjectSummaries().size() > 0 && !offer(queue, page.getObjectSummaries())) {
+                    return;
+                }
+                marker = page.getNextMarker();
+                if (!page.isTruncated() || marker == null || marker.length() == 0) {
+                    break;
+                }
+            }
+            offer(queue, SHARD_END);
+        } catch (RuntimeException e) {
+            offer(queue, e);
+        }
+    }
+
+    /**
+     * 根分片：零散的 key 直接输出，每个 commonPrefix 开始一个子分片。
+     * 排序时把子分片的队列按前缀放进页里，与零散的 key 按顺序交错；前缀之后的 key 都大于这个目录下的所有 key
+     */
+    private void listRoot(String root, String delimiter) {
+        String marker = null;
+        try {
+            while (!closed) {
+                ObjectListing page = loader.load(root, delimiter, marker);
+                List<String> prefixes = new ArrayList<String>(page.getCommonPrefixes());
+                Collections.sort(prefixes);
+                List<Object> items = new ArrayList<Object>();
+                Iterator<OSSObjectSummary> objects = page.getObjectSummaries().iterator();
+                OSSObjectSummary next = objects.hasNext() ? objects.next() : null;
+                for (String prefix : prefixes) {
+                    while (sorted && next != null && next.getKey().compareTo(prefix) < 0) {
+                        items.add(next);
+                        next = objects.hasNext() ? objects.next() : null;
+                    }
+                    BlockingQueue<Object> queue = sorted ? newQueue(PAGES_PER_SHARD) : main;
+                    if (!startShard(prefix, queue)) {
+                        return;
+                    }
+                    if (sorted) {
+                        items.add(queue);
+                    }
+                }
+                for (; next != null; next = objects.hasNext() ? objects.next() : null) {
+                    items.add(next);
+                }
+                if (items.size() > 0 && !offer(main, items)) {
+                    return;
+                }
+                marker = page.getNextMarker();
+                if (!page.isTruncated() || marker == null || marker.length() == 0) {
+                    break;
+                }
+            }
+            offer(main, SHARD_END);
+        } catch (RuntimeException e) {
+            offer(main, e);
+        }
+    }
+
+    private boolean offer(BlockingQueue<Object> queue, Object o) {
+        try {
+            while (!closed) {
+                if (queue.offer(o, OFFER_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (peeked == null) {
+            peeked = sorted ? nextSorted() : nextUnsorted();
+        }
+        return peeked != null;
+    }
+
+    @Override
+    public OSSObjectSummary next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        OSSObjectSummary ret = peeked;
+        peeked = null;
+        return ret;
+    }
+
+    private OSSObjectSummary nextUnsorted() {
+        while (!mainPage.hasNext()) {
+            if (finished) {
+                return null;
+            }
+            if (finishedShards == shardCount.get()) {
+                end();
+                return null;
+            }
+            Object o = take(main);
+            if (o == SHARD_END) {
+                finishedShards++;
+            } else {
+                mainPage = page(o);
+            }
+        }
+        return (OSSObjectSummary) mainPage.next();
+    }
+
+    @SuppressWarnings("unchecked")
+    private OSSObjectSummary nextSorted() {
+        while (true) {
+            if (active != null) {
+                if (activePage.hasNext()) {
+                    return (OSSObjectSummary) activePage.next();
+                }
+                Object o = take(active);
+                if (o == SHARD_END) {
+                    queues.remove(active);
+                    active = null;
+                } else {
+                    activePage = page(o);
+                }
+            } else if (mainPage.hasNext()) {
+                Object item = mainPage.next();
+                if (item instanceof OSSObjectSummary) {
+                    return (OSSObjectSummary) item;
+                }
+                active = (BlockingQueue<Object>) item;
+                activePage = Collections.emptyList().iterator();
+            } else if (finished) {
+                return null;
+            } else {
+                Object o = take(main);
+                if (o == SHARD_END) {
+                    end();
+                    return null;
+                }
+                mainPage = page(o);
+            }
+        }
+    }
+
+    private Object take(BlockingQueue<Object> queue) {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            close();
+            throw new ClientException("interrupted while waiting for listing page", e);
+        }
+    }
+
+    private Iterator<?> page(Object o) {
+        if (o instanceof RuntimeException) {
+            end();
+            throw (RuntimeException) o;
+        }
+        return ((List<?>) o).iterator();
+    }
+
+    private void end() {
+        finished = true;
+        close();
+    }
+
+    /** 测试用：还留在内存里的队列数 */
+    int liveQueueCount() {
+        return queues.size();
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    /**
+     * 只能遍历一次，返回自身，方便 for-each
+     */
+    @Override
+    public Iterator<OSSObjectSummary> iterator() {
+        return this;
+    }
+
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        pool.shutdownNow();
+        for (BlockingQueue<Object> q : queues) {
+            q.clear();
+        }
+    }
+}
@@ -0,0 +1,227 @@
+package com.aliyun.oss;
+
+import com.qiniu.common.Constants;
+import com.qiniu.util.Json;
+import okhttp3.Call;
+import okhttp3.Request;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.aliyun.oss.common.utils.LogUtils.logException;
+
+/**
+ * 多连接分段下载：按 partSize 把文件切成多个 Range ，taskNum 个线程同时下载，
+ * 各段按偏移直接写入预先分配好大小的临时文件。
+ * checkpoint 记录已完成的段，中断后再次下载只补齐剩余的段。
+ */
+final class QiniuRangeDownloader {
+    // 段太小，每段都要多一次往返
+    static final long MIN_PART_SIZE = 1024 * 1024;
+    // 断点记录最多每秒落盘一次
+    private static final long CHECKPOINT_INTERVAL = 1000;
+
+    /** 每次请求都重新生成带 token 的地址，避免大文件下载过程中 token 过期 */
+    interface UrlSource {
+        String url();
+    }
+
+    private final Call.Factory client;
+    private final UrlSource urlSource;
+    private final long partSize;
+    private final int taskNum;
+    private final int retryMax;
+
+    QiniuRangeDownloader(Call.Factory client, UrlSource urlSource, long partSize, int taskNum, int retryMax) {
+        this.client = client;
+        this.urlSource = urlSource;
+        this.partSize = Math.max(partSize, MIN_PART_SIZE);
+        this.taskNum = Math.max(1, taskNum);
+        this.retryMax = retryMax;
+    }
+
+    /**
+     * 下载到 tempFile ， size 、 hash 来自 stat ，用于校验断点记录是否还对应同一个文件。
+     */
+    void download(long size, String hash, File tempFile, File checkpoint) throws IOException {
+        int partCount = (int) ((size + partSize - 1) / partSize);
+        final Checkpoint cp = Checkpoint.load(checkpoint, tempFile, size, hash, partSize, partCount);
+
+        RandomAccessFile raf = new RandomAccessFile(tempFile, "rw");
+        try {
+            // 预分配，各段可以直接按偏移写
+            if (raf.length() != size) {
+                raf.setLength(size);
+            }
+            final FileChannel channel = raf.getChannel();
+            cp.channel = channel;
+
+            List<Integer> pending = new ArrayList<Integer>();
+            for (int i = 0; i < partCount; i++) {
+                if (!cp.parts[i]) {
+                    pending.add(i);
+                }
+            }
+            if (pending.size() > 0) {
+                downloadParts(channel, size, pending, cp);
+            }
+            channel.force(false);
+        } finally {
+            raf.close();
+        }
+        cp.delete();
+    }
+
+    private void downloadParts(final FileChannel channel, final long size, List<Integer> pending,
+                               final Checkpoint cp) throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(taskNum, pending.size()));
+        List<Future<Void>> futures = new ArrayList<Future<Void>>(pending.size());
+        try {
+            for (final Integer idx : pending) {
+                futures.add(pool.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws Exception {
+                        long start = idx * partSize;
+                        long end = Math.min(size, start + partSize) - 1;
+                        downloadPart(channel, start, end, size);
+                        cp.done(idx);
+                        return null;
+                    }
+                }));
+            }
+            pool.shutdown();
+            for (Future<Void> f : futures) {
+                f.get();
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            pool.shutdownNow();
+            // 不论成功失败，都保存一次最新的进度
+            cp.save();
+        }
+    }
+
+    private void downloadPart(FileChannel channel, long start, long end, long size) throws IOException {
+        IOException last = null;
+        for (int retry = 0; retry <= retryMax; retry++) {
+            try {
+                downloadPart0(channel, start, end, size);
+                return;
+            } catch (IOException e) {
+                last = e;
+            }
+        }
+        throw last;
+    }
+
+    private void downloadPart0(FileChannel channel, long start, long end, long size) throws IOException {
+        String url = urlSource.url();
+        Request request = new Request.Builder()
+                .url(url)
+                .addHeader("User-Agent", QiniuOssUtil.userAgent())
+                .addHeader("Range", "bytes=" + start + "-" + end)
+                .build();
+        okhttp3.Response res = client.newCall(request).execute();
+        try {
+            // 整个文件只有一段时，服务端可能直接返回 200
+            boolean wholeFile = res.code() == 200 && start == 0 && end == size - 1;
+            if (res.code() != 206 && !wholeFile) {
+                throw new IOException(res.code() + " " + res.message() + ", reqId:" + res.header("X-Reqid")
+                        + ", range: " + start + "-" + end + ", url: " + url);
+            }
+            long pos = start + QiniuFileWriter.write(res.body().source(), channel, start, end - start + 1);
+            if (pos != end + 1) {
+                throw new IOException("unexpected end of stream, range: " + start + "-" + end + ", got: " + pos);
+            }
+        } finally {
+            res.close();
+        }
+    }
+
+
+    /**
+     * 断点记录，文件大小、 hash 、分段大小变化后记录作废。
+     */
+    static final class Checkpoint {
+        String tempFile;
+        long size;
+        String hash;
+        long partSize;
+        boolean[] parts;
+
+        private transient File record;
+        private transient FileChannel channel;
+        private transient long lastSave;
+        private transient boolean dirty;
+
+        static Checkpoint load(File record, File tempFile, long size, String hash, long partSize, int partCount) {
+            if (record != null && record.isFile() && tempFile.isFile()) {
+                try {
+                    String json = new String(QiniuBlockUploader.readAll(record), Constants.UTF_8);
+                    Checkpoint cp = Json.decode(json, Checkpoint.class);
+                    if (cp != null && tempFile.getAbsolutePath().equals(cp.tempFile) && cp.size == size
+                            && hash != null && hash.equals(cp.hash) && cp.partSize == partSize
+                            && cp.parts != null && cp.parts.length == partCount) {
+                        cp.record = record;
+                        return cp;
+                    }
+                } catch (Exception e) {
+                    // 记录损坏，重新下载
+                    logException("Ignore corrupt download record " + record + ": ", e);
+                }
+            }
+            Checkpoint cp = new Checkpoint();
+            cp.tempFile = tempFile.getAbsolutePath();
+            cp.size = size;
+            cp.hash = hash;
+            cp.partSize = partSize;
+            cp.parts = new boolean[partCount];
+            cp.record = record;
+            return cp;
+        }
+
+        synchronized void done(int idx) throws IOException {
+            parts[idx] = true;
+            dirty = true;
+            if (System.currentTimeMillis() - lastSave >= CHECKPOINT_INTERVAL) {
+                save();
+            }
+        }
+
+        synchronized void save() throws IOException {
+            if (record == null || !dirty) {
+                return;
+            }
+            // 先把数据刷到磁盘，再记录这些段已完成
+            if (channel != null && channel.isOpen()) {
+                channel.force(false);
+            }
+            QiniuBlockUploader.writeAtomically(record, Json.encode(this).getBytes(Constants.UTF_8));
+            lastSave = System.currentTimeMillis();
+            dirty = false;
+        }
+
+        void delete() {
+            if (record != null) {
+                record.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,322 @@
+package com.aliyun.oss;
+
+import com.aliyun.oss.model.GetObjectRequest;
+import com.qiniu.common.QiniuException;
+import com.qiniu.storage.Configuration;
+import okhttp3.HttpUrl;
+
+import java.io.Closeable;
+import java.io.File;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 大量小文件的并发上传、下载、删除。
+ * 运行在 Java 21 及以上时每个任务一个虚拟线程，阻塞在网络 IO 上几乎不占内存，不用调线程池大小；
+ * 更低版本退化为 fallbackPoolSize 个线程的线程池，任务排队执行。
+ * 每个域名（上传、下载、 rs ）同时最多 maxPerHost 个请求，超出的在信号量上等待。
+ * client 设置了上传域名选择器时，每次上传用哪个域名由选择器决定，上传不再按域名限制，
+ * 改为全部上传共用 maxPerHost 乘以选择器域名数的上限。
+ * 单个任务失败不影响其他任务，结果中带有异常：
+ * <pre>
+ * List&lt;Future&lt;Result&gt;&gt; fs = new ArrayList&lt;...&gt;();
+ * for (File f : files) {
+ *     fs.add(tm.submitUpload(bucket, f.getName(), f));
+ * }
+ * for (Result r : tm.awaitAll(fs)) {
+ *     if (!r.isSuccess()) { ... }
+ * }
+ * </pre>
+ */
+public class QiniuTransferManager implements Closeable {
+    private static final ExecutorServiceFactory VIRTUAL = virtualThreadFactory();
+
+    public enum Operation {
+        UPLOAD, DOWNLOAD, DELETE
+    }
+
+    /**
+     * 单个任务的结果， value 为 putObject 的 PutObjectResult 、 getObject 的 ObjectMetadata ，删除为 null
+     */
+    public static final class Result {
+        private final Operation operation;
+        private final String bucketName;
+        private final String key;
+        private final Object value;
+        private final Exception error;
+        private final long elapsedMillis;
+
+        Result(Operation operation, String bucketName, String key, Object value, Exception error, long elapsedMillis) {
+            this.operation = operation;
+            this.bucketName = bucketName;
+            this.key = key;
+            this.value = value;
+            this.error = error;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        public String getBucketName() {
+            return bucketName;
+        }
+
+        public String getKey() {
+            return key;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+
+        public Exception getError() {
+            return error;
+        }
+
+        public boolean isSuccess() {
+            return error == null;
+        }
+
+        /** 含等待信号量的时间 */
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+    }
+
+    private interface ExecutorServiceFactory {
+        ExecutorService create();
+    }
+
+    private final QiniuOSSClient client;
+    private final int maxPerHost;
+    private final ExecutorService executor;
+    private final boolean virtual;
+    private final ConcurrentMap<String, Semaphore> hostPermits = new ConcurrentHashMap<String, Semaphore>();
+    // 上传域名选择器对应的上限，选择器换了重新创建
+    private QiniuUpHostSelector permitSelector;
+    private Semaphore selectorPermits;
+    // Operation + bucket -> 域名
+    private final ConcurrentMap<String, String> hosts = new ConcurrentHashMap<String, String>();
+
+    public QiniuTransferManager(QiniuOSSClient client, int maxPerHost) {
+        this(client, maxPerHost, 64);
+    }
+
+    /**
+     * @param maxPerHost       每个域名的并发上限
+     * @param fallbackPoolSize 不支持虚拟线程时的线程数
+     */
+    public QiniuTransferManager(QiniuOSSClient client, int maxPerHost, int fallbackPoolSize) {
+        this.client = client;
+        this.maxPerHost = Math.max(1, maxPerHost);
+        if (VIRTUAL != null) {
+            this.executor = VIRTUAL.create();
+            this.virtual = true;
+        } else {
+            this.executor = newBoundedPool(Math.max(1, fallbackPoolSize));
+            this.virtual = false;
+        }
+    }
+
+    /**
+     * Executors.newVirtualThreadPerTaskExecutor 只在 Java 21 及以上存在，反射调用以便在 Java 8 上编译、运行
+     */
+    private static ExecutorServiceFactory virtualThreadFactory() {
+        try {
+            final Method m = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            // 预览版本中方法存在但调用会失败，先试一次
+            ((ExecutorService) m.invoke(null)).shutdown();
+            return new ExecutorServiceFactory() {
+                @Override
+                public ExecutorService create() {
+                    try {
+                        return (ExecutorService) m.invoke(null);
+                    } catch (Exception e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        } catch (Throwable e) {
+            return null;
+        }
+    }
+
+    private static ExecutorService newBoundedPool(int size) {
+        final AtomicInteger seq = new AtomicInteger();
+        return new ThreadPoolExecutor(size, size, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "qiniu-transfer-" + seq.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+    }
+
+    /**
+     * 是否运行在虚拟线程上
+     */
+    public boolean isVirtual() {
+        return virtual;
+    }
+
+    public Future<Result> submitUpload(final String bucketName, final String key, final File file) {
+        return submit(Operation.UPLOAD, bucketName, key, new Callable<Object>() {
+            @Override
+            public Object call() {
+                return client.putObject(bucketName, key, file, null);
+            }
+        });
+    }
+
+    public Future<Result> submitUpload(final String bucketName, final String key, final byte[] content) {
+        return submit(Operation.UPLOAD, bucketName, key, new Callable<Object>() {
+            @Override
+            public Object call() {
+                return client.putObject(bucketName, key, content);
+            }
+        });
+    }
+
+    public Future<Result> submitDownload(final String bucketName, final String key, final File file) {
+        return submit(Operation.DOWNLOAD, bucketName, key, new Callable<Object>() {
+            @Override
+            public Object call() {
+                return client.getObject(new GetObjectRequest(bucketName, key), file);
+            }
+        });
+    }
+
+    public Future<Result> submitDelete(final String bucketName, final String key) {
+        return submit(Operation.DELETE, bucketName, key, new Callable<Object>() {
+            @Override
+            public Object call() {
+                client.deleteObject(bucketName, key);
+                return null;
+            }
+        });
+    }
+
+    private Future<Result> submit(final Operation op, final String bucketName, final String key,
+                                  final Callable<Object> task) {
+        return executor.submit(new Callable<Result>() {
+            @Override
+            public Result call() {
+                long start = System.currentTimeMillis();
+                Semaphore permits;
+                try {
+                    permits = permits(op, bucketName);
+                    permits.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return new Result(op, bucketName, key, null, e, System.currentTimeMillis() - start);
+                } catch (QiniuException e) {
+                    return new Result(op, bucketName, key, null, QiniuOSSClient.toAliException(e),
+                            System.currentTimeMillis() - start);
+                }
+                try {
+                    Object value = task.call();
+                    return new Result(op, bucketName, key, value, null, System.currentTimeMillis() - start);
+                } catch (Exception e) {
+                    return new Result(op, bucketName, key, null, e, System.currentTimeMillis() - start);
+                } finally {
+                    permits.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * 按提交顺序等待全部完成，返回每个任务的结果，不抛出任务的异常
+     */
+    public List<Result> awaitAll(Collection<Future<Result>> transfers) throws InterruptedException {
+        List<Result> results = new ArrayList<Result>(transfers.size());
+        for (Future<Result> f : transfers) {
+            try {
+                results.add(f.get());
+            } catch (ExecutionException e) {
+                // submit 中已捕获全部异常，不会到这里
+                throw new IllegalStateException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    private Semaphore permits(Operation op, String bucketName) throws QiniuException {
+        if (op == Operation.UPLOAD) {
+            QiniuUpHostSelector selector = client.getUpHostSelector();
+            if (selector != null) {
+                return selectorPermits(selector);
+            }
+        }
+        String host = host(op, bucketName);
+        Semaphore s = hostPermits.get(host);
+        if (s == null) {
+            Semaphore created = new Semaphore(maxPerHost);
+            s = hostPermits.putIfAbsent(host, created);
+            if (s == null) {
+                s = created;
+            }
+        }
+        return s;
+    }
+
+    private synchronized Semaphore selectorPermits(QiniuUpHostSelector selector) {
+        if (selector != permitSelector) {
+            permitSelector = selector;
+            selectorPermits = new Semaphore(maxPerHost * Math.max(1, selector.getHosts().size()));
+        }
+        return selectorPermits;
+    }
+
+    private String host(Operation op, String bucketName) throws QiniuException {
+        String cacheKey = op + ":" + bucketName;
+        String host = hosts.get(cacheKey);
+        if (host != null) {
+            return host;
+        }
+        Configuration config = client.getConfig();
+        String url;
+        if (op == Operation.UPLOAD) {
+            url = config.upHost(client.uploadToken(bucketName, null, 0));
+        } else if (op == Operation.DOWNLOAD) {
+            url = client.getHost();
+        } else {
+            url = config.rsHost(client.getAuth().accessKey, bucketName);
+        }
+        HttpUrl parsed = HttpUrl.parse(url);
+        host = parsed == null ? url : parsed.host() + ":" + parsed.port();
+        hosts.put(cacheKey, host);
+        return host;
+    }
+
+    /**
+     * 不再接受新任务，已提交的任务继续执行
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+    }
+
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+}
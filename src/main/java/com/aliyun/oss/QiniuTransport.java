@@ -0,0 +1,462 @@
+package com.aliyun.oss;
+
+import com.qiniu.common.QiniuException;
+import com.qiniu.http.Client;
+import com.qiniu.storage.BucketManager;
+import com.qiniu.storage.Configuration;
+import com.qiniu.storage.Recorder;
+import com.qiniu.storage.UploadManager;
+import com.qiniu.util.Auth;
+import okhttp3.Authenticator;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Route;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 共享的 http 连接池和 Dispatcher 。
+ * 下载、 rsf 列举等直接发的请求，和 BucketManager 、 UploadManager 内部的 com.qiniu.http.Client 共用一个 OkHttpClient 的
+ * 连接池和 Dispatcher ，同一个域名的连接可以互相复用，不用各自握手、各自维持空闲连接。
+ * 多个 QiniuOSSClient 、 QiniuOssUtil 可以传入同一个 QiniuTransport ；不传时各自创建一个。
+ * <p>
+ * com.qiniu.http.Client 没有暴露内部的 OkHttpClient ，这里反射读取后用 newBuilder 派生，
+ * 派生时去掉它的 network interceptor （会把 request.tag() 强转为 SDK 内部的 IpTag ，对其他请求会出错）。
+ * 反射失败时退化为按 config 单独创建 OkHttpClient ，此时不与 SDK 共用连接池。
+ * BucketManager 、 UploadManager 用传入 Client 的构造函数创建，共用同一个 com.qiniu.http.Client 。
+ * <p>
+ * 下载（ getObject 、分段下载）和直接发出的管理请求（ rsf 列举、异步客户端的 stat 、 delete 、 list ）
+ * 可以分别换成其他 okhttp3.Call.Factory ，例如 newHttp2Client 返回的 HTTP/2 多路复用客户端，
+ * 或包装了其他 http 库的实现。 BucketManager 、 UploadManager 内部的请求不受影响。
+ */
+public class QiniuTransport {
+    private final Configuration config;
+    private final Client qiniuClient;
+    private final OkHttpClient httpClient;
+    private final boolean shared;
+    private ScheduledExecutorService prober;
+    private volatile Call.Factory downloadEngine;
+    private volatile Call.Factory managementEngine;
+
+    private final AtomicLong callCount = new AtomicLong();
+    private final AtomicLong connectCount = new AtomicLong();
+    private final AtomicLong tlsHandshakeCount = new AtomicLong();
+    private final AtomicLong connectionAcquiredCount = new AtomicLong();
+
+    private final QiniuMetrics metrics = new QiniuMetrics();
+
+    private final EventListener listener = new EventListener() {
+        @Override
+        public void callStart(Call call) {
+            callCount.incrementAndGet();
+        }
+
+        @Override
+        public void connectStart(Call call, InetSocketAddress inetSocketAddress, Proxy proxy) {
+            connectCount.incrementAndGet();
+        }
+
+        @Override
+        public void secureConnectStart(Call call) {
+            tlsHandshakeCount.incrementAndGet();
+        }
+
+        @Override
+        public void connectionAcquired(Call call, Connection connection) {
+            connectionAcquiredCount.incrementAndGet();
+        }
+    };
+
+    private final EventListener.Factory metricsListeners = metrics.listenerFactory(listener);
+
+    public QiniuTransport(Configuration config) {
+        this.config = config;
+        this.qiniuClient = new Client(config);
+        OkHttpClient base = null;
+        Field field = null;
+        try {
+            field = Client.class.getDeclaredField("httpClient");
+            field.setAccessible(true);
+            base = (OkHttpClient) field.get(qiniuClient);
+        } catch (Exception e) {
+            // SDK 内部实现变了
+        }
+        if (base != null) {
+            // SDK 的请求也计入统计，替换后连接池和 Dispatcher 不变
+            OkHttpClient counted = base.newBuilder().eventListenerFactory(metricsListeners).build();
+            try {
+                field.set(qiniuClient, counted);
+            } catch (Exception e) {
+                counted = base;
+            }
+            OkHttpClient.Builder builder = counted.newBuilder().eventListenerFactory(metricsListeners);
+            builder.networkInterceptors().clear();
+            this.httpClient = builder.build();
+            this.shared = true;
+        } else {
+            this.httpClient = newHttpClient(config).eventListenerFactory(metricsListeners).build();
+            this.shared = false;
+        }
+    }
+
+    // almost copy from com.qiniu.http.Client
+    private static OkHttpClient.Builder newHttpClient(final Configuration config) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(config.dispatcherMaxRequests);
+        dispatcher.setMaxRequestsPerHost(config.dispatcherMaxRequestsPerHost);
+        ConnectionPool connectionPool = new ConnectionPool(config.connectionPoolMaxIdleCount,
+                config.connectionPoolMaxIdleMinutes, TimeUnit.MINUTES);
+        OkHttpClient.Builder builder = new OkHttpClient.Builder();
+
+        builder.dispatcher(dispatcher);
+        builder.connectionPool(connectionPool);
+        if (config.dns != null) {
+            builder.dns(new okhttp3.Dns() {
+                @Override
+                public List<InetAddress> lookup(String hostname) throws UnknownHostException {
+                    try {
+                        return config.dns.lookup(hostname);
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    }
+                    return okhttp3.Dns.SYSTEM.lookup(hostname);
+                }
+            });
+        }
+        if (config.proxy != null) {
+            Proxy proxy = new Proxy(config.proxy.type, new InetSocketAddress(config.proxy.hostAddress, config.proxy.port));
+            builder.proxy(proxy);
+            if (config.proxy.user != null && config.proxy.password != null) {
+                Authenticator authenticator = new Authenticator() {
+                    @Override
+                    public okhttp3.Request authenticate(Route route, okhttp3.Response response) throws IOException {
+                        String credential = okhttp3.Credentials.basic(config.proxy.user, config.proxy.password);
+                        return response.request().newBuilder().
+                                header("Proxy-Authorization", credential).
+                                header("Proxy-Connection", "Keep-Alive").build();
+                    }
+                };
+                builder.proxyAuthenticator(authenticator);
+            }
+        }
+        builder.connectTimeout(config.connectTimeout, TimeUnit.SECONDS);
+        builder.readTimeout(config.readTimeout, TimeUnit.SECONDS);
+        builder.writeTimeout(config.writeTimeout, TimeUnit.SECONDS);
+        return builder;
+    }
+
+    public Configuration getConfig() {
+        return config;
+    }
+
+    /**
+     * 直接发请求用的 OkHttpClient 。需要加 interceptor 时用 newBuilder 派生，连接池和 Dispatcher 仍然共用
+     */
+    public OkHttpClient getHttpClient() {
+        return httpClient;
+    }
+
+    public Client getQiniuClient() {
+        return qiniuClient;
+    }
+
+    /**
+     * SDK 的请求是否与 getHttpClient 共用连接池
+     */
+    public boolean isShared() {
+        return shared;
+    }
+
+    /**
+     * 下载请求使用的 Call.Factory ，没有设置时为 getHttpClient
+     */
+    public Call.Factory getDownloadEngine() {
+        Call.Factory engine = downloadEngine;
+        return engine != null ? engine : httpClient;
+    }
+
+    /**
+     * 传 null 恢复为 getHttpClient
+     */
+    public void setDownloadEngine(Call.Factory engine) {
+        this.downloadEngine = engine;
+    }
+
+    /**
+     * rsf 列举以及异步客户端的 stat 、 delete 、 list 使用的 Call.Factory ，没有设置时为 getHttpClient
+     */
+    public Call.Factory getManagementEngine() {
+        Call.Factory engine = managementEngine;
+        return engine != null ? engine : httpClient;
+    }
+
+    public void setManagementEngine(Call.Factory engine) {
+        this.managementEngine = engine;
+    }
+
+    /**
+     * 只用 HTTP/1.1 ，每个连接同时只跑一个请求，并发靠连接池里的多个连接。
+     * 与 getHttpClient 共用连接池和 Dispatcher
+     */
+    public OkHttpClient newHttp1Client() {
+        return httpClient.newBuilder().protocols(Collections.singletonList(Protocol.HTTP_1_1)).build();
+    }
+
+    /**
+     * 优先 HTTP/2 ，同一个域名的并发请求复用一个连接的多个 stream ，适合对一个域名大量并发的小文件 GET 。
+     * 使用单独的 Dispatcher ，每个域名最多 maxConcurrentStreams 个请求在途，不再受 config.dispatcherMaxRequestsPerHost 限制。
+     * HTTP/2 只能在 https 上经 ALPN 协商（ Java 8u252 及以上或 Java 9+ ），服务端不支持或 http 域名仍然走 HTTP/1.1
+     */
+    public OkHttpClient newHttp2Client(int maxConcurrentStreams) {
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(Math.max(maxConcurrentStreams, config.dispatcherMaxRequests));
+        dispatcher.setMaxRequestsPerHost(Math.max(1, maxConcurrentStreams));
+        return httpClient.newBuilder()
+                .protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1))
+                .dispatcher(dispatcher)
+                .build();
+    }
+
+    public BucketManager newBucketManager(Auth auth) {
+        BucketManager bm = new BucketManager(auth, qiniuClient);
+        return setConfiguration(bm) ? bm : new BucketManager(auth, config);
+    }
+
+    public UploadManager newUploadManager() {
+        return newUploadManager(null);
+    }
+
+    public UploadManager newUploadManager(Recorder recorder) {
+        UploadManager um = new UploadManager(qiniuClient, recorder);
+        return setConfiguration(um) ? um : new UploadManager(config, recorder);
+    }
+
+    /**
+     * SDK 中传入 Client 的构造函数没有设置 configuration ，使用时会空指针，这里补上。
+     * 失败时调用方改用按 config 创建的实例，不共用连接池
+     */
+    private boolean setConfiguration(Object manager) {
+        try {
+            Field field = manager.getClass().getDeclaredField("configuration");
+            field.setAccessible(true);
+            field.set(manager, config);
+            return true;
+        } catch (Exception e) {
+            return false;
+        }
+    }
+
+    /**
+     * 七牛各服务域名和绑定的下载域名，去重后只保留 scheme://host:port
+     */
+    static List<String> hostUrls(Configuration config, Auth auth, String bucketName, String boundHost)
+            throws QiniuException {
+        Set<String> origins = new LinkedHashSet<String>();
+        List<String> urls = new ArrayList<String>();
+        urls.add(boundHost);
+        urls.add(config.upHost(auth.uploadToken(bucketName)));
+        urls.add(config.ioHost(auth.accessKey, bucketName));
+        urls.add(config.rsHost(auth.accessKey, bucketName));
+        urls.add(config.rsfHost(auth.accessKey, bucketName));
+        for (String url : urls) {
+            HttpUrl u = url == null ? null : HttpUrl.parse(url);
+            if (u != null) {
+                origins.add(u.scheme() + "://" + u.host() + ":" + u.port() + "/");
+            }
+        }
+        return new ArrayList<String>(origins);
+    }
+
+    /**
+     * 对每个地址同时发 connectionsPerHost 个 HEAD 请求，提前完成 DNS 解析、 tcp 连接和 TLS 握手，连接留在连接池中。
+     * 同时进行的请求数受 config.dispatcherMaxRequestsPerHost 限制，连接池保留的空闲连接数受 connectionPoolMaxIdleCount 限制。
+     * 返回成功收到响应的请求数，响应状态码不影响连接复用
+     */
+    public int warmUp(Collection<String> urls, int connectionsPerHost, long timeoutMillis) {
+        final CountDownLatch latch = new CountDownLatch(urls.size() * connectionsPerHost);
+        final AtomicInteger succeeded = new AtomicInteger();
+        Callback callback = new Callback() {
+            @Override
+            public void onFailure(Call call, IOException e) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onResponse(Call call, okhttp3.Response response) {
+                response.close();
+                succeeded.incrementAndGet();
+                latch.countDown();
+            }
+        };
+        for (String url : urls) {
+            Request request = new Request.Builder()
+                    .url(url)
+                    .head()
+                    .addHeader("User-Agent", QiniuOssUtil.userAgent())
+                    .build();
+            for (int i = 0; i < connectionsPerHost; i++) {
+                httpClient.newCall(request).enqueue(callback);
+            }
+        }
+        try {
+            latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return succeeded.get();
+    }
+
+    /**
+     * 每隔 intervalSeconds 秒重新 warmUp 一次，复用空闲连接，被服务端关闭的重新建立。再次调用会替换之前的探测
+     */
+    public synchronized void keepWarm(final Collection<String> urls, final int connectionsPerHost,
+                                      final long intervalSeconds) {
+        stopKeepWarm();
+        prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "qiniu-transport-probe");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        prober.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                warmUp(urls, connectionsPerHost, intervalSeconds * 1000);
+            }
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopKeepWarm() {
+        if (prober != null) {
+            prober.shutdownNow();
+            prober = null;
+        }
+    }
+
+    /**
+     * 按操作、域名的延迟直方图等请求指标，经这个 transport 发出的所有请求都会记录，包括派生的客户端
+     */
+    public QiniuMetrics getMetrics() {
+        return metrics;
+    }
+
+    public Stats getStats() {
+        ConnectionPool pool = httpClient.connectionPool();
+        Dispatcher dispatcher = httpClient.dispatcher();
+        return new Stats(pool.connectionCount(), pool.idleConnectionCount(), dispatcher.runningCallsCount(),
+                dispatcher.queuedCallsCount(), callCount.get(), connectCount.get(), tlsHandshakeCount.get(),
+                connectionAcquiredCount.get());
+    }
+
+    /**
+     * 关闭空闲连接，停止 Dispatcher 的线程池，之后不能再使用
+     */
+    public void shutdown() {
+        stopKeepWarm();
+        httpClient.dispatcher().executorService().shutdown();
+        httpClient.connectionPool().evictAll();
+    }
+
+    /**
+     * 连接池状态和自创建以来的累计计数
+     */
+    public static final class Stats {
+        private final int connectionCount;
+        private final int idleConnectionCount;
+        private final int runningCalls;
+        private final int queuedCalls;
+        private final long callCount;
+        private final long connectCount;
+        private final long tlsHandshakeCount;
+        private final long connectionAcquiredCount;
+
+        Stats(int connectionCount, int idleConnectionCount, int runningCalls, int queuedCalls, long callCount,
+              long connectCount, long tlsHandshakeCount, long connectionAcquiredCount) {
+            this.connectionCount = connectionCount;
+            this.idleConnectionCount = idleConnectionCount;
+            this.runningCalls = runningCalls;
+            this.queuedCalls = queuedCalls;
+            this.callCount = callCount;
+            this.connectCount = connectCount;
+            this.tlsHandshakeCount = tlsHandshakeCount;
+            this.connectionAcquiredCount = connectionAcquiredCount;
+        }
+
+        public int getConnectionCount() {
+            return connectionCount;
+        }
+
+        public int getIdleConnectionCount() {
+            return idleConnectionCount;
+        }
+
+        /** 只含经 enqueue 发出的请求 */
+        public int getRunningCalls() {
+            return runningCalls;
+        }
+
+        public int getQueuedCalls() {
+            return queuedCalls;
+        }
+
+        public long getCallCount() {
+            return callCount;
+        }
+
+        /** 新建 tcp 连接数 */
+        public long getConnectCount() {
+            return connectCount;
+        }
+
+        public long getTlsHandshakeCount() {
+            return tlsHandshakeCount;
+        }
+
+        public long getConnectionAcquiredCount() {
+            return connectionAcquiredCount;
+        }
+
+        /**
+         * 请求复用已有连接的比例
+         */
+        public double getConnectionReuseRate() {
+            return connectionAcquiredCount == 0 ? 0 : 1 - (double) connectCount / connectionAcquiredCount;
+        }
+
+        @Override
+        public String toString() {
+            return "connections=" + connectionCount + ", idle=" + idleConnectionCount + ", running=" + runningCalls
+                    + ", queued=" + queuedCalls + ", calls=" + callCount + ", connects=" + connectCount
+                    + ", tlsHandshakes=" + tlsHandshakeCount + ", reuseRate=" + getConnectionReuseRate();
+        }
+    }
+}
@@ -0,0 +1,285 @@
+package com.aliyun.oss;
+
+import com.qiniu.common.AutoZone;
+import com.qiniu.storage.Configuration;
+import okhttp3.Call;
+import okhttp3.Callback;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 上传域名选择：每个上传域名记录延迟和错误率的指数加权移动平均（ EWMA ），新的上传发往得分最好的域名，
+ * 得分为 (延迟 + 1ms) / (1 - 错误率) ，失败的请求也计入延迟。以 exploreRate 的概率随机改用其它域名，变快的域名有机会被重新选中；
+ * 还没有样本的域名得分为 0 ，会先被试到。
+ * 样本来自设置了这个选择器的 QiniuOSSClient 、 QiniuOssUtil 的真实上传请求，也可以用 probe 、 startProbing 主动探测。
+ * 延迟按请求计，不区分请求体大小，各域名承担的请求大小分布相近时才可比。
+ */
+public class QiniuUpHostSelector {
+    // 错误率按这个上限算，得分不会无穷大，全部出错的域名仍可能被探索到
+    private static final double MAX_ERROR_RATE = 0.99;
+
+    private final List<String> hosts;
+    private final Map<String, HostStats> stats = new LinkedHashMap<String, HostStats>();
+    private final double alpha;
+    private final double exploreRate;
+    private ScheduledExecutorService prober;
+
+    /**
+     * 一个域名的 EWMA ，延迟单位毫秒
+     */
+    private static final class HostStats {
+        private double latency;
+        private double errorRate;
+        private long samples;
+
+        synchronized void record(double alpha, double millis, boolean ok) {
+            if (samples == 0) {
+                latency = millis;
+                errorRate = ok ? 0 : 1;
+            } else {
+                latency += alpha * (millis - latency);
+                errorRate += alpha * ((ok ? 0 : 1) - errorRate);
+            }
+            samples++;
+        }
+
+        synchronized double score() {
+            if (samples == 0) {
+                return 0;
+            }
+            // 加 1ms ，很快失败的域名得分不会是 0
+            return (latency + 1) / (1 - Math.min(MAX_ERROR_RATE, errorRate));
+        }
+
+        synchronized double[] snapshot() {
+            return new double[]{latency, errorRate, samples};
+        }
+    }
+
+    /**
+     * @param hosts       上传域名，如 "http://up.qiniup.com" ，顺序即没有样本时的尝试顺序
+     * @param alpha       EWMA 的权重，越大越看重最近的样本，取 (0, 1]
+     * @param exploreRate 随机试其它域名的概率，取 [0, 1)
+     */
+    public QiniuUpHostSelector(List<String> hosts, double alpha, double exploreRate) {
+        if (hosts == null || hosts.isEmpty()) {
+            throw new IllegalArgumentException("hosts must not be empty");
+        }
+        if (alpha <= 0 || alpha > 1) {
+            throw new IllegalArgumentException("alpha must be in (0, 1]");
+        }
+        if (exploreRate < 0 || exploreRate >= 1) {
+            throw new IllegalArgumentException("exploreRate must be in [0, 1)");
+        }
+        for (String h : hosts) {
+            if (HttpUrl.parse(h) == null) {
+                throw new IllegalArgumentException("invalid host: " + h);
+            }
+            // 与 config.upHost 一致，不带末尾的 /
+            String host = h.endsWith("/") ? h.substring(0, h.length() - 1) : h;
+            if (!stats.containsKey(host)) {
+                stats.put(host, new HostStats());
+            }
+        }
+        this.hosts = Collections.unmodifiableList(new ArrayList<String>(stats.keySet()));
+        this.alpha = alpha;
+        this.exploreRate = exploreRate;
+    }
+
+    /**
+     * 用固定 zone 的主、备、 ip 上传域名， alpha 0.2 ，探索概率 0.05
+     */
+    public static QiniuUpHostSelector fromZone(Configuration config) {
+        if (config.zone == null || config.zone instanceof AutoZone) {
+            throw new IllegalArgumentException("zone must be a fix zone");
+        }
+        List<String> hosts = new ArrayList<String>();
+        // 固定 zone 不看 ZoneReqInfo
+        if (config.useHttpsDomains) {
+            hosts.add(config.zone.getUpHttps(null));
+            hosts.add(config.zone.getUpBackupHttps(null));
+            hosts.add(config.zone.getUpIpHttps(null));
+        } else {
+            hosts.add(config.zone.getUpHttp(null));
+            hosts.add(config.zone.getUpBackupHttp(null));
+            hosts.add(config.zone.getUpIpHttp(null));
+        }
+        List<String> valid = new ArrayList<String>();
+        for (String h : hosts) {
+            if (h != null && HttpUrl.parse(h) != null) {
+                valid.add(h);
+            }
+        }
+        return new QiniuUpHostSelector(valid, 0.2, 0.05);
+    }
+
+    public List<String> getHosts() {
+        return hosts;
+    }
+
+    /**
+     * 新的上传用哪个域名
+     */
+    public String select() {
+        return select(null);
+    }
+
+    /**
+     * 除 failed 以外得分最好的域名，用于换域名重试；只有一个域名时仍返回它
+     */
+    public String selectExcluding(String failed) {
+        return select(failed);
+    }
+
+    private String select(String exclude) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (hosts.size() > 1 && exploreRate > 0 && random.nextDouble() < exploreRate) {
+            String h = hosts.get(random.nextInt(hosts.size()));
+            if (!h.equals(exclude)) {
+                return h;
+            }
+        }
+        String best = null;
+        double bestScore = Double.MAX_VALUE;
+        for (String h : hosts) {
+            if (h.equals(exclude)) {
+                continue;
+            }
+            double s = stats.get(h).score();
+            if (s < bestScore) {
+                best = h;
+                bestScore = s;
+            }
+        }
+        return best != null ? best : hosts.get(0);
+    }
+
+    /**
+     * 记录一次请求， url 以哪个域名开头就记到哪个域名上，不是这些域名的忽略（如 bput 发往 mkblk 返回的 host ）
+     */
+    public void record(String url, long millis, boolean ok) {
+        for (Map.Entry<String, HostStats> e : stats.entrySet()) {
+            String host = e.getKey();
+            // 避免 http://h:80 匹配到 http://h:8080
+            if (url.startsWith(host) && (url.length() == host.length() || "/?".indexOf(url.charAt(host.length())) >= 0)) {
+                e.getValue().record(alpha, millis, ok);
+                return;
+            }
+        }
+    }
+
+    /**
+     * 域名的延迟 EWMA ，毫秒，没有样本时为 0
+     */
+    public double getLatencyMillis(String host) {
+        return stats.get(host).snapshot()[0];
+    }
+
+    /**
+     * 域名的错误率 EWMA
+     */
+    public double getErrorRate(String host) {
+        return stats.get(host).snapshot()[1];
+    }
+
+    public long getSampleCount(String host) {
+        return (long) stats.get(host).snapshot()[2];
+    }
+
+    /**
+     * 对每个域名发一个 HEAD 请求，收到响应（不论状态码）算成功，记录延迟；超时或 IO 异常算失败。返回成功数
+     */
+    public int probe(Call.Factory engine, long timeoutMillis) {
+        final CountDownLatch latch = new CountDownLatch(hosts.size());
+        final AtomicInteger succeeded = new AtomicInteger();
+        final List<Call> calls = new ArrayList<Call>();
+        for (final String host : hosts) {
+            Request request = new Request.Builder()
+                    .url(host)
+                    .head()
+                    .addHeader("User-Agent", QiniuOssUtil.userAgent())
+                    .build();
+            final long start = System.nanoTime();
+            Call call = engine.newCall(request);
+            calls.add(call);
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    record(host, (System.nanoTime() - start) / 1000000, false);
+                    latch.countDown();
+                }
+
+                @Override
+                public void onResponse(Call call, okhttp3.Response response) {
+                    response.close();
+                    record(host, (System.nanoTime() - start) / 1000000, true);
+                    succeeded.incrementAndGet();
+                    latch.countDown();
+                }
+            });
+        }
+        try {
+            latch.await(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // 超时的请求取消后走 onFailure ，算一次失败
+        for (Call call : calls) {
+            call.cancel();
+        }
+        return succeeded.get();
+    }
+
+    /**
+     * 每隔 intervalSeconds 秒 probe 一次，再次调用会替换之前的探测
+     */
+    public synchronized void startProbing(final Call.Factory engine, final long intervalSeconds) {
+        stopProbing();
+        prober = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "qiniu-up-host-probe");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        prober.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                probe(engine, intervalSeconds * 1000);
+            }
+        }, 0, intervalSeconds, TimeUnit.SECONDS);
+    }
+
+    public synchronized void stopProbing() {
+        if (prober != null) {
+            prober.shutdownNow();
+            prober = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (String h : hosts) {
+            double[] s = stats.get(h).snapshot();
+            sb.append(sb.length() == 0 ? "" : ", ").append(h).append(String.format(" latency=%.1fms errors=%.2f n=%d",
+                    s[0], s[1], (long) s[2]));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,122 @@
+package com.aliyun.oss;
+
+import com.qiniu.util.Auth;
+import com.qiniu.util.Json;
+import com.qiniu.util.StringMap;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 上传凭证缓存，按 空间 + key + 上传策略 缓存 auth.uploadToken 的结果。
+ * 生成凭证要拼 json 、 base64 、算 HMAC ，上传小文件时很占 CPU ，策略一般不变，没必要每次都生成。
+ * 凭证有效期 expires 秒，剩余有效期不足 margin 秒时重新生成，保证拿到的凭证至少还能用 margin 秒。
+ * 凭证和 Auth 绑定，换密钥后需要新建。
+ */
+public class QiniuUploadTokenCache {
+    private final Auth auth;
+    private final long expires;
+    private final long margin;
+    private final int maxEntries;
+    private final Map<String, Token> tokens;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private static final class Token {
+        final String token;
+        final long deadline;
+
+        Token(String token, long deadline) {
+            this.token = token;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * @param expires    凭证有效期，秒
+     * @param margin     剩余有效期不足 margin 秒时重新生成，须小于 expires
+     * @param maxEntries 最多缓存的凭证数，按 key 指定范围时每个 key 一个凭证
+     */
+    public QiniuUploadTokenCache(Auth auth, long expires, long margin, final int maxEntries) {
+        if (margin >= expires) {
+            throw new IllegalArgumentException("margin must be less than expires");
+        }
+        this.auth = auth;
+        this.expires = expires;
+        this.margin = margin;
+        this.maxEntries = maxEntries;
+        this.tokens = new LinkedHashMap<String, Token>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Token> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * 与 auth.uploadToken(bucket, key) 相同的凭证， key 为 null 时只能新增，不能覆盖
+     */
+    public String get(String bucket, String key) {
+        return get(bucket, key, null);
+    }
+
+    /**
+     * 与 auth.uploadToken(bucket, key, expires, policy) 相同的凭证
+     */
+    public String get(String bucket, String key, StringMap policy) {
+        StringBuilder b = new StringBuilder(bucket.length() + (key == null ? 0 : key.length()) + 2);
+        b.append(bucket).append(key == null ? '\u0000' : ':');
+        if (key != null) {
+            b.append(key);
+        }
+        if (policy != null && policy.size() > 0) {
+            b.append('\u0000').append(Json.encode(policy));
+        }
+        String cacheKey = b.toString();
+
+        long now = System.currentTimeMillis() / 1000;
+        Token t;
+        synchronized (tokens) {
+            t = tokens.get(cacheKey);
+        }
+        if (t != null && t.deadline - now >= margin) {
+            hitCount.incrementAndGet();
+            return t.token;
+        }
+        missCount.incrementAndGet();
+        long deadline = now + expires;
+        String token = auth.uploadTokenWithDeadline(bucket, key, deadline, policy, true);
+        synchronized (tokens) {
+            tokens.put(cacheKey, new Token(token, deadline));
+        }
+        return token;
+    }
+
+    /**
+     * 同样的配置，新的密钥，旧凭证全部作废
+     */
+    QiniuUploadTokenCache withAuth(Auth auth) {
+        return new QiniuUploadTokenCache(auth, expires, margin, maxEntries);
+    }
+
+    public void invalidateAll() {
+        synchronized (tokens) {
+            tokens.clear();
+        }
+    }
+
+    public int size() {
+        synchronized (tokens) {
+            return tokens.size();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
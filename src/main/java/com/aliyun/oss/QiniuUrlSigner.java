@@ -0,0 +1,158 @@
+package com.aliyun.oss;
+
+import com.qiniu.common.Constants;
+import com.qiniu.util.UrlSafeBase64;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 私有空间下载地址签名，与 Auth.privateDownloadUrlWithDeadline 结果一致。
+ * 每个线程复用一个 Mac ，不用每次初始化 HMAC-SHA1 。
+ * sign(url, expires) 把过期时间向上取整到 quantum 秒，同一时间段内同一个地址签名结果相同，
+ * 缓存后直到剩余有效期不足 expires 才重新签名，同时对 CDN 缓存也更友好。
+ */
+public class QiniuUrlSigner {
+    private final String accessKey;
+    private final SecretKeySpec secretKey;
+    private final long quantum;
+    private final int cacheSize;
+    private final Map<String, Signed> cache;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    private final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                Mac mac = Mac.getInstance("HmacSHA1");
+                mac.init(secretKey);
+                return mac;
+            } catch (GeneralSecurityException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+    };
+
+    private static final class Signed {
+        final String url;
+        final long deadline;
+
+        Signed(String url, long deadline) {
+            this.url = url;
+            this.deadline = deadline;
+        }
+    }
+
+    /**
+     * @param quantum   过期时间取整的粒度，秒
+     * @param cacheSize 最多缓存的地址数， 0 表示不缓存
+     */
+    public QiniuUrlSigner(String accessKey, String secretKey, long quantum, int cacheSize) {
+        this(accessKey, new SecretKeySpec(secretKey.getBytes(Constants.UTF_8), "HmacSHA1"), quantum, cacheSize);
+    }
+
+    private QiniuUrlSigner(String accessKey, SecretKeySpec secretKey, long quantum, final int cacheSize) {
+        this.accessKey = accessKey;
+        this.secretKey = secretKey;
+        this.quantum = Math.max(1, quantum);
+        this.cacheSize = cacheSize;
+        this.cache = cacheSize <= 0 ? null : new LinkedHashMap<String, Signed>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Signed> eldest) {
+                return size() > cacheSize;
+            }
+        };
+    }
+
+    /**
+     * 签名，至少 expires 秒内有效
+     */
+    public String sign(String baseUrl, long expires) {
+        return sign(baseUrl, expires, System.currentTimeMillis() / 1000);
+    }
+
+    private String sign(String baseUrl, long expires, long now) {
+        if (cache != null) {
+            Signed s;
+            synchronized (cache) {
+                s = cache.get(baseUrl);
+            }
+            if (s != null && s.deadline - now >= expires) {
+                hitCount.incrementAndGet();
+                return s.url;
+            }
+            missCount.incrementAndGet();
+        }
+        long deadline = quantize(now + expires);
+        String url = signWithDeadline(baseUrl, deadline);
+        if (cache != null) {
+            synchronized (cache) {
+                cache.put(baseUrl, new Signed(url, deadline));
+            }
+        }
+        return url;
+    }
+
+    /**
+     * 批量签名，共用同一个过期时间，返回 baseUrl -> 签名后的地址，顺序与 baseUrls 一致
+     */
+    public Map<String, String> sign(List<String> baseUrls, long expires) {
+        Map<String, String> ret = new LinkedHashMap<String, String>(baseUrls.size() * 4 / 3 + 1);
+        long now = System.currentTimeMillis() / 1000;
+        for (String baseUrl : baseUrls) {
+            ret.put(baseUrl, sign(baseUrl, expires, now));
+        }
+        return ret;
+    }
+
+    /**
+     * 按给定的过期时间签名，不取整、不缓存。 deadline 为 unix 时间戳，秒
+     */
+    public String signWithDeadline(String baseUrl, long deadline) {
+        StringBuilder b = new StringBuilder(baseUrl.length() + 80);
+        b.append(baseUrl).append(baseUrl.indexOf('?') >= 0 ? "&e=" : "?e=").append(deadline);
+        byte[] digest = macs.get().doFinal(b.toString().getBytes(Constants.UTF_8));
+        b.append("&token=").append(accessKey).append(':').append(UrlSafeBase64.encodeToString(digest));
+        return b.toString();
+    }
+
+    /**
+     * 同样的密钥，新的取整粒度和缓存大小
+     */
+    QiniuUrlSigner withOptions(long quantum, int cacheSize) {
+        return new QiniuUrlSigner(accessKey, secretKey, quantum, cacheSize);
+    }
+
+    /**
+     * 新的密钥，同样的取整粒度和缓存大小
+     */
+    QiniuUrlSigner withCredentials(String accessKey, String secretKey) {
+        return new QiniuUrlSigner(accessKey, secretKey, quantum, cacheSize);
+    }
+
+    long quantize(long deadline) {
+        return (deadline + quantum - 1) / quantum * quantum;
+    }
+
+    public void clearCache() {
+        if (cache != null) {
+            synchronized (cache) {
+                cache.clear();
+            }
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+}
@@ -0,0 +1,169 @@
+package com.aliyun.oss;
+
+import com.qiniu.common.QiniuException;
+import com.qiniu.http.Response;
+import com.qiniu.storage.model.BucketInfo;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class QiniuBucketInfoCacheTest {
+
+    /** 记录调用次数，可以阻塞住模拟慢请求 */
+    static class CountingLoader implements QiniuBucketInfoCache.Loader {
+        final AtomicInteger calls = new AtomicInteger();
+        volatile CountDownLatch gate;
+        volatile boolean exists = true;
+
+        @Override
+        public BucketInfo load(String bucketName) throws QiniuException {
+            calls.incrementAndGet();
+            CountDownLatch g = gate;
+            if (g != null) {
+                try {
+                    g.await();
+                } catch (InterruptedException e) {
+                    throw new QiniuException(e);
+                }
+            }
+            if (!exists) {
+                throw new QiniuException(Response.createError(noSuchEntry(), "uc", 0, "no such bucket"));
+            }
+            return new BucketInfo();
+        }
+    }
+
+    static okhttp3.Response noSuchEntry() {
+        return new okhttp3.Response.Builder()
+                .request(new okhttp3.Request.Builder().url("http://uc.qbox.me/v2/bucketInfo").build())
+                .protocol(okhttp3.Protocol.HTTP_1_1)
+                .code(612)
+                .message("no such entry")
+                .body(okhttp3.ResponseBody.create(okhttp3.MediaType.parse("application/json"),
+                        "{\"error\":\"no such entry\"}"))
+                .build();
+    }
+
+    @Test
+    public void testConcurrentMissesShareOneLoad() throws Exception {
+        final QiniuBucketInfoCache cache = new QiniuBucketInfoCache(60000, 0);
+        final CountingLoader loader = new CountingLoader();
+        loader.gate = new CountDownLatch(1);
+
+        final AtomicInteger ok = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            Thread t = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        if (cache.get("bkt", loader).info != null) {
+                            ok.incrementAndGet();
+                        }
+                    } catch (QiniuException e) {
+                        e.printStackTrace();
+                    }
+                }
+            };
+            t.start();
+            threads.add(t);
+        }
+        Thread.sleep(200);
+        loader.gate.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertEquals(8, ok.get());
+        Assert.assertEquals(" 同时未命中只请求一次 ", 1, loader.calls.get());
+
+        cache.get("bkt", loader);
+        Assert.assertEquals(1, loader.calls.get());
+    }
+
+    @Test
+    public void testNegativeAndInvalidate() throws Exception {
+        QiniuBucketInfoCache cache = new QiniuBucketInfoCache(60000, 0);
+        CountingLoader loader = new CountingLoader();
+        loader.exists = false;
+        Assert.assertNull(cache.get("bkt", loader).info);
+        Assert.assertNull(cache.get("bkt", loader).info);
+        Assert.assertEquals(1, loader.calls.get());
+
+        loader.exists = true;
+        cache.invalidate("bkt");
+        Assert.assertNotNull(cache.get("bkt", loader).info);
+        Assert.assertEquals(2, loader.calls.get());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+    }
+
+    @Test(timeout = 10000)
+    public void testInvalidateDropsInFlightLoad() throws Exception {
+        final QiniuBucketInfoCache cache = new QiniuBucketInfoCache(60000, 0);
+        final CountingLoader slow = new CountingLoader();
+        slow.gate = new CountDownLatch(1);
+        final CountingLoader other = new CountingLoader();
+        other.gate = new CountDownLatch(1);
+        Thread a = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.get("bkt", slow);
+                    cache.get("other", other);
+                } catch (QiniuException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        Thread b = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    cache.get("other", other);
+                } catch (QiniuException e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        a.start();
+        b.start();
+        Thread.sleep(200);
+
+        // 加载开始后失效：之后的调用不等旧的加载，旧的结果也不写入缓存
+        cache.invalidate("bkt");
+        CountingLoader fresh = new CountingLoader();
+        fresh.exists = false;
+        Assert.assertNull(cache.get("bkt", fresh).info);
+        slow.gate.countDown();
+        other.gate.countDown();
+        a.join();
+        b.join();
+        Assert.assertNull(cache.get("bkt", fresh).info);
+        Assert.assertEquals(1, fresh.calls.get());
+
+        // 失效 bkt 不影响 other 的加载结果写入缓存
+        Assert.assertEquals(1, other.calls.get());
+    }
+
+    @Test
+    public void testRefreshAhead() throws Exception {
+        QiniuBucketInfoCache cache = new QiniuBucketInfoCache(300, 250);
+        CountingLoader loader = new CountingLoader();
+        QiniuBucketInfoCache.Entry first = cache.get("bkt", loader);
+        Thread.sleep(100);
+        // 进入提前刷新区间，仍然直接返回旧值，后台刷新
+        Assert.assertSame(first, cache.get("bkt", loader));
+        for (int i = 0; i < 50 && loader.calls.get() < 2; i++) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(2, loader.calls.get());
+        Thread.sleep(20);
+        Assert.assertNotSame(" 后台刷新后拿到新值 ", first, cache.get("bkt", loader));
+        cache.shutdown();
+    }
+}
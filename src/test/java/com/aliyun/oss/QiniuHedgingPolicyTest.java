@@ -0,0 +1,135 @@
+package com.aliyun.oss;
+
+import com.aliyun.oss.model.OSSObject;
+import junit.framework.Assert;
+import okhttp3.Request;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+
+
+public class QiniuHedgingPolicyTest {
+    private QiniuKodoStandIn primary;
+    private QiniuKodoStandIn backup;
+    private QiniuOSSClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        primary = new QiniuKodoStandIn();
+        backup = new QiniuKodoStandIn();
+        for (QiniuKodoStandIn kodo : Arrays.asList(primary, backup)) {
+            kodo.createBucket("bkt", true);
+            kodo.putObject("bkt", "a.txt", "hello".getBytes("UTF-8"), "text/plain");
+        }
+        client = primary.newClient("bkt");
+    }
+
+    @After
+    public void tearDown() {
+        primary.close();
+        backup.close();
+    }
+
+    private String read(String key) throws IOException {
+        OSSObject obj = client.getObject("bkt", key);
+        try {
+            byte[] b = new byte[16];
+            int n = obj.getObjectContent().read(b);
+            return new String(b, 0, n, "UTF-8");
+        } finally {
+            obj.close();
+        }
+    }
+
+    @Test
+    public void testHedgeToAlternateHost() throws IOException {
+        QiniuHedgingPolicy policy = new QiniuHedgingPolicy(0.95, 10, 50, 2);
+        policy.setOtherAddress(false);
+        policy.setAlternateHosts(Collections.singletonList(backup.getHost()));
+        client.setHedgingPolicy(policy);
+
+        primary.setLatency(2000);
+        long start = System.currentTimeMillis();
+        Assert.assertEquals("hello", read("a.txt"));
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        Assert.assertEquals(1, policy.getHedgeCount());
+        Assert.assertEquals(1, policy.getAlternateWinCount());
+        // 备用地址收到的 Host 头是原来的域名，下载 token 照样校验通过
+        Assert.assertEquals(1, backup.getRequestCount(QiniuKodoStandIn.Endpoint.GET));
+    }
+
+    @Test
+    public void testSingleAddressDoesNotUseAnAttempt() throws IOException {
+        // 127.0.0.1 只有一个 ip ，默认开启的 otherAddress 不占 maxAttempts ，对冲请求发往备用地址
+        QiniuHedgingPolicy policy = new QiniuHedgingPolicy(0.95, 10, 50, 2);
+        policy.setAlternateHosts(Collections.singletonList(backup.getHost()));
+        client.setHedgingPolicy(policy);
+
+        primary.setLatency(2000);
+        long start = System.currentTimeMillis();
+        Assert.assertEquals("hello", read("a.txt"));
+        Assert.assertTrue(System.currentTimeMillis() - start < 1000);
+        Assert.assertEquals(1, policy.getHedgeCount());
+        Assert.assertEquals(1, policy.getAlternateWinCount());
+        Assert.assertEquals(0, policy.getFailoverCount());
+        Assert.assertEquals(1, backup.getRequestCount(QiniuKodoStandIn.Endpoint.GET));
+    }
+
+    @Test
+    public void testNoHedgeWhenFast() throws IOException {
+        QiniuHedgingPolicy policy = new QiniuHedgingPolicy(0.95, 500, 1000, 3);
+        policy.setAlternateHosts(Collections.singletonList(backup.getHost()));
+        client.setHedgingPolicy(policy);
+        for (int i = 0; i < 30; i++) {
+            Assert.assertEquals("hello", read("a.txt"));
+        }
+        Assert.assertEquals(0, policy.getHedgeCount());
+        Assert.assertEquals(0, backup.getRequestCount(QiniuKodoStandIn.Endpoint.GET));
+        // 样本够了之后按分位数算，本地请求远小于下限
+        Assert.assertEquals(500, policy.getHedgeDelayMillis());
+    }
+
+    @Test
+    public void testFailoverOnConnectFailure() throws IOException {
+        QiniuHedgingPolicy policy = new QiniuHedgingPolicy(0.95, 5000, 5000, 3);
+        // 127.0.0.1 只有一个 ip ，另一个 ip 的尝试直接跳过，不算故障转移
+        policy.setAlternateHosts(Collections.singletonList(backup.getHost()));
+        client.setHedgingPolicy(policy);
+        primary.close();
+
+        long start = System.currentTimeMillis();
+        Assert.assertEquals("hello", read("a.txt"));
+        Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+        Assert.assertEquals(0, policy.getHedgeCount());
+        Assert.assertEquals(1, policy.getFailoverCount());
+        Assert.assertEquals(1, policy.getAlternateWinCount());
+    }
+
+    @Test
+    public void testAllFail() throws IOException {
+        QiniuHedgingPolicy policy = new QiniuHedgingPolicy(0.95, 10, 10, 3);
+        policy.setOtherAddress(false);
+        client.setHedgingPolicy(policy);
+        primary.failNext(QiniuKodoStandIn.Endpoint.GET, QiniuKodoStandIn.DROP, 10);
+        try {
+            read("a.txt");
+            Assert.fail();
+        } catch (OSSException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void testRewriteKeepsHost() {
+        Request req = new Request.Builder().url("http://cdn.example.com/a%2Fb.jpg?e=1&token=x").build();
+        Request r = QiniuHedgingPolicy.rewrite(req, "https://10.0.0.2:8443");
+        Assert.assertEquals("https://10.0.0.2:8443/a%2Fb.jpg?e=1&token=x", r.url().toString());
+        Assert.assertEquals("cdn.example.com", r.header("Host"));
+        req = new Request.Builder().url("http://127.0.0.1:8080/x").build();
+        Assert.assertEquals("127.0.0.1:8080", QiniuHedgingPolicy.rewrite(req, "http://h").header("Host"));
+    }
+}
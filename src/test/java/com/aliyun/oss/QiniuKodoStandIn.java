@@ -0,0 +1,1002 @@
+package com.aliyun.oss;
+
+import com.qiniu.common.Zone;
+import com.qiniu.storage.Configuration;
+import com.qiniu.util.Auth;
+import com.qiniu.util.Crc32;
+import com.qiniu.util.Etag;
+import com.qiniu.util.Json;
+import com.qiniu.util.StringMap;
+import com.qiniu.util.UrlSafeBase64;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 进程内的七牛 Kodo 替身，不需要网络和真实账号，用于离线测试、压测和基准测试。
+ * 上传、下载、 rs 、 rsf 共用一个本地端口，按路径区分：
+ * <ul>
+ * <li>/up ：表单上传， /up/mkblk 、 /up/bput 、 /up/mkfile 分块上传，校验上传凭证</li>
+ * <li>/io/&lt;bucket&gt;/&lt;key&gt; ：下载，支持 Range ，私有空间校验下载 token 和过期时间</li>
+ * <li>/stat 、 /delete 、 /batch （ stat 、 delete ）、 /list 、 /v2/list ：校验管理凭证</li>
+ * <li>任意路径的 HEAD ：只用于连接预热，返回 404 ，没有响应体</li>
+ * </ul>
+ * 文件默认存在内存中， dataDir 不为 null 时内容存为文件，元信息仍在内存中。
+ * 可以设置固定延迟、限速和错误注入，错误注入用固定的随机种子，结果可以重现：
+ * <pre>
+ * QiniuKodoStandIn kodo = new QiniuKodoStandIn();
+ * kodo.createBucket("bkt", true);
+ * kodo.setLatency(5);
+ * kodo.failNext(QiniuKodoStandIn.Endpoint.STAT, 503, 2);
+ * QiniuOSSClient client = kodo.newClient("bkt");
+ * </pre>
+ * 基准测试时用 setVerify(false) 关掉校验和 hash 计算，下载、列举可以用 setCannedObject 、 setCannedListing 返回固定内容，
+ * 服务端的开销尽量小，测出来的主要是客户端的开销。
+ */
+public class QiniuKodoStandIn implements Closeable {
+    /** 错误注入的状态码，不返回响应直接断开连接 */
+    public static final int DROP = -1;
+
+    public static final String CANNED_HASH = "FhCanned";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    static {
+        // JDK 的 HttpServer 默认开着 Nagle ，响应头和响应体分两次写时每个请求会多等一个 delayed ack （约 40ms ）
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    public enum Endpoint {
+        FORM_UPLOAD, MKBLK, BPUT, MKFILE, GET, STAT, DELETE, BATCH, LIST, LIST_V2, HEAD
+    }
+
+    private static final class StoredObject {
+        final long size;
+        final String hash;
+        final String mimeType;
+        final long putTime;
+        final byte[] data;
+        final File file;
+
+        StoredObject(long size, String hash, String mimeType, byte[] data, File file) {
+            this.size = size;
+            this.hash = hash;
+            this.mimeType = mimeType;
+            // 单位 100ns
+            this.putTime = System.currentTimeMillis() * 10000;
+            this.data = data;
+            this.file = file;
+        }
+
+        Map<String, Object> toMap(String key) {
+            return map("key", key, "hash", hash, "fsize", size, "mimeType", mimeType, "putTime", putTime,
+                    "type", 0);
+        }
+    }
+
+    private static final class Bucket {
+        final boolean privateBucket;
+        final ConcurrentSkipListMap<String, StoredObject> objects = new ConcurrentSkipListMap<String, StoredObject>();
+
+        Bucket(boolean privateBucket) {
+            this.privateBucket = privateBucket;
+        }
+    }
+
+    /** 错误注入、鉴权失败等，直接转为错误响应 */
+    private static final class KodoError extends Exception {
+        private static final long serialVersionUID = 1L;
+        final int status;
+
+        KodoError(int status, String message) {
+            super(message);
+            this.status = status;
+        }
+    }
+
+    private final Auth auth;
+    private final String secretKey;
+    private final File dataDir;
+    private final HttpServer server;
+    private final ExecutorService pool;
+    private final String host;
+    private final ConcurrentMap<String, Bucket> buckets = new ConcurrentHashMap<String, Bucket>();
+    private final ConcurrentMap<String, ByteArrayOutputStream> blocks =
+            new ConcurrentHashMap<String, ByteArrayOutputStream>();
+    private final AtomicLong blockSeq = new AtomicLong();
+    private final Map<Endpoint, AtomicInteger> requestCounts = new EnumMap<Endpoint, AtomicInteger>(Endpoint.class);
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    /** 当前线程上的请求是否还计在 inFlight 中 */
+    private final ThreadLocal<Boolean> counted = new ThreadLocal<Boolean>();
+
+    // 以下由 synchronized (this) 保护
+    private final Map<Endpoint, LinkedList<Integer>> failures = new EnumMap<Endpoint, LinkedList<Integer>>(Endpoint.class);
+    private Random random = new Random(0);
+    private double errorRate;
+    private int errorStatus = 503;
+
+    private volatile long latencyMillis;
+    private volatile long bytesPerSecond;
+    private volatile boolean requireCrc32;
+    private volatile boolean verify = true;
+    private volatile byte[] cannedObject;
+    private volatile byte[] cannedListing;
+
+    public QiniuKodoStandIn() throws IOException {
+        this("ak", "sk", null);
+    }
+
+    /**
+     * @param dataDir 文件内容的存放目录， null 表示存在内存中
+     */
+    public QiniuKodoStandIn(String accessKey, String secretKey, File dataDir) throws IOException {
+        this.auth = Auth.create(accessKey, secretKey);
+        this.secretKey = secretKey;
+        this.dataDir = dataDir;
+        if (dataDir != null && !dataDir.isDirectory() && !dataDir.mkdirs()) {
+            throw new IOException("cannot create " + dataDir);
+        }
+        for (Endpoint e : Endpoint.values()) {
+            requestCounts.put(e, new AtomicInteger());
+            failures.put(e, new LinkedList<Integer>());
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        final AtomicInteger seq = new AtomicInteger();
+        pool = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "qiniu-kodo-stand-in-" + seq.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        server.setExecutor(pool);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                dispatch(ex);
+            }
+        });
+        server.start();
+        host = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    public String getAccessKey() {
+        return auth.accessKey;
+    }
+
+    /**
+     * scheme://host:port ，不带路径
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * 空间绑定的下载域名，作为 QiniuOSSClient 的 host
+     */
+    public String getDownloadHost(String bucket) {
+        return host + "/io/" + bucket;
+    }
+
+    /**
+     * 上传、 rs 、 rsf 都指向这个替身的配置
+     */
+    public Configuration newConfig() {
+        Zone zone = new Zone.Builder().region("z0").upHttp(host + "/up").upBackupHttp(host + "/up")
+                .rsHttp(host).rsfHttp(host).apiHttp(host).iovipHttp(host).build();
+        Configuration config = new Configuration(zone);
+        config.useHttpsDomains = false;
+        return config;
+    }
+
+    public QiniuOSSClient newClient(String bucket) {
+        return new QiniuOSSClient(auth.accessKey, secretKey, getDownloadHost(bucket), newConfig());
+    }
+
+    public QiniuOssUtil newUtil(String bucket) {
+        return new QiniuOssUtil(auth.accessKey, secretKey, getDownloadHost(bucket), newConfig());
+    }
+
+    public void createBucket(String bucket, boolean privateBucket) {
+        buckets.putIfAbsent(bucket, new Bucket(privateBucket));
+    }
+
+    /**
+     * 直接放入文件，不经过 http ，用于准备测试数据
+     */
+    public void putObject(String bucket, String key, byte[] content, String mimeType) throws IOException {
+        store(bucket(bucket), bucket, key, content, mimeType, hashOf(content));
+    }
+
+    /**
+     * 文件内容，不存在时返回 null
+     */
+    public byte[] getObject(String bucket, String key) throws IOException {
+        Bucket b = buckets.get(bucket);
+        StoredObject obj = b == null ? null : b.objects.get(key);
+        if (obj == null) {
+            return null;
+        }
+        return obj.data != null ? obj.data : readFile(obj.file, 0, obj.size);
+    }
+
+    public int getObjectCount(String bucket) {
+        Bucket b = buckets.get(bucket);
+        return b == null ? 0 : b.objects.size();
+    }
+
+    /**
+     * 每个请求在返回响应前固定等待的毫秒数
+     */
+    public void setLatency(long millis) {
+        this.latencyMillis = millis;
+    }
+
+    /**
+     * 每个请求读请求体、写响应体的速度上限，字节每秒， 0 表示不限
+     */
+    public void setBandwidth(long bytesPerSecond) {
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    /**
+     * 表单上传不带 crc32 时返回 400 ，用于检查客户端是否做了校验。默认不要求，与七牛一致
+     */
+    public void setRequireCrc32(boolean requireCrc32) {
+        this.requireCrc32 = requireCrc32;
+    }
+
+    /**
+     * false 时不校验上传凭证、管理凭证、下载 token 和 crc32 ，上传的文件不计算 hash ，统一返回 CANNED_HASH 。默认 true
+     */
+    public void setVerify(boolean verify) {
+        this.verify = verify;
+    }
+
+    /**
+     * 不为 null 时，下载任何 key 都返回这份内容，不查空间和文件，不支持 Range
+     */
+    public void setCannedObject(byte[] content) {
+        this.cannedObject = content;
+    }
+
+    /**
+     * 不为 null 时， /list 原样返回这份 json ， /v2/list 不受影响
+     */
+    public void setCannedListing(byte[] json) {
+        this.cannedListing = json;
+    }
+
+    /**
+     * 接下来 times 个发往 endpoint 的请求返回 status ， status 为 DROP 时直接断开连接
+     */
+    public synchronized void failNext(Endpoint endpoint, int status, int times) {
+        for (int i = 0; i < times; i++) {
+            failures.get(endpoint).add(status);
+        }
+    }
+
+    /**
+     * 所有请求按 rate 的概率返回 status 。 seed 相同时，同样顺序的请求得到同样的结果
+     */
+    public synchronized void setErrorRate(double rate, int status, long seed) {
+        this.errorRate = rate;
+        this.errorStatus = status;
+        this.random = new Random(seed);
+    }
+
+    public int getRequestCount(Endpoint endpoint) {
+        return requestCounts.get(endpoint).get();
+    }
+
+    /**
+     * 同时处理的请求数的峰值，从收到请求到开始发响应为止
+     */
+    public int getPeakInFlight() {
+        return peakInFlight.get();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        pool.shutdownNow();
+    }
+
+    private synchronized Integer injectedStatus(Endpoint endpoint) {
+        Integer status = failures.get(endpoint).poll();
+        if (status == null && errorRate > 0 && random.nextDouble() < errorRate) {
+            status = errorStatus;
+        }
+        return status;
+    }
+
+    private static Endpoint route(String path) {
+        if (path.startsWith("/io/")) {
+            return Endpoint.GET;
+        } else if (path.startsWith("/up/mkblk/")) {
+            return Endpoint.MKBLK;
+        } else if (path.startsWith("/up/bput/")) {
+            return Endpoint.BPUT;
+        } else if (path.startsWith("/up/mkfile/")) {
+            return Endpoint.MKFILE;
+        } else if (path.equals("/up") || path.equals("/up/")) {
+            return Endpoint.FORM_UPLOAD;
+        } else if (path.startsWith("/stat/")) {
+            return Endpoint.STAT;
+        } else if (path.startsWith("/delete/")) {
+            return Endpoint.DELETE;
+        } else if (path.equals("/batch")) {
+            return Endpoint.BATCH;
+        } else if (path.equals("/list")) {
+            return Endpoint.LIST;
+        } else if (path.equals("/v2/list")) {
+            return Endpoint.LIST_V2;
+        }
+        return null;
+    }
+
+    private void dispatch(HttpExchange ex) throws IOException {
+        int n = inFlight.incrementAndGet();
+        counted.set(Boolean.TRUE);
+        while (true) {
+            int peak = peakInFlight.get();
+            if (n <= peak || peakInFlight.compareAndSet(peak, n)) {
+                break;
+            }
+        }
+        try {
+            String path = ex.getRequestURI().getRawPath();
+            Endpoint endpoint = "HEAD".equals(ex.getRequestMethod()) ? Endpoint.HEAD : route(path);
+            if (endpoint == null) {
+                ex.getRequestBody().close();
+                sendJson(ex, 404, map("error", "no such endpoint: " + path));
+                return;
+            }
+            requestCounts.get(endpoint).incrementAndGet();
+            byte[] body = readBody(ex);
+            if (latencyMillis > 0) {
+                Thread.sleep(latencyMillis);
+            }
+            Integer injected = injectedStatus(endpoint);
+            if (injected != null && injected == DROP) {
+                // 不发响应头直接关闭， OkHttp 得到 unexpected end of stream
+                ex.close();
+                return;
+            } else if (injected != null) {
+                throw new KodoError(injected, "injected error");
+            }
+            handle(endpoint, ex, path, body);
+        } catch (KodoError e) {
+            sendJson(ex, e.status, map("error", e.getMessage()));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ex.close();
+        } catch (RuntimeException e) {
+            sendJson(ex, 500, map("error", String.valueOf(e)));
+        } finally {
+            leave();
+        }
+    }
+
+    /**
+     * 发响应头之前就不再计入 inFlight ，否则客户端已拿到响应、发出下一个请求时，这个请求可能还没减掉
+     */
+    private void leave() {
+        if (counted.get() != null) {
+            counted.remove();
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private void handle(Endpoint endpoint, HttpExchange ex, String path, byte[] body)
+            throws IOException, KodoError, InterruptedException {
+        switch (endpoint) {
+            case FORM_UPLOAD:
+                formUpload(ex, body);
+                break;
+            case MKBLK:
+                checkUpToken(ex);
+                mkblk(ex, body);
+                break;
+            case BPUT:
+                checkUpToken(ex);
+                bput(ex, path, body);
+                break;
+            case MKFILE:
+                mkfile(ex, path, checkUpToken(ex), body);
+                break;
+            case GET:
+                get(ex, path);
+                break;
+            case HEAD:
+                sendBytes(ex, 404, "application/json", new byte[0]);
+                break;
+            default:
+                checkManagement(ex, body);
+                manage(endpoint, ex, path, body);
+                break;
+        }
+    }
+
+    private void manage(Endpoint endpoint, HttpExchange ex, String path, byte[] body)
+            throws IOException, KodoError, InterruptedException {
+        if (endpoint == Endpoint.STAT || endpoint == Endpoint.DELETE) {
+            Map<String, Object> ret = rsOp(path);
+            Object data = ret.get("data");
+            sendJson(ex, (Integer) ret.get("code"), data != null ? data : map());
+        } else if (endpoint == Endpoint.BATCH) {
+            List<Map<String, Object>> results = new ArrayList<Map<String, Object>>();
+            boolean allOk = true;
+            for (String[] kv : parseForm(new String(body, UTF_8))) {
+                if ("op".equals(kv[0])) {
+                    // batch 里的 op 不带开头的 /
+                    Map<String, Object> r = rsOp(kv[1].startsWith("/") ? kv[1] : "/" + kv[1]);
+                    allOk &= (Integer) r.get("code") == 200;
+                    results.add(r);
+                }
+            }
+            // 部分失败为 298
+            sendJson(ex, allOk ? 200 : 298, results);
+        } else {
+            Map<String, String> q = new HashMap<String, String>();
+            for (String[] kv : parseForm(ex.getRequestURI().getRawQuery())) {
+                q.put(kv[0], kv[1]);
+            }
+            list(endpoint, ex, q);
+        }
+    }
+
+    /**
+     * /stat/&lt;entry&gt; 、 /delete/&lt;entry&gt; ，返回 {code, data} ，与 batch 的每一项相同
+     */
+    private Map<String, Object> rsOp(String op) throws IOException {
+        String[] seg = op.split("/");
+        if (seg.length < 3 || !("stat".equals(seg[1]) || "delete".equals(seg[1]))) {
+            return map("code", 400, "data", map("error", "unsupported op: " + op));
+        }
+        String entry = new String(UrlSafeBase64.decode(seg[2]), UTF_8);
+        int i = entry.indexOf(':');
+        String bucketName = i < 0 ? entry : entry.substring(0, i);
+        String key = i < 0 ? "" : entry.substring(i + 1);
+        Bucket b = buckets.get(bucketName);
+        if (b == null) {
+            return map("code", 631, "data", map("error", "no such bucket"));
+        }
+        StoredObject obj = "stat".equals(seg[1]) ? b.objects.get(key) : b.objects.remove(key);
+        if (obj == null) {
+            return map("code", 612, "data", map("error", "no such file or directory"));
+        }
+        if (obj.file != null && "delete".equals(seg[1])) {
+            obj.file.delete();
+        }
+        return "stat".equals(seg[1]) ? map("code", 200, "data", obj.toMap(null)) : map("code", 200);
+    }
+
+    private void list(Endpoint endpoint, HttpExchange ex, Map<String, String> q)
+            throws IOException, KodoError, InterruptedException {
+        byte[] canned = cannedListing;
+        if (canned != null && endpoint == Endpoint.LIST) {
+            sendBytes(ex, 200, "application/json", canned);
+            return;
+        }
+        Bucket b = buckets.get(q.get("bucket"));
+        if (b == null) {
+            throw new KodoError(631, "no such bucket");
+        }
+        String prefix = q.containsKey("prefix") ? q.get("prefix") : "";
+        String delimiter = q.containsKey("delimiter") ? q.get("delimiter") : "";
+        String marker = q.containsKey("marker") ? q.get("marker") : "";
+        int limit = q.containsKey("limit") ? Integer.parseInt(q.get("limit")) : 0;
+        if (endpoint == Endpoint.LIST) {
+            limit = limit <= 0 || limit > 1000 ? 1000 : limit;
+        }
+        boolean[] more = new boolean[1];
+        List<Object> page = listPage(b, prefix, delimiter, marker, limit, more);
+
+        if (endpoint == Endpoint.LIST) {
+            List<Map<String, Object>> items = new ArrayList<Map<String, Object>>();
+            List<String> dirs = new ArrayList<String>();
+            String last = "";
+            for (Object o : page) {
+                if (o instanceof String) {
+                    dirs.add((String) o);
+                    last = (String) o;
+                } else {
+                    @SuppressWarnings("unchecked")
+                    Map.Entry<String, StoredObject> e = (Map.Entry<String, StoredObject>) o;
+                    items.add(e.getValue().toMap(e.getKey()));
+                    last = e.getKey();
+                }
+            }
+            sendJson(ex, 200, map("marker", more[0] ? last : "", "items", items,
+                    "commonPrefixes", dirs.isEmpty() ? null : dirs));
+            return;
+        }
+        // v2 ：一行一个 json ， marker 为从这一条之后继续列举的位置，最后一条为空
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < page.size(); i++) {
+            Object o = page.get(i);
+            boolean isLast = i == page.size() - 1 && !more[0];
+            Map<String, Object> line;
+            if (o instanceof String) {
+                line = map("item", null, "marker", isLast ? "" : o, "dir", o);
+            } else {
+                @SuppressWarnings("unchecked")
+                Map.Entry<String, StoredObject> e = (Map.Entry<String, StoredObject>) o;
+                line = map("item", e.getValue().toMap(e.getKey()), "marker", isLast ? "" : e.getKey(), "dir", "");
+            }
+            sb.append(Json.encode((Object) line)).append('\n');
+        }
+        sendBytes(ex, 200, "application/json", sb.toString().getBytes(UTF_8));
+    }
+
+    /**
+     * 按 key 顺序列举，元素为目录（ String ）或文件（ Map.Entry ），目录与文件都计入 limit
+     */
+    private static List<Object> listPage(Bucket b, String prefix, String delimiter, String marker, int limit,
+                                         boolean[] more) {
+        NavigableMap<String, StoredObject> tail = marker.length() == 0 ? b.objects.tailMap(prefix, true)
+                : b.objects.tailMap(marker, false);
+        boolean skipDir = delimiter.length() > 0 && marker.endsWith(delimiter);
+        List<Object> page = new ArrayList<Object>();
+        String lastDir = null;
+        for (Map.Entry<String, StoredObject> e : tail.entrySet()) {
+            String key = e.getKey();
+            if (!key.startsWith(prefix)) {
+                if (key.compareTo(prefix) > 0) {
+                    break;
+                }
+                continue;
+            }
+            if (skipDir && key.startsWith(marker)) {
+                continue;
+            }
+            int i = delimiter.length() == 0 ? -1 : key.indexOf(delimiter, prefix.length());
+            String dir = i < 0 ? null : key.substring(0, i + delimiter.length());
+            if (dir != null && dir.equals(lastDir)) {
+                continue;
+            }
+            if (limit > 0 && page.size() == limit) {
+                more[0] = true;
+                break;
+            }
+            if (dir != null) {
+                page.add(dir);
+                lastDir = dir;
+            } else {
+                page.add(e);
+            }
+        }
+        return page;
+    }
+
+    private void formUpload(HttpExchange ex, byte[] body) throws IOException, KodoError, InterruptedException {
+        Map<String, Part> parts = parseMultipart(body, ex.getRequestHeaders().getFirst("Content-Type"));
+        Part token = parts.get("token");
+        Part file = parts.get("file");
+        if (token == null || file == null) {
+            throw new KodoError(400, "token or file is missing");
+        }
+        String[] scope = verifyUpToken(new String(token.content, UTF_8));
+        Part keyPart = parts.get("key");
+        String key = keyPart != null ? new String(keyPart.content, UTF_8) : scope[1];
+        Part crc32 = parts.get("crc32");
+        if (crc32 == null && requireCrc32) {
+            throw new KodoError(400, "crc32 is missing");
+        }
+        if (verify && crc32 != null && Long.parseLong(new String(crc32.content, UTF_8)) != Crc32.bytes(file.content)) {
+            throw new KodoError(406, "crc32 not match");
+        }
+        putFromUpload(ex, scope, key, file.content, file.contentType);
+    }
+
+    private void putFromUpload(HttpExchange ex, String[] scope, String key, byte[] content, String mimeType)
+            throws IOException, KodoError, InterruptedException {
+        if (scope[1] != null && !scope[1].equals(key)) {
+            throw new KodoError(403, "key doesn't match with scope");
+        }
+        String hash = hashOf(content);
+        if (key == null) {
+            key = hash;
+        }
+        if (mimeType == null || mimeType.length() == 0 || "application/octet-stream".equals(mimeType)) {
+            mimeType = "application/octet-stream";
+        }
+        store(bucket(scope[0]), scope[0], key, content, mimeType, hash);
+        sendJson(ex, 200, map("hash", hash, "key", key));
+    }
+
+    private void mkblk(HttpExchange ex, byte[] body) throws IOException, InterruptedException {
+        String ctx = "ctx-" + blockSeq.incrementAndGet();
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        block.write(body);
+        blocks.put(ctx, block);
+        sendChunkResult(ex, ctx, body, block.size());
+    }
+
+    private void bput(HttpExchange ex, String path, byte[] body) throws IOException, KodoError, InterruptedException {
+        String[] seg = path.split("/");
+        ByteArrayOutputStream block = seg.length < 5 ? null : blocks.get(seg[3]);
+        if (block == null) {
+            throw new KodoError(701, "invalid ctx");
+        }
+        synchronized (block) {
+            if (Long.parseLong(seg[4]) != block.size()) {
+                throw new KodoError(701, "invalid offset");
+            }
+            block.write(body);
+            sendChunkResult(ex, seg[3], body, block.size());
+        }
+    }
+
+    private void sendChunkResult(HttpExchange ex, String ctx, byte[] chunk, int offset)
+            throws IOException, InterruptedException {
+        sendJson(ex, 200, map("ctx", ctx, "checksum", "", "crc32", Crc32.bytes(chunk), "offset", offset,
+                "host", host + "/up", "expired_at", System.currentTimeMillis() / 1000 + 24 * 3600));
+    }
+
+    private void mkfile(HttpExchange ex, String path, String[] scope, byte[] body)
+            throws IOException, KodoError, InterruptedException {
+        // /up/mkfile/<size>[/key/<b64>][/mimeType/<b64>][/fname/<b64>][/x:var/<b64>]
+        String[] seg = path.split("/");
+        long size = Long.parseLong(seg[3]);
+        String key = scope[1];
+        String mimeType = null;
+        for (int i = 4; i + 1 < seg.length; i += 2) {
+            String value = new String(UrlSafeBase64.decode(seg[i + 1]), UTF_8);
+            if ("key".equals(seg[i])) {
+                key = value;
+            } else if ("mimeType".equals(seg[i])) {
+                mimeType = value;
+            }
+        }
+        ByteArrayOutputStream all = new ByteArrayOutputStream();
+        String ctxList = new String(body, UTF_8).trim();
+        List<String> ctxs = ctxList.length() == 0 ? new ArrayList<String>() : Arrays.asList(ctxList.split(","));
+        for (String ctx : ctxs) {
+            ByteArrayOutputStream block = blocks.get(ctx);
+            if (block == null) {
+                throw new KodoError(701, "invalid ctx: " + ctx);
+            }
+            synchronized (block) {
+                block.writeTo(all);
+            }
+        }
+        if (all.size() != size) {
+            throw new KodoError(701, "file size not match, " + all.size() + " != " + size);
+        }
+        for (String ctx : ctxs) {
+            blocks.remove(ctx);
+        }
+        putFromUpload(ex, scope, key, all.toByteArray(), mimeType);
+    }
+
+    private void get(HttpExchange ex, String rawPath) throws IOException, KodoError, InterruptedException {
+        byte[] canned = cannedObject;
+        if (canned != null) {
+            sendBytes(ex, 200, "application/octet-stream", canned);
+            return;
+        }
+        // /io/<bucket>/<key>
+        String path = ex.getRequestURI().getPath();
+        int i = path.indexOf('/', 4);
+        Bucket b = i < 0 ? null : buckets.get(path.substring(4, i));
+        if (b == null) {
+            throw new KodoError(404, "no such bucket");
+        }
+        if (b.privateBucket && verify) {
+            checkDownloadToken(ex, rawPath);
+        }
+        StoredObject obj = b.objects.get(path.substring(i + 1));
+        if (obj == null) {
+            throw new KodoError(404, "Document not found");
+        }
+        long from = 0;
+        long to = obj.size - 1;
+        int status = 200;
+        String range = ex.getRequestHeaders().getFirst("Range");
+        if (range != null && range.startsWith("bytes=")) {
+            String[] r = range.substring(6).split("-", -1);
+            from = Long.parseLong(r[0]);
+            if (r.length > 1 && r[1].length() > 0) {
+                to = Math.min(to, Long.parseLong(r[1]));
+            }
+            if (from > to) {
+                ex.getResponseHeaders().add("Content-Range", "bytes */" + obj.size);
+                throw new KodoError(416, "invalid range");
+            }
+            status = 206;
+            ex.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + obj.size);
+        }
+        ex.getResponseHeaders().add("ETag", "\"" + obj.hash + "\"");
+        byte[] content = obj.data != null ? Arrays.copyOfRange(obj.data, (int) from, (int) to + 1)
+                : readFile(obj.file, from, to - from + 1);
+        sendBytes(ex, status, obj.mimeType, content);
+    }
+
+    private void checkDownloadToken(HttpExchange ex, String rawPath) throws IOException, KodoError {
+        String query = ex.getRequestURI().getRawQuery();
+        int i = query == null ? -1 : query.lastIndexOf("token=");
+        if (i < 0) {
+            throw new KodoError(401, "download token not specified");
+        }
+        String base = "http://" + ex.getRequestHeaders().getFirst("Host") + rawPath + "?"
+                + query.substring(0, Math.max(0, i - 1));
+        if (!auth.sign(base).equals(query.substring(i + 6))) {
+            throw new KodoError(401, "bad token");
+        }
+        long deadline = 0;
+        for (String[] kv : parseForm(query)) {
+            if ("e".equals(kv[0])) {
+                deadline = Long.parseLong(kv[1]);
+            }
+        }
+        if (deadline < System.currentTimeMillis() / 1000) {
+            throw new KodoError(401, "token out of date");
+        }
+    }
+
+    private String[] checkUpToken(HttpExchange ex) throws KodoError {
+        String h = ex.getRequestHeaders().getFirst("Authorization");
+        if (h == null || !h.startsWith("UpToken ")) {
+            throw new KodoError(401, "token not specified");
+        }
+        return verifyUpToken(h.substring(8));
+    }
+
+    /**
+     * 返回 {bucket, key} ， scope 不含 key 时 key 为 null
+     */
+    private String[] verifyUpToken(String token) throws KodoError {
+        String[] t = token.split(":");
+        if (t.length != 3 || verify && !auth.sign(t[2]).equals(t[0] + ":" + t[1])) {
+            throw new KodoError(401, "bad token");
+        }
+        StringMap policy = Json.decode(new String(UrlSafeBase64.decode(t[2]), UTF_8));
+        Object deadline = policy.get("deadline");
+        if (verify && (deadline == null || ((Number) deadline).longValue() < System.currentTimeMillis() / 1000)) {
+            throw new KodoError(401, "token out of date");
+        }
+        String scope = (String) policy.get("scope");
+        int i = scope.indexOf(':');
+        return i < 0 ? new String[]{scope, null} : new String[]{scope.substring(0, i), scope.substring(i + 1)};
+    }
+
+    private void checkManagement(HttpExchange ex, byte[] body) throws KodoError {
+        if (!verify) {
+            return;
+        }
+        String h = ex.getRequestHeaders().getFirst("Authorization");
+        String query = ex.getRequestURI().getRawQuery();
+        String url = host + ex.getRequestURI().getRawPath() + (query == null ? "" : "?" + query);
+        String ctype = ex.getRequestHeaders().getFirst("Content-Type");
+        if (h == null || !h.equals("QBox " + auth.signRequest(url, body, ctype))) {
+            throw new KodoError(401, "bad token");
+        }
+    }
+
+    private Bucket bucket(String name) throws IOException {
+        Bucket b = buckets.get(name);
+        if (b == null) {
+            throw new IOException("no such bucket: " + name);
+        }
+        return b;
+    }
+
+    private String hashOf(byte[] content) throws IOException {
+        return verify ? Etag.data(content) : CANNED_HASH;
+    }
+
+    private void store(Bucket b, String bucketName, String key, byte[] content, String mimeType, String hash)
+            throws IOException {
+        if (dataDir == null) {
+            b.objects.put(key, new StoredObject(content.length, hash, mimeType, content, null));
+            return;
+        }
+        File file = new File(dataDir, UrlSafeBase64.encodeToString(bucketName + ":" + key));
+        File tmp = new File(dataDir, file.getName() + "." + blockSeq.incrementAndGet() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            out.write(content);
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) {
+                throw new IOException("cannot rename " + tmp + " to " + file);
+            }
+        }
+        b.objects.put(key, new StoredObject(content.length, hash, mimeType, null, file));
+    }
+
+    private static byte[] readFile(File file, long offset, long len) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] b = new byte[(int) len];
+            raf.seek(offset);
+            raf.readFully(b);
+            return b;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private byte[] readBody(HttpExchange ex) throws IOException, InterruptedException {
+        InputStream in = ex.getRequestBody();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[16 * 1024];
+        long start = System.nanoTime();
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+            throttle(start, out.size());
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    /**
+     * 按 bytesPerSecond 计算传完 transferred 字节应该用的时间，没到就等
+     */
+    private void throttle(long startNanos, long transferred) throws InterruptedException {
+        long bps = bytesPerSecond;
+        if (bps <= 0) {
+            return;
+        }
+        long expected = transferred * 1000000000L / bps;
+        long ahead = expected - (System.nanoTime() - startNanos);
+        if (ahead > 0) {
+            Thread.sleep(ahead / 1000000, (int) (ahead % 1000000));
+        }
+    }
+
+    private void sendJson(HttpExchange ex, int status, Object body) throws IOException {
+        try {
+            sendBytes(ex, status, "application/json", Json.encode(body).getBytes(UTF_8));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            ex.close();
+        }
+    }
+
+    private void sendBytes(HttpExchange ex, int status, String contentType, byte[] body)
+            throws IOException, InterruptedException {
+        ex.getResponseHeaders().add("Content-Type", contentType);
+        ex.getResponseHeaders().add("X-Reqid", "standin-" + blockSeq.incrementAndGet());
+        leave();
+        ex.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+        OutputStream os = ex.getResponseBody();
+        long start = System.nanoTime();
+        int chunk = 16 * 1024;
+        for (int off = 0; off < body.length; off += chunk) {
+            int len = Math.min(chunk, body.length - off);
+            os.write(body, off, len);
+            throttle(start, off + len);
+        }
+        os.close();
+    }
+
+    /**
+     * 按 k1, v1, k2, v2 ... 生成 json 对象，值为 null 的不输出。
+     * 不用 StringMap ： Json.encode(Object) 经 Gson 序列化，嵌套的 StringMap 会多出一层 map
+     */
+    private static Map<String, Object> map(Object... kv) {
+        Map<String, Object> m = new LinkedHashMap<String, Object>();
+        for (int i = 0; i + 1 < kv.length; i += 2) {
+            if (kv[i + 1] != null) {
+                m.put((String) kv[i], kv[i + 1]);
+            }
+        }
+        return m;
+    }
+
+    private static List<String[]> parseForm(String form) throws IOException {
+        List<String[]> ret = new ArrayList<String[]>();
+        if (form == null || form.length() == 0) {
+            return ret;
+        }
+        for (String pair : form.split("&")) {
+            int i = pair.indexOf('=');
+            String k = i < 0 ? pair : pair.substring(0, i);
+            String v = i < 0 ? "" : pair.substring(i + 1);
+            ret.add(new String[]{URLDecoder.decode(k, "UTF-8"), URLDecoder.decode(v, "UTF-8")});
+        }
+        return ret;
+    }
+
+    private static final class Part {
+        final byte[] content;
+        final String contentType;
+
+        Part(byte[] content, String contentType) {
+            this.content = content;
+            this.contentType = contentType;
+        }
+    }
+
+    private static Map<String, Part> parseMultipart(byte[] body, String contentType) throws KodoError {
+        int b = contentType == null ? -1 : contentType.indexOf("boundary=");
+        if (b < 0) {
+            throw new KodoError(400, "not multipart");
+        }
+        String boundary = contentType.substring(b + 9).replace("\"", "");
+        byte[] delim = ("--" + boundary).getBytes(UTF_8);
+        byte[] headerEnd = "\r\n\r\n".getBytes(UTF_8);
+        Map<String, Part> parts = new HashMap<String, Part>();
+        int pos = indexOf(body, delim, 0);
+        while (pos >= 0) {
+            int start = pos + delim.length;
+            if (start + 1 < body.length && body[start] == '-' && body[start + 1] == '-') {
+                break;
+            }
+            start += 2;
+            int he = indexOf(body, headerEnd, start);
+            int next = he < 0 ? -1 : indexOf(body, delim, he + 4);
+            if (next < 0) {
+                throw new KodoError(400, "bad multipart body");
+            }
+            String headers = new String(body, start, he - start, UTF_8);
+            String name = null;
+            String type = null;
+            for (String line : headers.split("\r\n")) {
+                String lower = line.toLowerCase();
+                if (lower.startsWith("content-disposition:")) {
+                    int n = line.indexOf("name=\"");
+                    name = n < 0 ? null : line.substring(n + 6, line.indexOf('"', n + 6));
+                } else if (lower.startsWith("content-type:")) {
+                    type = line.substring(13).trim();
+                }
+            }
+            if (name != null) {
+                parts.put(name, new Part(Arrays.copyOfRange(body, he + 4, next - 2), type));
+            }
+            pos = next;
+        }
+        return parts;
+    }
+
+    private static int indexOf(byte[] data, byte[] pattern, int from) {
+        outer:
+        for (int i = Math.max(0, from); i <= data.length - pattern.length; i++) {
+            for (int j = 0; j < pattern.length; j++) {
+                if (data[i + j] != pattern[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,269 @@
+package com.aliyun.oss;
+
+import com.aliyun.oss.model.GetObjectRequest;
+import com.aliyun.oss.model.OSSObject;
+import com.aliyun.oss.model.OSSObjectSummary;
+import com.aliyun.oss.model.ObjectListing;
+import com.aliyun.oss.model.ListObjectsRequest;
+import junit.framework.Assert;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+
+public class QiniuKodoStandInTest {
+    private QiniuKodoStandIn kodo;
+    private QiniuOSSClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        kodo = new QiniuKodoStandIn();
+        kodo.createBucket("bkt", true);
+        client = kodo.newClient("bkt");
+    }
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        kodo.close();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        in.close();
+        return out.toByteArray();
+    }
+
+    private static byte[] random(int size) {
+        byte[] b = new byte[size];
+        new Random(size).nextBytes(b);
+        return b;
+    }
+
+    @Test
+    public void testFormUploadAndPrivateDownload() throws IOException {
+        Assert.assertNotNull(client.putObject("bkt", "dir/a.txt", "hello".getBytes("UTF-8")).getETag());
+        Assert.assertEquals("hello", new String(kodo.getObject("bkt", "dir/a.txt"), "UTF-8"));
+
+        OSSObject obj = client.getObject("bkt", "dir/a.txt");
+        Assert.assertEquals("hello", new String(readAll(obj.getObjectContent()), "UTF-8"));
+        obj.close();
+
+        // 私有空间：没有 token 、改过的 token 、过期的 token
+        OkHttpClient http = new OkHttpClient();
+        String url = client.signDownloadUrl("bkt", "dir/a.txt", 3600);
+        Assert.assertEquals(200, code(http, url));
+        Assert.assertEquals(401, code(http, url.substring(0, url.indexOf('?'))));
+        Assert.assertEquals(401, code(http, url.substring(0, url.length() - 2) + "xx"));
+        String expired = client.getUrlSigner().signWithDeadline(kodo.getDownloadHost("bkt") + "/dir%2Fa.txt", 1);
+        Assert.assertEquals(401, code(http, expired));
+        Assert.assertEquals(2, kodo.getRequestCount(QiniuKodoStandIn.Endpoint.GET) - 3);
+    }
+
+    private static int code(OkHttpClient http, String url) throws IOException {
+        Response res = http.newCall(new Request.Builder().url(url).build()).execute();
+        res.close();
+        return res.code();
+    }
+
+    @Test
+    public void testBlockUpload() throws IOException {
+        byte[] content = random(5 * 1024 * 1024 + 3);
+        // 长度未知，按块流式上传
+        client.putObject("bkt", "big.bin", new ByteArrayInputStream(content));
+        Assert.assertTrue(Arrays.equals(content, kodo.getObject("bkt", "big.bin")));
+        Assert.assertEquals(2, kodo.getRequestCount(QiniuKodoStandIn.Endpoint.MKBLK));
+        Assert.assertEquals(1, kodo.getRequestCount(QiniuKodoStandIn.Endpoint.MKFILE));
+        Assert.assertEquals(content.length, client.getObjectMetadata("bkt", "big.bin").getContentLength());
+    }
+
+    @Test
+    public void testManagementAndListing() throws IOException {
+        for (String key : new String[]{"a/1", "a/2", "a/b/1", "a/b/2", "a/c/1", "b/1"}) {
+            kodo.putObject("bkt", key, key.getBytes("UTF-8"), "text/plain");
+        }
+        Assert.assertEquals("text/plain", client.getObjectMetadata("bkt", "a/1").getContentType());
+        Assert.assertEquals(5, client.getObjectMetadata("bkt", "a/b/1").getContentLength());
+        try {
+            client.getObjectMetadata("bkt", "missing");
+            Assert.fail();
+        } catch (OSSException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("612"));
+        }
+
+        ObjectListing page = client.listObjects(new ListObjectsRequest("bkt", "a/", null, "/", 3));
+        List<String> keys = new ArrayList<String>();
+        for (OSSObjectSummary s : page.getObjectSummaries()) {
+            keys.add(s.getKey());
+        }
+        Assert.assertEquals(Arrays.asList("a/1", "a/2"), keys);
+        Assert.assertEquals(Arrays.asList("a/b/"), page.getCommonPrefixes());
+        Assert.assertTrue(page.isTruncated());
+        page = client.listObjects(new ListObjectsRequest("bkt", "a/", page.getNextMarker(), "/", 3));
+        Assert.assertEquals(Arrays.asList("a/c/"), page.getCommonPrefixes());
+        Assert.assertFalse(page.isTruncated());
+
+        final List<String> streamed = new ArrayList<String>();
+        String marker = client.listObjectsV2("bkt", "a/", null, null, 0, new QiniuListingHandler() {
+            @Override
+            public boolean onObject(String key, long size, String hash, long putTime, String mimeType, int type) {
+                streamed.add(key + ":" + size);
+                return true;
+            }
+
+            @Override
+            public boolean onCommonPrefix(String prefix) {
+                streamed.add(prefix);
+                return true;
+            }
+        });
+        Assert.assertNull(marker);
+        Assert.assertEquals(Arrays.asList("a/1:3", "a/2:3", "a/b/1:5", "a/b/2:5", "a/c/1:5"), streamed);
+
+        QiniuDeleteObjectsResult ret = client.deleteObjects("bkt", Arrays.asList("a/1", "a/2", "missing"), false);
+        Assert.assertEquals(3, ret.getDeletedObjects().size());
+        Assert.assertEquals(4, kodo.getObjectCount("bkt"));
+        Assert.assertEquals(1, kodo.getRequestCount(QiniuKodoStandIn.Endpoint.BATCH));
+    }
+
+    @Test
+    public void testRangeFromDisk() throws IOException {
+        File dir = File.createTempFile("qiniu-kodo", "");
+        dir.delete();
+        QiniuKodoStandIn disk = new QiniuKodoStandIn("ak2", "sk2", dir);
+        QiniuOSSClient c = null;
+        try {
+            disk.createBucket("pub", false);
+            c = disk.newClient("pub");
+            byte[] content = random(100000);
+            c.putObject("pub", "r.bin", content);
+            Assert.assertEquals(1, dir.listFiles().length);
+
+            GetObjectRequest req = new GetObjectRequest("pub", "r.bin");
+            req.setRange(10, 19);
+            OSSObject obj = c.getObject(req);
+            Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(content, 10, 20), readAll(obj.getObjectContent())));
+            obj.close();
+            // 公开空间不检查 token
+            Assert.assertEquals(200, code(new OkHttpClient(), disk.getDownloadHost("pub") + "/r.bin"));
+
+            c.deleteObject("pub", "r.bin");
+            Assert.assertEquals(0, dir.listFiles().length);
+        } finally {
+            if (c != null) {
+                c.shutdown();
+            }
+            disk.close();
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    @Test
+    public void testDeleteWithFailedBatch() throws IOException {
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 6; i++) {
+            keys.add("k" + i);
+            kodo.putObject("bkt", "k" + i, new byte[1], "text/plain");
+        }
+        client.setBatchSize(2);
+        client.setBatchTaskNum(1);
+
+        // 第一批失败，其余两批照常删除
+        kodo.failNext(QiniuKodoStandIn.Endpoint.BATCH, 503, 1);
+        QiniuDeleteObjectsResult ret = client.deleteObjects("bkt", keys, false);
+        Assert.assertEquals(Arrays.asList("k2", "k3", "k4", "k5"), ret.getDeletedObjects());
+        Assert.assertEquals(Arrays.asList("k0", "k1"), new ArrayList<String>(ret.getFailedObjects().keySet()));
+        Assert.assertTrue(ret.getFailedObjects().get("k0"), ret.getFailedObjects().get("k0").startsWith("503: "));
+        Assert.assertEquals(2, kodo.getObjectCount("bkt"));
+
+        // 没有一批成功时抛异常
+        kodo.failNext(QiniuKodoStandIn.Endpoint.BATCH, 503, 1);
+        try {
+            client.deleteObjects("bkt", keys.subList(0, 2), false);
+            Assert.fail();
+        } catch (OSSException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("503"));
+        }
+        Assert.assertEquals(2, kodo.getObjectCount("bkt"));
+    }
+
+    @Test
+    public void testErrorInjection() throws IOException {
+        kodo.putObject("bkt", "a", "a".getBytes("UTF-8"), "text/plain");
+        kodo.failNext(QiniuKodoStandIn.Endpoint.STAT, 503, 1);
+        try {
+            client.getObjectMetadata("bkt", "a");
+            Assert.fail();
+        } catch (OSSException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("503"));
+        }
+        Assert.assertEquals(1, client.getObjectMetadata("bkt", "a").getContentLength());
+
+        // OkHttp 会在新连接上重试一次
+        kodo.failNext(QiniuKodoStandIn.Endpoint.GET, QiniuKodoStandIn.DROP, 2);
+        try {
+            client.getObject("bkt", "a");
+            Assert.fail();
+        } catch (OSSException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+        Assert.assertEquals(2, kodo.getRequestCount(QiniuKodoStandIn.Endpoint.GET));
+
+        // 同一个种子，失败的位置相同
+        Assert.assertEquals(failures(7), failures(7));
+        Assert.assertFalse(failures(7).equals(failures(8)));
+    }
+
+    private List<Integer> failures(long seed) throws IOException {
+        kodo.setErrorRate(0.3, 500, seed);
+        List<Integer> failed = new ArrayList<Integer>();
+        OkHttpClient http = new OkHttpClient();
+        String url = client.signDownloadUrl("bkt", "a", 3600);
+        for (int i = 0; i < 20; i++) {
+            if (code(http, url) == 500) {
+                failed.add(i);
+            }
+        }
+        kodo.setErrorRate(0, 500, 0);
+        return failed;
+    }
+
+    @Test
+    public void testLatencyAndBandwidth() throws IOException {
+        kodo.putObject("bkt", "a", random(50 * 1024), "application/octet-stream");
+        kodo.setLatency(100);
+        long start = System.currentTimeMillis();
+        client.getObjectMetadata("bkt", "a");
+        Assert.assertTrue(System.currentTimeMillis() - start >= 100);
+
+        kodo.setLatency(0);
+        kodo.setBandwidth(100 * 1024);
+        start = System.currentTimeMillis();
+        OSSObject obj = client.getObject("bkt", "a");
+        Assert.assertEquals(50 * 1024, readAll(obj.getObjectContent()).length);
+        obj.close();
+        long elapsed = System.currentTimeMillis() - start;
+        Assert.assertTrue(" 限速 100K/s 传 50K " + elapsed, elapsed >= 400);
+    }
+}
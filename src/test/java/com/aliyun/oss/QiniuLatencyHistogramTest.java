@@ -0,0 +1,74 @@
+package com.aliyun.oss;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+
+public class QiniuLatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        long prev = 0;
+        for (int i = 0; i < 488; i++) {
+            long upper = QiniuLatencyHistogram.upperBound(i);
+            Assert.assertTrue(upper > prev);
+            // 桶首尾相接
+            Assert.assertEquals(i, QiniuLatencyHistogram.index(prev));
+            Assert.assertEquals(i, QiniuLatencyHistogram.index(upper - 1));
+            prev = upper;
+        }
+        Assert.assertEquals(487, QiniuLatencyHistogram.index(Long.MAX_VALUE));
+    }
+
+    @Test
+    public void testPercentiles() {
+        QiniuLatencyHistogram h = new QiniuLatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            h.record(i, TimeUnit.MILLISECONDS);
+        }
+        QiniuLatencyHistogram.Snapshot s = h.snapshot();
+        Assert.assertEquals(1000, s.getCount());
+        Assert.assertEquals(1000000, s.getMaxMicros());
+        Assert.assertEquals(500500.0, s.getMeanMicros(), 0.001);
+        assertWithin(500000, s.getPercentileMicros(0.5));
+        assertWithin(990000, s.getPercentileMicros(0.99));
+        Assert.assertEquals(1000000, s.getPercentileMicros(1));
+
+        h.reset();
+        Assert.assertEquals(0, h.snapshot().getPercentileMicros(0.5));
+        Assert.assertEquals(0, h.getCount());
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        Assert.assertTrue(expected + " ~ " + actual, Math.abs(actual - expected) <= expected / 8);
+    }
+
+    @Test
+    public void testConcurrentRecord() throws InterruptedException {
+        final QiniuLatencyHistogram h = new QiniuLatencyHistogram();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++) {
+                        h.recordMicros(i % 100);
+                    }
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        QiniuLatencyHistogram.Snapshot s = h.snapshot();
+        Assert.assertEquals(80000, s.getCount());
+        Assert.assertEquals(99, s.getMaxMicros());
+        Assert.assertEquals(8 * 100 * 4950, s.getSumMicros());
+    }
+}
@@ -0,0 +1,119 @@
+package com.aliyun.oss;
+
+import com.qiniu.common.QiniuException;
+import com.qiniu.util.Auth;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import junit.framework.Assert;
+import okhttp3.OkHttpClient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class QiniuListV2ReaderTest {
+
+    private static final String BODY =
+            "{\"item\":{\"key\":\"a/1\",\"hash\":\"h1\",\"fsize\":10,\"putTime\":15000000000000000,"
+                    + "\"mimeType\":\"text/plain\",\"type\":0,\"status\":0},\"marker\":\"m1\",\"dir\":\"\"}\n"
+                    + "{\"item\":null,\"marker\":\"m2\",\"dir\":\"a/b/\"}\n"
+                    + "{\"item\":{\"key\":\"a/2\",\"hash\":\"h2\",\"fsize\":20,\"putTime\":15000000000000001,"
+                    + "\"mimeType\":\"image/png\",\"type\":1},\"marker\":\"\",\"dir\":\"\"}\n";
+
+    private HttpServer server;
+    private String host;
+    private volatile String lastQuery;
+    private volatile String lastAuth;
+    private volatile int status = 200;
+
+    @Before
+    public void setUp() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/v2/list", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange ex) throws IOException {
+                lastQuery = ex.getRequestURI().getRawQuery();
+                lastAuth = ex.getRequestHeaders().getFirst("Authorization");
+                byte[] body = status == 200 ? BODY.getBytes("UTF-8")
+                        : "{\"error\":\"no such bucket\"}".getBytes("UTF-8");
+                ex.getResponseHeaders().add("Content-Type", "application/json");
+                ex.sendResponseHeaders(status, body.length);
+                OutputStream os = ex.getResponseBody();
+                os.write(body);
+                os.close();
+            }
+        });
+        server.start();
+        host = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void tearDown() {
+        server.stop(0);
+    }
+
+    private QiniuListV2Reader reader() {
+        return new QiniuListV2Reader(new OkHttpClient(), Auth.create("ak", "sk"));
+    }
+
+    @Test
+    public void testStreamItemsAndDirs() throws QiniuException {
+        final List<String> seen = new ArrayList<String>();
+        String marker = reader().list(host, "bkt", "a/", "/", null, 0, new QiniuListingHandler() {
+            @Override
+            public boolean onObject(String key, long size, String hash, long putTime, String mimeType, int type) {
+                seen.add(key + "," + size + "," + hash + "," + putTime + "," + mimeType + "," + type);
+                return true;
+            }
+
+            @Override
+            public boolean onCommonPrefix(String prefix) {
+                seen.add("dir:" + prefix);
+                return true;
+            }
+        });
+        Assert.assertNull(" 列举完 marker 为 null ", marker);
+        Assert.assertEquals(3, seen.size());
+        Assert.assertEquals("a/1,10,h1,15000000000000000,text/plain,0", seen.get(0));
+        Assert.assertEquals("dir:a/b/", seen.get(1));
+        Assert.assertEquals("a/2,20,h2,15000000000000001,image/png,1", seen.get(2));
+        Assert.assertTrue(lastQuery, lastQuery.contains("bucket=bkt") && lastQuery.contains("delimiter=%2F"));
+        Assert.assertFalse(" limit 为 0 时不传 ", lastQuery.contains("&limit="));
+        Assert.assertTrue(lastAuth.startsWith("QBox ak:"));
+    }
+
+    @Test
+    public void testStopReturnsMarker() throws QiniuException {
+        String marker = reader().list(host, "bkt", null, null, null, 100, new QiniuListingHandler() {
+            @Override
+            public boolean onObject(String key, long size, String hash, long putTime, String mimeType, int type) {
+                return false;
+            }
+
+            @Override
+            public boolean onCommonPrefix(String prefix) {
+                return true;
+            }
+        });
+        Assert.assertEquals("m1", marker);
+        Assert.assertTrue(lastQuery.contains("limit=100"));
+    }
+
+    @Test
+    public void testErrorStatus() {
+        status = 631;
+        try {
+            reader().list(host, "bkt", null, null, null, 0, null);
+            Assert.fail();
+        } catch (QiniuException e) {
+            Assert.assertEquals(631, e.code());
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.aliyun.oss;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+
+public class QiniuListingColumnsTest {
+
+    @Test
+    public void testColumnsAndGrow() throws Exception {
+        QiniuListingColumns cols = new QiniuListingColumns(4, 0);
+        String[] keys = {"a/1.txt", "图片/猫.jpg", "emoji/😀.png", "", "x"};
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < keys.length; i++) {
+                Assert.assertTrue(cols.onObject(keys[i] + round, i * 10, "hash", 1000L + i, "text/plain", i % 2));
+            }
+        }
+        Assert.assertEquals(500, cols.size());
+        for (int round = 0; round < 100; round++) {
+            for (int i = 0; i < keys.length; i++) {
+                int idx = round * keys.length + i;
+                String key = keys[i] + round;
+                Assert.assertEquals(key, cols.key(idx));
+                Assert.assertEquals(key.getBytes("UTF-8").length, cols.keyLength(idx));
+                Assert.assertEquals(i * 10, cols.size(idx));
+                Assert.assertEquals(1000L + i, cols.putTime(idx));
+                Assert.assertEquals(i % 2, cols.type(idx));
+            }
+        }
+        Assert.assertEquals(100 * (0 + 10 + 20 + 30 + 40), cols.totalSize());
+
+        cols.onCommonPrefix("dir/");
+        Assert.assertEquals("dir/", cols.getCommonPrefixes().get(0));
+
+        cols.clear();
+        Assert.assertEquals(0, cols.size());
+        Assert.assertTrue(cols.getCommonPrefixes().isEmpty());
+        cols.onObject("again", 1, null, 2, null, 0);
+        Assert.assertEquals("again", cols.key(0));
+    }
+
+    @Test
+    public void testMaxEntriesStopsListing() {
+        QiniuListingColumns cols = new QiniuListingColumns(100, 3);
+        Assert.assertTrue(cols.onObject("a", 1, null, 1, null, 0));
+        Assert.assertTrue(cols.onObject("b", 1, null, 1, null, 0));
+        Assert.assertFalse(" 装满后返回 false 停止列举 ", cols.onObject("c", 1, null, 1, null, 0));
+        Assert.assertEquals(3, cols.size());
+        try {
+            cols.key(3);
+            Assert.fail();
+        } catch (IndexOutOfBoundsException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testEncodeMatchesJdk() throws Exception {
+        String s = "ascii-é-中文-😀-\uD800-end";
+        byte[] buf = new byte[s.length() * 3];
+        int len = QiniuListingColumns.encodeUtf8(s, buf, 0);
+        Assert.assertEquals(new String(s.getBytes("UTF-8"), "UTF-8"), new String(buf, 0, len, "UTF-8"));
+        Assert.assertEquals(s.getBytes("UTF-8").length, len);
+    }
+}
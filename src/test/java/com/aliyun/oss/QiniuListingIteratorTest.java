@@ -0,0 +1,106 @@
+package com.aliyun.oss;
+
+import com.aliyun.oss.model.OSSObjectSummary;
+import com.aliyun.oss.model.ObjectListing;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+public class QiniuListingIteratorTest {
+
+    /** 共 pageCount 页，每页 pageSize 个，key 为 k0000 k0001 ... ，marker 为页号 */
+    static class FakePages implements QiniuListingIterator.PageLoader {
+        final int pageCount;
+        final int pageSize;
+        final AtomicInteger loads = new AtomicInteger();
+        volatile int failAt = -1;
+
+        FakePages(int pageCount, int pageSize) {
+            this.pageCount = pageCount;
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public ObjectListing load(String marker) {
+            int page = marker == null ? 0 : Integer.parseInt(marker);
+            loads.incrementAndGet();
+            if (page == failAt) {
+                throw new OSSException("list failed at page " + page);
+            }
+            ObjectListing ret = new ObjectListing();
+            for (int i = 0; i < pageSize; i++) {
+                OSSObjectSummary s = new OSSObjectSummary();
+                s.setKey(String.format("k%04d", page * pageSize + i));
+                ret.addObjectSummary(s);
+            }
+            ret.setTruncated(page + 1 < pageCount);
+            ret.setNextMarker(page + 1 < pageCount ? String.valueOf(page + 1) : "");
+            return ret;
+        }
+    }
+
+    @Test
+    public void testIterateAllPages() {
+        FakePages pages = new FakePages(5, 3);
+        List<String> keys = new ArrayList<String>();
+        for (OSSObjectSummary s : new QiniuListingIterator(pages, null, 2)) {
+            keys.add(s.getKey());
+        }
+        Assert.assertEquals(15, keys.size());
+        Assert.assertEquals("k0000", keys.get(0));
+        Assert.assertEquals("k0014", keys.get(14));
+        Assert.assertEquals(5, pages.loads.get());
+    }
+
+    @Test
+    public void testStartFromMarker() {
+        FakePages pages = new FakePages(5, 3);
+        QiniuListingIterator it = new QiniuListingIterator(pages, "3", 1);
+        Assert.assertEquals("k0009", it.next().getKey());
+        Assert.assertEquals("4", it.getNextMarker());
+        int n = 1;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        Assert.assertEquals(6, n);
+        Assert.assertNull(it.getNextMarker());
+    }
+
+    @Test
+    public void testPrefetchIsBounded() throws InterruptedException {
+        FakePages pages = new FakePages(100, 10);
+        QiniuListingIterator it = new QiniuListingIterator(pages, null, 3);
+        it.next();
+        Thread.sleep(300);
+        // 当前页 + 队列中 3 页 + 生产线程手里等待放入的 1 页
+        Assert.assertTrue(" 预取页数要有上限: " + pages.loads.get(), pages.loads.get() <= 5);
+        it.close();
+        Thread.sleep(300);
+        int loads = pages.loads.get();
+        Thread.sleep(200);
+        Assert.assertEquals(" close 后不再拉取 ", loads, pages.loads.get());
+    }
+
+    @Test
+    public void testErrorIsRethrown() {
+        FakePages pages = new FakePages(5, 2);
+        pages.failAt = 2;
+        QiniuListingIterator it = new QiniuListingIterator(pages, null, 2);
+        int n = 0;
+        try {
+            while (it.hasNext()) {
+                it.next();
+                n++;
+            }
+            Assert.fail(" 列举出错要抛给调用方 ");
+        } catch (OSSException e) {
+            Assert.assertEquals(4, n);
+        }
+        Assert.assertFalse(it.hasNext());
+    }
+}
@@ -0,0 +1,96 @@
+package com.aliyun.oss;
+
+import com.qiniu.storage.model.FileInfo;
+import junit.framework.Assert;
+import org.junit.Test;
+
+
+public class QiniuMetaCacheTest {
+
+    private static FileInfo info(String key, long size) {
+        FileInfo info = new FileInfo();
+        info.key = key;
+        info.fsize = size;
+        info.hash = "hash_" + key;
+        return info;
+    }
+
+    @Test
+    public void testHitMissAndNegative() {
+        QiniuMetaCache cache = new QiniuMetaCache(10, 60000, 60000);
+        Assert.assertNull(cache.get("bkt", "a"));
+        cache.put("bkt", "a", info("a", 1));
+        cache.put("bkt", "b", null);
+
+        QiniuMetaCache.Entry a = cache.get("bkt", "a");
+        Assert.assertEquals(1, a.info.fsize);
+        // 返回的是副本，修改不影响缓存
+        a.info.fsize = 100;
+        Assert.assertEquals(1, cache.get("bkt", "a").info.fsize);
+
+        QiniuMetaCache.Entry b = cache.get("bkt", "b");
+        Assert.assertNotNull(" 不存在的结果也要缓存 ", b);
+        Assert.assertNull(b.info);
+        Assert.assertNull(" 不同 bucket 互不影响 ", cache.get("other", "a"));
+
+        Assert.assertEquals(3, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+
+        cache.invalidate("bkt", "a");
+        Assert.assertNull(cache.get("bkt", "a"));
+    }
+
+    @Test
+    public void testStaleLoadIsDropped() {
+        QiniuMetaCache cache = new QiniuMetaCache(1, 60000, 60000);
+        long since = cache.version();
+        // stat 期间 a 被删除， stat 读到的旧值不写入
+        cache.put("bkt", "a", null);
+        cache.putLoaded("bkt", "a", info("a", 1), since);
+        Assert.assertNull(cache.get("bkt", "a").info);
+        cache.putLoaded("bkt", "b", info("b", 2), since);
+        Assert.assertEquals(2, cache.get("bkt", "b").info.fsize);
+
+        // 失效记录被淘汰后，更早开始的 stat 一律不写入
+        since = cache.version();
+        cache.invalidate("bkt", "c");
+        cache.invalidate("bkt", "d");
+        cache.putLoaded("bkt", "c", info("c", 3), since);
+        Assert.assertNull(cache.get("bkt", "c"));
+        cache.putLoaded("bkt", "c", info("c", 3), cache.version());
+        Assert.assertNotNull(cache.get("bkt", "c"));
+
+        since = cache.version();
+        cache.invalidateAll();
+        cache.putLoaded("bkt", "e", info("e", 5), since);
+        Assert.assertNull(cache.get("bkt", "e"));
+    }
+
+    @Test
+    public void testLruEviction() {
+        QiniuMetaCache cache = new QiniuMetaCache(2, 60000, 60000);
+        cache.put("bkt", "a", info("a", 1));
+        cache.put("bkt", "b", info("b", 2));
+        // 访问 a 后， b 成为最久未访问的
+        cache.get("bkt", "a");
+        cache.put("bkt", "c", info("c", 3));
+        Assert.assertEquals(2, cache.size());
+        Assert.assertNotNull(cache.get("bkt", "a"));
+        Assert.assertNull(cache.get("bkt", "b"));
+        Assert.assertNotNull(cache.get("bkt", "c"));
+    }
+
+    @Test
+    public void testExpire() throws InterruptedException {
+        QiniuMetaCache cache = new QiniuMetaCache(10, 60000, 50);
+        cache.put("bkt", "a", info("a", 1));
+        cache.put("bkt", "b", null);
+        Thread.sleep(100);
+        Assert.assertNotNull(cache.get("bkt", "a"));
+        Assert.assertNull(" 不存在的结果 negativeTtl 后过期 ", cache.get("bkt", "b"));
+
+        QiniuMetaCache noNegative = new QiniuMetaCache(10, 60000, 0);
+        noNegative.put("bkt", "b", null);
+        Assert.assertNull(noNegative.get("bkt", "b"));
+    }
+}
@@ -0,0 +1,167 @@
+package com.aliyun.oss;
+
+import com.aliyun.oss.model.OSSObject;
+import com.aliyun.oss.model.ObjectListing;
+import com.aliyun.oss.model.ObjectMetadata;
+import com.aliyun.oss.model.PutObjectResult;
+import com.qiniu.util.Etag;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+
+public class QiniuOSSAsyncClientTest {
+    private QiniuKodoStandIn kodo;
+    private QiniuOSSClient client;
+    private QiniuOSSAsyncClient async;
+
+    @Before
+    public void setUp() throws IOException {
+        kodo = new QiniuKodoStandIn();
+        kodo.createBucket("bkt", true);
+        kodo.putObject("bkt", "a.txt", "hello".getBytes("UTF-8"), "text/plain");
+        client = kodo.newClient("bkt");
+        async = new QiniuOSSAsyncClient(client);
+    }
+
+    @After
+    public void tearDown() {
+        client.shutdown();
+        kodo.close();
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testGetObject() throws Exception {
+        OSSObject obj = async.getObject("bkt", "a.txt").get(5, TimeUnit.SECONDS);
+        try {
+            Assert.assertEquals("hello", new String(readAll(obj.getObjectContent()), "UTF-8"));
+            Assert.assertEquals(5, obj.getObjectMetadata().getContentLength());
+            Assert.assertTrue(obj.getRequestId(), obj.getRequestId().startsWith("standin-"));
+        } finally {
+            obj.close();
+        }
+
+        try {
+            async.getObject("bkt", "missing").get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof OSSException);
+            Assert.assertEquals("404", ((OSSException) e.getCause()).getErrorCode());
+        }
+    }
+
+    @Test
+    public void testPutObject() throws Exception {
+        ObjectMetadata meta = new ObjectMetadata();
+        meta.setContentType("text/plain");
+        PutObjectResult ret = async.putObject("bkt", "k", "content".getBytes("UTF-8"), meta)
+                .get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(Etag.data("content".getBytes("UTF-8")), ret.getETag());
+        Assert.assertTrue(ret.getRequestId(), ret.getRequestId().startsWith("standin-"));
+        // 替身校验了上传凭证
+        Assert.assertEquals("content", new String(kodo.getObject("bkt", "k"), "UTF-8"));
+        Assert.assertEquals("text/plain", client.getObjectMetadata("bkt", "k").getContentType());
+    }
+
+    @Test
+    public void testLargeFileGetsFreshToken() throws Exception {
+        QiniuUploadTokenCache cache = client.getUploadTokenCache();
+        async.putObject("bkt", "small", "small".getBytes("UTF-8"), null).get(5, TimeUnit.SECONDS);
+        long misses = cache.getMissCount();
+        long hits = cache.getHitCount();
+
+        // 超过 putThreshold 的文件不用缓存的凭证
+        File file = File.createTempFile("qiniu-async", ".bin");
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(client.getConfig().putThreshold + 1);
+            raf.close();
+            async.putObject("bkt", "big", file, null).get(10, TimeUnit.SECONDS);
+        } finally {
+            file.delete();
+        }
+        Assert.assertEquals(misses, cache.getMissCount());
+        Assert.assertEquals(hits, cache.getHitCount());
+        Assert.assertEquals(client.getConfig().putThreshold + 1, kodo.getObject("bkt", "big").length);
+    }
+
+    @Test
+    public void testMetadataAndDelete() throws Exception {
+        client.setMetaCache(new QiniuMetaCache(100, 60000, 60000));
+        ObjectMetadata meta = async.getObjectMetadata("bkt", "a.txt").get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(5, meta.getContentLength());
+        Assert.assertEquals("text/plain", meta.getContentType());
+        async.getObjectMetadata("bkt", "a.txt").get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(" 第二次读缓存 ", 1, kodo.getRequestCount(QiniuKodoStandIn.Endpoint.STAT));
+
+        try {
+            async.getObjectMetadata("bkt", "missing").get(5, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertEquals("612", ((OSSException) e.getCause()).getErrorCode());
+        }
+        // 缓存的不存在与实时 stat 抛同样的异常
+        for (int i = 0; i < 2; i++) {
+            try {
+                client.getObjectMetadata("bkt", "missing");
+                Assert.fail();
+            } catch (OSSException e) {
+                Assert.assertEquals("612", e.getErrorCode());
+                Assert.assertTrue(e.getMessage(), e.getMessage().contains("bucket: bkt, key: missing"));
+            }
+        }
+        Assert.assertEquals(2, kodo.getRequestCount(QiniuKodoStandIn.Endpoint.STAT));
+
+        async.deleteObject("bkt", "a.txt").get(5, TimeUnit.SECONDS);
+        try {
+            async.getObjectMetadata("bkt", "a.txt").get(5, TimeUnit.SECONDS);
+            Assert.fail(" 删除后缓存为不存在 ");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof OSSException);
+        }
+        Assert.assertEquals(2, kodo.getRequestCount(QiniuKodoStandIn.Endpoint.STAT));
+    }
+
+    @Test
+    public void testListObjects() throws Exception {
+        kodo.setCannedListing(("{\"marker\":\"m\",\"items\":[{\"key\":\"a/1\",\"fsize\":3,\"hash\":\"h1\","
+                + "\"putTime\":15000000000000000,\"type\":1}],\"commonPrefixes\":[\"a/b/\"]}").getBytes("UTF-8"));
+        ObjectListing listing = async.listObjects("bkt", "a/").get(5, TimeUnit.SECONDS);
+        Assert.assertEquals(1, listing.getObjectSummaries().size());
+        Assert.assertEquals("a/1", listing.getObjectSummaries().get(0).getKey());
+        Assert.assertEquals("IA", listing.getObjectSummaries().get(0).getStorageClass());
+        Assert.assertEquals("a/b/", listing.getCommonPrefixes().get(0));
+        Assert.assertEquals("m", listing.getNextMarker());
+        Assert.assertTrue(listing.isTruncated());
+    }
+
+    @Test
+    public void testConnectionError() throws Exception {
+        kodo.close();
+        try {
+            async.listObjects("bkt", null).get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ClientException);
+        }
+    }
+}
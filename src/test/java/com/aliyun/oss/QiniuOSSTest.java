@@ -3,6 +3,7 @@ package com.aliyun.oss;
 import com.aliyun.oss.model.*;
 import com.qiniu.common.Zone;
 import com.qiniu.storage.Configuration;
+import com.qiniu.storage.model.FileInfo;
 import com.qiniu.util.Etag;
 import junit.framework.Assert;
 import okhttp3.OkHttpClient;
@@ -17,6 +18,7 @@ import java.net.URL;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Map;
 
 
 public class QiniuOSSTest {
@@ -197,6 +199,145 @@ public class QiniuOSSTest {
     }
 
 
+    @Test
+    public void testUploadFile() throws Throwable {
+        String bkt = createBuckets(1).get(0);
+        File f = createSampleFile("upload_file__", 1024 * 1024 * 13);
+        String key = f.getName();
+
+        // 13M 共 4 个块， 3 个线程并发上传， 1M 一片
+        UploadFileRequest req = new UploadFileRequest(bkt, key, f.getAbsolutePath(), 1024 * 1024, 3, true);
+        UploadFileResult ret = qiniuOSSClient.uploadFile(req);
+        Assert.assertEquals(" 文件 hash 要求一致 ", Etag.file(f), ret.getMultipartUploadResult().getETag());
+        Assert.assertFalse(" 上传完成后删除断点记录 ", new File(f.getAbsolutePath() + ".ucp").exists());
+
+        sdkDownloadAndCheckFile(bkt, f);
+    }
+
+    @Test
+    public void testPutObjectStream() throws IOException {
+        String bkt = createBuckets(1).get(0);
+        File f = createSampleFile("put_stream__", 1024 * 1024 * 9);
+
+        // 不给出长度，按块边读边传
+        InputStream is = new FileInputStream(f);
+        PutObjectResult ret = qiniuOSSClient.putObject(bkt, f.getName(), is, null);
+        is.close();
+        Assert.assertEquals(" 文件 hash 要求一致 ", Etag.file(f), ret.getETag());
+
+        // 给出长度且较小，表单上传
+        File small = createSampleFile("put_stream_small__", 1024 * 100);
+        ObjectMetadata meta = new ObjectMetadata();
+        meta.setContentLength(small.length());
+        is = new FileInputStream(small);
+        ret = qiniuOSSClient.putObject(bkt, small.getName(), is, meta);
+        is.close();
+        Assert.assertEquals(" 文件 hash 要求一致 ", Etag.file(small), ret.getETag());
+    }
+
+    @Test
+    public void testDeleteObjectsBatches() throws IOException {
+        String bkt = createBuckets(1).get(0);
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 25; i++) {
+            String key = "del_batch__" + i;
+            qiniuOSSClient.putObject(bkt, key, new ByteArrayInputStream(("" + i).getBytes()));
+            keys.add(key);
+        }
+        // 一个不存在的 key 也算删除成功
+        keys.add("del_batch__not_exist");
+
+        // 每批 10 个，分 3 批并发删除
+        qiniuOSSClient.setBatchSize(10);
+        QiniuDeleteObjectsResult ret;
+        try {
+            ret = qiniuOSSClient.deleteObjects(bkt, keys, false);
+        } finally {
+            qiniuOSSClient.setBatchSize(QiniuBatchRunner.MAX_BATCH_SIZE);
+        }
+        Assert.assertEquals(keys, ret.getDeletedObjects());
+        Assert.assertTrue(ret.getFailedObjects().isEmpty());
+
+        DeleteObjectsRequest req = new DeleteObjectsRequest(bkt);
+        req.setKeys(keys.subList(0, 5));
+        req.setQuiet(true);
+        ret = (QiniuDeleteObjectsResult) qiniuOSSClient.deleteObjects(req);
+        Assert.assertTrue(" quiet 模式不返回删除成功的 key ", ret.getDeletedObjects().isEmpty());
+    }
+
+    @Test
+    public void testBatchStat() throws IOException {
+        String bkt = createBuckets(1).get(0);
+        List<String> keys = new ArrayList<String>();
+        for (int i = 0; i < 12; i++) {
+            String key = "stat_batch__" + i;
+            qiniuOSSClient.putObject(bkt, key, new ByteArrayInputStream(("" + i).getBytes()));
+            keys.add(key);
+        }
+        keys.add("stat_batch__not_exist");
+
+        qiniuOSSClient.setBatchSize(5);
+        Map<String, FileInfo> infos;
+        try {
+            infos = qiniuOSSClient.batchStat(bkt, keys);
+        } finally {
+            qiniuOSSClient.setBatchSize(QiniuBatchRunner.MAX_BATCH_SIZE);
+        }
+        Assert.assertEquals(keys, new ArrayList<String>(infos.keySet()));
+        Assert.assertEquals(2, infos.get("stat_batch__10").fsize);
+        Assert.assertNotNull(infos.get("stat_batch__0").hash);
+        Assert.assertNull(infos.get("stat_batch__not_exist"));
+
+        Assert.assertTrue(qiniuOSSClient.doesObjectExist(bkt, "stat_batch__0"));
+        Assert.assertFalse(qiniuOSSClient.doesObjectExist(new GenericRequest(bkt, "stat_batch__not_exist")));
+        Assert.assertEquals(1, qiniuOSSClient.getSimplifiedObjectMeta(bkt, "stat_batch__1").getSize());
+    }
+
+    @Test
+    public void testGetObjectRange() throws IOException {
+        String bkt = createBuckets(1).get(0);
+        File f = createSampleFile("get_range__", 1024 * 1024);
+        qiniuOSSClient.putObject(bkt, f.getName(), f);
+
+        GetObjectRequest req = new GetObjectRequest(bkt, f.getName());
+        req.setRange(100, 199);
+        OSSObject obj = qiniuOSSClient.getObject(req);
+        try {
+            Assert.assertEquals(100, obj.getObjectMetadata().getContentLength());
+            Assert.assertNotNull(obj.getObjectMetadata().getETag());
+            Assert.assertNotNull(obj.getObjectMetadata().getLastModified());
+            byte[] b = new byte[100];
+            DataInputStream is = new DataInputStream(obj.getObjectContent());
+            is.readFully(b);
+            RandomAccessFile raf = new RandomAccessFile(f, "r");
+            byte[] expected = new byte[100];
+            raf.seek(100);
+            raf.readFully(expected);
+            raf.close();
+            org.junit.Assert.assertArrayEquals(" 分段内容要求一致 ", expected, b);
+        } finally {
+            obj.close();
+        }
+    }
+
+    @Test
+    public void testDownloadFile() throws Throwable {
+        String bkt = createBuckets(1).get(0);
+        File f = createSampleFile("download_file__", 1024 * 1024 * 9);
+        qiniuOSSClient.putObject(bkt, f.getName(), f);
+
+        File tmp = File.createTempFile("_tmp_download", ".txt");
+        tmp.deleteOnExit();
+        // 9M 按 2M 分 5 段， 3 个线程并发下载
+        DownloadFileRequest req = new DownloadFileRequest(bkt, f.getName(), tmp.getAbsolutePath(),
+                1024 * 1024 * 2, 3, true);
+        DownloadFileResult ret = qiniuOSSClient.downloadFile(req);
+        Assert.assertEquals(f.length(), ret.getObjectMetadata().getContentLength());
+        Assert.assertEquals(" 文件内容要求完全一样 ", Etag.file(f), Etag.file(tmp));
+        Assert.assertFalse(" 下载完成后删除断点记录 ", new File(tmp.getAbsolutePath() + ".dcp").exists());
+    }
+
+
     private List<File> createFiles(int size) throws IOException {
         List<File> files = new ArrayList<>(size);
 //        IntStream.range(0, size).forEachOrdered(n->{
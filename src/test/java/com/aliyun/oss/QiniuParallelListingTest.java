@@ -0,0 +1,167 @@
+package com.aliyun.oss;
+
+import com.aliyun.oss.model.OSSObjectSummary;
+import com.aliyun.oss.model.ObjectListing;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TreeSet;
+
+
+public class QiniuParallelListingTest {
+
+    /** 内存中的空间，每页 pageSize 条（ key 或 commonPrefix ）， marker 为下一页的起始下标 */
+    static class FakeBucket implements QiniuParallelListing.ShardLoader {
+        final TreeSet<String> keys = new TreeSet<String>();
+        final int pageSize;
+
+        FakeBucket(int pageSize) {
+            this.pageSize = pageSize;
+        }
+
+        @Override
+        public ObjectListing load(String prefix, String delimiter, String marker) {
+            // 按顺序排列的 key 和 commonPrefix ， commonPrefix 以 delimiter 结尾
+            List<String> matched = new ArrayList<String>();
+            for (String k : keys) {
+                if (!k.startsWith(prefix)) {
+                    continue;
+                }
+                int i = delimiter == null ? -1 : k.indexOf(delimiter, prefix.length());
+                String entry = i < 0 ? k : k.substring(0, i + delimiter.length());
+                if (matched.isEmpty() || !matched.get(matched.size() - 1).equals(entry)) {
+                    matched.add(entry);
+                }
+            }
+            int from = marker == null ? 0 : Integer.parseInt(marker);
+            int to = Math.min(matched.size(), from + pageSize);
+            ObjectListing ret = new ObjectListing();
+            for (String e : matched.subList(from, to)) {
+                if (keys.contains(e)) {
+                    ret.addObjectSummary(summary(e));
+                } else {
+                    ret.addCommonPrefix(e);
+                }
+            }
+            ret.setTruncated(to < matched.size());
+            ret.setNextMarker(to < matched.size() ? String.valueOf(to) : null);
+            return ret;
+        }
+    }
+
+    static OSSObjectSummary summary(String key) {
+        OSSObjectSummary s = new OSSObjectSummary();
+        s.setKey(key);
+        return s;
+    }
+
+    private static FakeBucket bucket() {
+        FakeBucket b = new FakeBucket(7);
+        for (String dir : Arrays.asList("a/", "b/", "c/", "d/")) {
+            for (int i = 0; i < 30; i++) {
+                b.keys.add(dir + String.format("%03d", i));
+            }
+        }
+        return b;
+    }
+
+    private static List<String> keys(Iterable<OSSObjectSummary> listing) {
+        List<String> keys = new ArrayList<String>();
+        for (OSSObjectSummary s : listing) {
+            keys.add(s.getKey());
+        }
+        return keys;
+    }
+
+    @Test
+    public void testSortedGivenPrefixes() {
+        FakeBucket b = bucket();
+        List<String> keys = keys(new QiniuParallelListing(b, Arrays.asList("c/", "a/", "d/", "b/"), true, 3));
+        Assert.assertEquals(new ArrayList<String>(b.keys), keys);
+    }
+
+    @Test
+    public void testSortedInterleavesLooseKeys() {
+        FakeBucket b = bucket();
+        // "a" < "a/..." ， "a0" > "a/..." ；零散的 key 跨多页，与目录交错
+        b.keys.addAll(Arrays.asList("a", "a0", "z"));
+        for (int i = 0; i < 20; i++) {
+            b.keys.add("b" + i);
+        }
+        for (int taskNum : new int[]{1, 3}) {
+            List<String> keys = keys(new QiniuParallelListing(b, "", "/", true, taskNum));
+            Assert.assertEquals(new ArrayList<String>(b.keys), keys);
+        }
+    }
+
+    @Test
+    public void testDrainedShardsAreReleased() {
+        FakeBucket b = new FakeBucket(7);
+        for (int i = 0; i < 300; i++) {
+            b.keys.add(String.format("d%03d/k", i));
+        }
+        QiniuParallelListing it = new QiniuParallelListing(b, "", "/", true, 2);
+        for (int i = 0; i < 250; i++) {
+            Assert.assertEquals(String.format("d%03d/k", i), it.next().getKey());
+        }
+        // 根分片最多预读几页，输出完的子分片不再留在内存里
+        Assert.assertTrue(String.valueOf(it.liveQueueCount()), it.liveQueueCount() < 40);
+        Assert.assertEquals(50, keys(it).size());
+    }
+
+    @Test
+    public void testUnorderedReturnsEverything() {
+        FakeBucket b = bucket();
+        b.keys.add("x");
+        List<String> keys = keys(new QiniuParallelListing(b, "", "/", false, 4));
+        Assert.assertEquals(121, keys.size());
+        Assert.assertEquals(b.keys, new TreeSet<String>(keys));
+        keys = keys(new QiniuParallelListing(b, Arrays.asList("a/", "b/", "c/", "d/"), false, 4));
+        Assert.assertEquals(120, keys.size());
+    }
+
+    @Test
+    public void testRootPrefix() {
+        FakeBucket b = bucket();
+        b.keys.addAll(Arrays.asList("a/x/1", "a/x/2", "a/y/1"));
+        List<String> expected = new ArrayList<String>(b.keys.subSet("a/", "a0"));
+        Assert.assertEquals(expected, keys(new QiniuParallelListing(b, "a/", "/", true, 2)));
+    }
+
+    @Test
+    public void testOverlappingPrefixesRejected() {
+        try {
+            new QiniuParallelListing(bucket(), Arrays.asList("a/", "a/0"), true, 2);
+            Assert.fail(" 前缀互相包含时会重复列举 ");
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testErrorIsRethrown() {
+        QiniuParallelListing.ShardLoader failing = new QiniuParallelListing.ShardLoader() {
+            @Override
+            public ObjectListing load(String prefix, String delimiter, String marker) {
+                throw new OSSException("list failed: " + prefix);
+            }
+        };
+        QiniuParallelListing it = new QiniuParallelListing(failing, Arrays.asList("a/", "b/"), true, 2);
+        try {
+            it.hasNext();
+            Assert.fail();
+        } catch (OSSException e) {
+            Assert.assertEquals("list failed: a/", e.getErrorMessage());
+        }
+        it = new QiniuParallelListing(failing, "x/", "/", false, 2);
+        try {
+            it.hasNext();
+            Assert.fail();
+        } catch (OSSException e) {
+            Assert.assertEquals("list failed: x/", e.getErrorMessage());
+        }
+    }
+}
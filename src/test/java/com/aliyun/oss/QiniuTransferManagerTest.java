@@ -0,0 +1,115 @@
+package com.aliyun.oss;
+
+import com.aliyun.oss.model.PutObjectResult;
+import com.qiniu.util.Etag;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+
+public class QiniuTransferManagerTest {
+    private QiniuKodoStandIn kodo;
+    private QiniuOSSClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        kodo = new QiniuKodoStandIn();
+        kodo.createBucket("bkt", true);
+        kodo.putObject("bkt", "a.txt", "hello".getBytes("UTF-8"), "text/plain");
+        kodo.putObject("bkt", "b.txt", "hello".getBytes("UTF-8"), "text/plain");
+        // 每个请求多停 20ms ，并发的上传才会重叠
+        kodo.setLatency(20);
+        client = kodo.newClient("bkt");
+    }
+
+    @After
+    public void tearDown() {
+        kodo.close();
+    }
+
+    @Test
+    public void testUploadsCappedPerHost() throws Exception {
+        QiniuTransferManager tm = new QiniuTransferManager(client, 3, 16);
+        try {
+            List<Future<QiniuTransferManager.Result>> fs = new ArrayList<Future<QiniuTransferManager.Result>>();
+            for (int i = 0; i < 30; i++) {
+                fs.add(tm.submitUpload("bkt", "k" + i, ("content" + i).getBytes("UTF-8")));
+            }
+            List<QiniuTransferManager.Result> results = tm.awaitAll(fs);
+            Assert.assertEquals(30, results.size());
+            for (int i = 0; i < 30; i++) {
+                QiniuTransferManager.Result r = results.get(i);
+                Assert.assertTrue(String.valueOf(r.getError()), r.isSuccess());
+                Assert.assertEquals("k" + i, r.getKey());
+                Assert.assertEquals(QiniuTransferManager.Operation.UPLOAD, r.getOperation());
+                Assert.assertEquals(Etag.data(("content" + i).getBytes("UTF-8")),
+                        ((PutObjectResult) r.getValue()).getETag());
+            }
+            int peak = kodo.getPeakInFlight();
+            Assert.assertTrue(" 并发 " + peak, peak <= 3 && peak > 1);
+        } finally {
+            tm.close();
+        }
+    }
+
+    @Test
+    public void testUploadsSpreadBySelector() throws Exception {
+        // 两个上传域名指向同一个替身，替身上的并发就是上传的总并发
+        String port = kodo.getHost().substring(kodo.getHost().lastIndexOf(':'));
+        client.setUpHostSelector(new QiniuUpHostSelector(
+                Arrays.asList("http://127.0.0.1" + port + "/up", "http://localhost" + port + "/up"), 0.5, 0.5));
+        QiniuTransferManager tm = new QiniuTransferManager(client, 2, 16);
+        try {
+            List<Future<QiniuTransferManager.Result>> fs = new ArrayList<Future<QiniuTransferManager.Result>>();
+            for (int i = 0; i < 30; i++) {
+                fs.add(tm.submitUpload("bkt", "k" + i, ("content" + i).getBytes("UTF-8")));
+            }
+            for (QiniuTransferManager.Result r : tm.awaitAll(fs)) {
+                Assert.assertTrue(String.valueOf(r.getError()), r.isSuccess());
+            }
+            int peak = kodo.getPeakInFlight();
+            Assert.assertTrue(" 并发 " + peak, peak <= 4 && peak > 2);
+        } finally {
+            tm.close();
+        }
+    }
+
+    @Test
+    public void testMixedResults() throws Exception {
+        QiniuTransferManager tm = new QiniuTransferManager(client, 4, 4);
+        File dir = File.createTempFile("qiniu-tm", "");
+        dir.delete();
+        dir.mkdirs();
+        try {
+            List<Future<QiniuTransferManager.Result>> fs = new ArrayList<Future<QiniuTransferManager.Result>>();
+            fs.add(tm.submitDownload("bkt", "a.txt", new File(dir, "a.txt")));
+            fs.add(tm.submitDownload("bkt", "missing", new File(dir, "missing")));
+            fs.add(tm.submitDelete("bkt", "b.txt"));
+            List<QiniuTransferManager.Result> results = tm.awaitAll(fs);
+
+            Assert.assertTrue(results.get(0).isSuccess());
+            Assert.assertEquals(5, new File(dir, "a.txt").length());
+            Assert.assertFalse(results.get(1).isSuccess());
+            Assert.assertTrue(results.get(1).getError() instanceof OSSException);
+            Assert.assertTrue(results.get(2).isSuccess());
+            Assert.assertNull(kodo.getObject("bkt", "b.txt"));
+            Assert.assertEquals(QiniuTransferManager.Operation.DELETE, results.get(2).getOperation());
+        } finally {
+            tm.close();
+            Assert.assertTrue(tm.awaitTermination(5, TimeUnit.SECONDS));
+            for (File f : dir.listFiles()) {
+                f.delete();
+            }
+            dir.delete();
+        }
+    }
+}
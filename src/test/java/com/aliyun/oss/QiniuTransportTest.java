@@ -0,0 +1,282 @@
+package com.aliyun.oss;
+
+import com.aliyun.oss.model.OSSObject;
+import com.qiniu.storage.Configuration;
+import com.qiniu.util.Auth;
+import com.qiniu.util.Etag;
+import com.qiniu.util.UrlSafeBase64;
+import junit.framework.Assert;
+import okhttp3.Call;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.RequestBody;
+import okhttp3.Response;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+
+public class QiniuTransportTest {
+    private QiniuKodoStandIn kodo;
+    private String host;
+    private QiniuTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        kodo = new QiniuKodoStandIn();
+        kodo.createBucket("bkt", false);
+        for (String key : new String[]{"a.txt", "b.txt", "c.txt"}) {
+            kodo.putObject("bkt", key, "hello".getBytes("UTF-8"), "text/plain");
+        }
+        host = kodo.getDownloadHost("bkt");
+        transport = new QiniuTransport(kodo.newConfig());
+    }
+
+    @After
+    public void tearDown() {
+        transport.shutdown();
+        kodo.close();
+    }
+
+    private int headCount() {
+        return kodo.getRequestCount(QiniuKodoStandIn.Endpoint.HEAD);
+    }
+
+    /**
+     * 不经过 transport 直接 stat ，得到响应体
+     */
+    private String statBody(String key) throws IOException {
+        String url = kodo.getHost() + "/stat/" + UrlSafeBase64.encodeToString("bkt:" + key);
+        Request req = new Request.Builder().url(url)
+                .header("Authorization", "QBox " + Auth.create("ak", "sk").signRequest(url, null, null)).build();
+        Response res = new OkHttpClient().newCall(req).execute();
+        try {
+            return res.body().string();
+        } finally {
+            res.close();
+        }
+    }
+
+    @Test
+    public void testOnePoolForAllPaths() throws IOException {
+        Assert.assertTrue(transport.isShared());
+        QiniuOSSClient a = new QiniuOSSClient("ak", "sk", host, transport);
+        QiniuOSSClient b = new QiniuOSSClient("ak", "sk", host, transport);
+        QiniuOssUtil util = new QiniuOssUtil("ak", "sk", host, transport);
+        Assert.assertSame(transport, a.getTransport());
+        Assert.assertSame(transport, util.getTransport());
+
+        // 直接请求、 BucketManager 、 UploadManager 交替使用同一个连接
+        OSSObject obj = a.getObject("bkt", "a.txt");
+        obj.getObjectContent().read(new byte[16]);
+        obj.close();
+        Assert.assertEquals(5, b.getObjectMetadata("bkt", "a.txt").getContentLength());
+        Assert.assertEquals(Etag.data("content".getBytes("UTF-8")),
+                a.putObject("bkt", "k", "content".getBytes("UTF-8")).getETag());
+        Assert.assertEquals(5, b.getObjectMetadata("bkt", "b.txt").getContentLength());
+
+        QiniuTransport.Stats stats = transport.getStats();
+        Assert.assertEquals(stats.toString(), 4, stats.getCallCount());
+        Assert.assertEquals(stats.toString(), 1, stats.getConnectCount());
+        Assert.assertEquals(0, stats.getTlsHandshakeCount());
+        Assert.assertEquals(1, stats.getConnectionCount());
+        Assert.assertEquals(0.75, stats.getConnectionReuseRate(), 0.001);
+    }
+
+    @Test
+    public void testWarmUp() throws Exception {
+        QiniuOSSClient client = new QiniuOSSClient("ak", "sk", host, transport);
+        // 所有域名都指向同一个 host:port ，去重后只有一个
+        Assert.assertEquals(1, QiniuTransport.hostUrls(transport.getConfig(), Auth.create("ak", "sk"), "bkt",
+                host).size());
+        // 让同一批预热请求同时在途
+        kodo.setLatency(50);
+        Assert.assertEquals(3, client.warmUp("bkt", 3, 0));
+        Assert.assertEquals(3, headCount());
+        // 同时发出，各建一个连接。 JDK 自带的 HttpServer 响应 HEAD 后会关闭连接，这里不检查之后的复用
+        QiniuTransport.Stats stats = transport.getStats();
+        Assert.assertEquals(stats.toString(), 3, stats.getConnectCount());
+        Assert.assertEquals(3, stats.getCallCount());
+    }
+
+    @Test
+    public void testKeepWarm() throws Exception {
+        transport.keepWarm(Arrays.asList(kodo.getHost() + "/"), 2, 1);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (headCount() < 4 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assert.assertTrue(" 探测了两轮 " + headCount(), headCount() >= 4);
+        transport.stopKeepWarm();
+        Thread.sleep(200);
+        int n = headCount();
+        Thread.sleep(1500);
+        Assert.assertEquals(n, headCount());
+    }
+
+    @Test
+    public void testShutdownStopsProbes() throws Exception {
+        // 自己创建的 transport 随 client 关闭
+        QiniuOSSClient own = kodo.newClient("bkt");
+        own.warmUp("bkt", 1, 1);
+        own.shutdown();
+        Assert.assertTrue(own.getTransport().getHttpClient().dispatcher().executorService().isShutdown());
+
+        // 共享的 transport 不关闭，只停掉这个 client 开启的探测
+        QiniuOSSClient shared = new QiniuOSSClient("ak", "sk", host, transport);
+        shared.warmUp("bkt", 1, 1);
+        shared.shutdown();
+        int n = headCount();
+        Thread.sleep(1500);
+        Assert.assertEquals(n, headCount());
+        Assert.assertFalse(transport.getHttpClient().dispatcher().executorService().isShutdown());
+        Assert.assertEquals(5, new QiniuOSSClient("ak", "sk", host, transport).getObjectMetadata("bkt", "a.txt")
+                .getContentLength());
+    }
+
+    @Test
+    public void testSeparateClientsWithoutTransport() {
+        Configuration config = transport.getConfig();
+        QiniuOSSClient a = new QiniuOSSClient("ak", "sk", host, config);
+        QiniuOSSClient b = new QiniuOSSClient("ak", "sk", host, config);
+        Assert.assertNotSame(a.getTransport(), b.getTransport());
+        Assert.assertSame(a.getTransport(), a.getTransport());
+    }
+
+    @Test
+    public void testPluggableEngines() throws Exception {
+        final List<String> downloads = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> managements = Collections.synchronizedList(new ArrayList<String>());
+        final OkHttpClient h1 = transport.newHttp1Client();
+        final OkHttpClient h2 = transport.newHttp2Client(128);
+        Assert.assertEquals(Arrays.asList(Protocol.HTTP_1_1), h1.protocols());
+        Assert.assertEquals(Protocol.HTTP_2, h2.protocols().get(0));
+        Assert.assertEquals(128, h2.dispatcher().getMaxRequestsPerHost());
+        Assert.assertSame(transport.getHttpClient().connectionPool(), h2.connectionPool());
+        Assert.assertSame(transport.getHttpClient(), transport.getDownloadEngine());
+
+        transport.setDownloadEngine(new Call.Factory() {
+            @Override
+            public Call newCall(Request request) {
+                downloads.add(request.url().encodedPath());
+                return h2.newCall(request);
+            }
+        });
+        transport.setManagementEngine(new Call.Factory() {
+            @Override
+            public Call newCall(Request request) {
+                managements.add(request.url().encodedPath());
+                return h1.newCall(request);
+            }
+        });
+        QiniuOSSClient client = new QiniuOSSClient("ak", "sk", host, transport);
+        OSSObject obj = client.getObject("bkt", "a.txt");
+        obj.close();
+        QiniuOSSAsyncClient async = new QiniuOSSAsyncClient(client);
+        obj = async.getObject("bkt", "b.txt").get(5, TimeUnit.SECONDS);
+        obj.close();
+        Assert.assertEquals(5, async.getObjectMetadata("bkt", "a.txt").get(5, TimeUnit.SECONDS).getContentLength());
+        // BucketManager 不经过管理引擎
+        client.getObjectMetadata("bkt", "c.txt");
+
+        Assert.assertEquals(Arrays.asList("/io/bkt/a.txt", "/io/bkt/b.txt"), downloads);
+        Assert.assertEquals(1, managements.size());
+        Assert.assertTrue(managements.get(0).startsWith("/stat/"));
+        // 派生的客户端仍计入统计
+        Assert.assertEquals(4, transport.getStats().getCallCount());
+
+        transport.setDownloadEngine(null);
+        Assert.assertSame(transport.getHttpClient(), transport.getDownloadEngine());
+        h2.dispatcher().executorService().shutdown();
+    }
+
+    @Test
+    public void testMetrics() throws Exception {
+        final List<String> events = Collections.synchronizedList(new ArrayList<String>());
+        QiniuMetrics metrics = transport.getMetrics();
+        metrics.addListener(new QiniuMetrics.Listener() {
+            @Override
+            public void onRequest(QiniuMetrics.Operation op, String host, int statusCode, long micros,
+                                  long bytesSent, long bytesReceived) {
+                events.add(op + " " + statusCode + " " + bytesReceived);
+            }
+        });
+        int statLength = statBody("a.txt").length();
+        int putLength = ("{\"hash\":\"" + Etag.data("content".getBytes("UTF-8")) + "\",\"key\":\"k\"}").length();
+        QiniuOSSClient client = new QiniuOSSClient("ak", "sk", host, transport);
+        OSSObject obj = client.getObject("bkt", "a.txt");
+        obj.getObjectContent().read(new byte[16]);
+        obj.close();
+        client.getObjectMetadata("bkt", "a.txt");
+        client.putObject("bkt", "k", "content".getBytes("UTF-8"));
+        client.deleteObject("bkt", "k");
+        // HEAD 返回 404
+        transport.warmUp(Arrays.asList(kodo.getHost() + "/"), 1, 5000);
+        try {
+            // 没有监听的端口
+            new QiniuOSSClient("ak", "sk", "http://127.0.0.1:1/io", transport).getObject("bkt", "x");
+            Assert.fail();
+        } catch (OSSException e) {
+            // 预期
+        }
+
+        Assert.assertEquals(Arrays.asList("GET 200 5", "STAT 200 " + statLength, "PUT 200 " + putLength,
+                "DELETE 200 2", "OTHER 404 0", "GET -1 0"), events);
+        Assert.assertEquals(2, metrics.getLatency(QiniuMetrics.Operation.GET).getCount());
+        Assert.assertEquals(1, metrics.getLatency(QiniuMetrics.Operation.PUT).getCount());
+        Assert.assertEquals(0, metrics.getLatency(QiniuMetrics.Operation.LIST).getCount());
+        Assert.assertEquals(0, metrics.getInFlight(QiniuMetrics.Operation.GET));
+        Map<Integer, Long> errors = metrics.getErrorCounts();
+        Assert.assertEquals(Long.valueOf(1), errors.get(404));
+        Assert.assertEquals(Long.valueOf(1), errors.get(-1));
+        Assert.assertEquals(2, errors.size());
+        Map<String, QiniuLatencyHistogram.Snapshot> hosts = metrics.getHostLatencies();
+        Assert.assertEquals(5, hosts.get(kodo.getHost().substring("http://".length())).getCount());
+        Assert.assertEquals(1, hosts.get("127.0.0.1:1").getCount());
+        Assert.assertEquals(5 + statLength + putLength + 2, metrics.getBytesReceived());
+        Assert.assertTrue(metrics.getBytesSent() > "content".length());
+
+        metrics.reset();
+        Assert.assertEquals(0, metrics.getLatency(QiniuMetrics.Operation.GET).getCount());
+        Assert.assertTrue(metrics.getErrorCounts().isEmpty());
+    }
+
+    private static QiniuMetrics.Operation op(String method, String url) {
+        RequestBody body = "GET".equals(method) || "HEAD".equals(method) ? null : RequestBody.create(null, new byte[0]);
+        return QiniuMetrics.operationOf(new Request.Builder().url(url).method(method, body).build());
+    }
+
+    @Test
+    public void testOperationOf() {
+        String entry = UrlSafeBase64.encodeToString("bkt:a/b.png");
+        Assert.assertEquals(QiniuMetrics.Operation.LIST, op("POST", "http://rsf/list?bucket=bkt&limit=10"));
+        Assert.assertEquals(QiniuMetrics.Operation.LIST, op("GET", "http://rsf/v2/list?bucket=bkt"));
+        Assert.assertEquals(QiniuMetrics.Operation.BATCH, op("POST", "http://rs/batch"));
+        Assert.assertEquals(QiniuMetrics.Operation.STAT, op("GET", "http://rs/stat/" + entry));
+        Assert.assertEquals(QiniuMetrics.Operation.DELETE, op("POST", "http://rs/delete/" + entry));
+        Assert.assertEquals(QiniuMetrics.Operation.PUT, op("POST", "http://up/"));
+        Assert.assertEquals(QiniuMetrics.Operation.PUT, op("POST", "http://up/mkblk/4194304"));
+        Assert.assertEquals(QiniuMetrics.Operation.PUT, op("POST", "http://up/mkfile/10/key/" + entry));
+        Assert.assertEquals(QiniuMetrics.Operation.OTHER, op("POST", "http://rs/move/" + entry + "/" + entry));
+        Assert.assertEquals(QiniuMetrics.Operation.OTHER, op("HEAD", "http://io/a.jpg"));
+
+        // 文件名与接口路径相似的下载
+        Assert.assertEquals(QiniuMetrics.Operation.GET, op("GET", "http://io/listings/a.jpg"));
+        Assert.assertEquals(QiniuMetrics.Operation.GET, op("GET", "http://io/list"));
+        Assert.assertEquals(QiniuMetrics.Operation.GET, op("GET", "http://io/stat/x.png"));
+        Assert.assertEquals(QiniuMetrics.Operation.GET, op("GET", "http://io/stat/" + entry + "/x"));
+        Assert.assertEquals(QiniuMetrics.Operation.GET, op("GET", "http://io/batch-2024.csv"));
+        Assert.assertEquals(QiniuMetrics.Operation.GET, op("GET", "http://io/batch"));
+        Assert.assertEquals(QiniuMetrics.Operation.GET, op("GET", "http://io/delete/" + entry));
+        Assert.assertEquals(QiniuMetrics.Operation.GET, op("GET", "http://io/mkblk/1"));
+    }
+}
@@ -0,0 +1,177 @@
+package com.aliyun.oss;
+
+import com.qiniu.common.QiniuException;
+import junit.framework.Assert;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+
+public class QiniuUpHostSelectorTest {
+    private QiniuKodoStandIn slow;
+    private QiniuKodoStandIn fast;
+    private String slowUp;
+    private String fastUp;
+    private QiniuOSSClient client;
+
+    @Before
+    public void setUp() throws IOException {
+        slow = new QiniuKodoStandIn();
+        fast = new QiniuKodoStandIn();
+        slow.createBucket("bkt", false);
+        fast.createBucket("bkt", false);
+        slow.setLatency(100);
+        slowUp = slow.getHost() + "/up";
+        fastUp = fast.getHost() + "/up";
+        client = slow.newClient("bkt");
+    }
+
+    @After
+    public void tearDown() {
+        slow.close();
+        fast.close();
+    }
+
+    @Test
+    public void testPrefersFasterHost() throws IOException {
+        QiniuUpHostSelector selector = new QiniuUpHostSelector(Arrays.asList(slowUp, fastUp), 0.5, 0);
+        client.setUpHostSelector(selector);
+        for (int i = 0; i < 10; i++) {
+            client.putObject("bkt", "k" + i, ("v" + i).getBytes("UTF-8"));
+        }
+        // 没有样本的域名先各试一次，之后都发往快的
+        Assert.assertEquals(1, slow.getRequestCount(QiniuKodoStandIn.Endpoint.FORM_UPLOAD));
+        Assert.assertEquals(9, fast.getRequestCount(QiniuKodoStandIn.Endpoint.FORM_UPLOAD));
+        Assert.assertTrue(selector.toString(), selector.getLatencyMillis(slowUp) >= 100);
+        Assert.assertTrue(selector.toString(), selector.getLatencyMillis(fastUp) < 100);
+        Assert.assertEquals(fastUp, selector.select());
+    }
+
+    @Test
+    public void testRetryOnOtherHost() throws IOException {
+        QiniuUpHostSelector selector = new QiniuUpHostSelector(Arrays.asList(fastUp, slowUp), 0.5, 0);
+        client.setUpHostSelector(selector);
+        fast.failNext(QiniuKodoStandIn.Endpoint.FORM_UPLOAD, 503, 1);
+        client.putObject("bkt", "a", "a".getBytes("UTF-8"));
+        Assert.assertNotNull(slow.getObject("bkt", "a"));
+        Assert.assertEquals(1.0, selector.getErrorRate(fastUp));
+        Assert.assertEquals(0.0, selector.getErrorRate(slowUp));
+
+        // 刚出错的域名得分变差，下一个上传发往另一个；凭证错误的 401 不算域名出错
+        Assert.assertEquals(slowUp, selector.select());
+        try {
+            new QiniuBlockUploader(client.getClient(), client.getConfig(), "bad", 0, selector)
+                    .formUpload(new byte[1], 1, "b", null);
+            Assert.fail();
+        } catch (QiniuException e) {
+            Assert.assertEquals(401, e.code());
+        }
+        Assert.assertEquals(2, selector.getSampleCount(slowUp));
+        Assert.assertEquals(0.0, selector.getErrorRate(slowUp));
+    }
+
+    @Test
+    public void testProbeThenBlockUpload() throws IOException {
+        QiniuUpHostSelector selector = new QiniuUpHostSelector(Arrays.asList(slowUp, fastUp), 0.5, 0);
+        Assert.assertEquals(2, selector.probe(client.getClient(), 5000));
+        Assert.assertEquals(1, selector.getSampleCount(slowUp));
+        Assert.assertEquals(fastUp, selector.select());
+
+        client.setUpHostSelector(selector);
+        byte[] content = new byte[4 * 1024 * 1024 + 10];
+        new Random(1).nextBytes(content);
+        client.putObject("bkt", "big", new ByteArrayInputStream(content));
+        Assert.assertTrue(Arrays.equals(content, fast.getObject("bkt", "big")));
+        Assert.assertEquals(0, slow.getRequestCount(QiniuKodoStandIn.Endpoint.MKBLK));
+        Assert.assertEquals(0, slow.getRequestCount(QiniuKodoStandIn.Endpoint.MKFILE));
+    }
+
+    @Test
+    public void testFileUploadKeepsCrc32() throws IOException {
+        fast.setRequireCrc32(true);
+        QiniuUpHostSelector selector = new QiniuUpHostSelector(Collections.singletonList(fastUp), 0.5, 0);
+        client.setUpHostSelector(selector);
+        File small = File.createTempFile("qiniu-crc", ".bin");
+        File big = File.createTempFile("qiniu-crc", ".bin");
+        try {
+            byte[] content = new byte[4 * 1024 * 1024 + 10];
+            new Random(2).nextBytes(content);
+            write(small, content, 1000);
+            write(big, content, content.length);
+            // 表单上传带 crc32 ，由服务端校验；分片上传校验每个 mkblk 、 bput 返回的 crc32
+            client.putObject("bkt", "small", small);
+            client.putObject("bkt", "big", big);
+            Assert.assertTrue(Arrays.equals(Arrays.copyOf(content, 1000), fast.getObject("bkt", "small")));
+            Assert.assertTrue(Arrays.equals(content, fast.getObject("bkt", "big")));
+            Assert.assertEquals(1, fast.getRequestCount(QiniuKodoStandIn.Endpoint.FORM_UPLOAD));
+            Assert.assertEquals(1, fast.getRequestCount(QiniuKodoStandIn.Endpoint.MKFILE));
+        } finally {
+            small.delete();
+            big.delete();
+        }
+    }
+
+    @Test
+    public void testOssUtilUploads() throws IOException {
+        // 配置里的上传域名是慢的那个，设置选择器后都发往选择器的域名
+        QiniuOssUtil util = slow.newUtil("bkt");
+        util.setUpHostSelector(new QiniuUpHostSelector(Collections.singletonList(fastUp), 0.5, 0));
+        File big = File.createTempFile("qiniu-util", ".bin");
+        try {
+            byte[] content = new byte[4 * 1024 * 1024 + 10];
+            new Random(3).nextBytes(content);
+            write(big, content, content.length);
+            util.uploadContent("bkt", "c", "content", "text/plain", null, null);
+            util.uploadFile("bkt", "big", big.getPath(), null, null, null, null);
+            Assert.assertEquals("content", new String(fast.getObject("bkt", "c"), "UTF-8"));
+            Assert.assertTrue(Arrays.equals(content, fast.getObject("bkt", "big")));
+            Assert.assertEquals(0, slow.getRequestCount(QiniuKodoStandIn.Endpoint.FORM_UPLOAD));
+            Assert.assertEquals(0, slow.getRequestCount(QiniuKodoStandIn.Endpoint.MKBLK));
+        } finally {
+            big.delete();
+        }
+    }
+
+    private static void write(File file, byte[] content, int len) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(content, 0, len);
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testRecordAndExplore() {
+        QiniuUpHostSelector selector = new QiniuUpHostSelector(
+                Arrays.asList("http://h:80/", "http://h:8080"), 0.5, 0.5);
+        Assert.assertEquals(Arrays.asList("http://h:80", "http://h:8080"), selector.getHosts());
+        selector.record("http://h:8080/mkblk/4", 10, true);
+        selector.record("http://h:80/mkfile/4", 100, true);
+        selector.record("http://other/bput/x/0", 1, false);
+        Assert.assertEquals(100.0, selector.getLatencyMillis("http://h:80"));
+        Assert.assertEquals(10.0, selector.getLatencyMillis("http://h:8080"));
+        selector.record("http://h:8080/mkblk/4", 30, true);
+        selector.record("http://h:8080/mkblk/4", 10, false);
+        Assert.assertEquals(15.0, selector.getLatencyMillis("http://h:8080"));
+        Assert.assertEquals(0.5, selector.getErrorRate("http://h:8080"));
+
+        // 得分 32 对 101 ，一半的概率随机选，随机选中慢的约占四分之一
+        int slower = 0;
+        for (int i = 0; i < 2000; i++) {
+            if (selector.select().equals("http://h:80")) {
+                slower++;
+            }
+        }
+        Assert.assertTrue(" " + slower, slower > 350 && slower < 650);
+        Assert.assertEquals("http://h:80", selector.selectExcluding("http://h:8080"));
+    }
+}
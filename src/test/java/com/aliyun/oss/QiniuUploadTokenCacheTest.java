@@ -0,0 +1,73 @@
+package com.aliyun.oss;
+
+import com.google.gson.Gson;
+import com.qiniu.util.Auth;
+import com.qiniu.util.StringMap;
+import com.qiniu.util.UrlSafeBase64;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+
+public class QiniuUploadTokenCacheTest {
+
+    private static Map<?, ?> policy(String token) {
+        String encoded = token.substring(token.lastIndexOf(':') + 1);
+        return new Gson().fromJson(new String(UrlSafeBase64.decode(encoded)), Map.class);
+    }
+
+    @Test
+    public void testReuse() {
+        Auth auth = Auth.create("ak", "sk");
+        QiniuUploadTokenCache cache = new QiniuUploadTokenCache(auth, 3600, 600, 10);
+        String t1 = cache.get("bkt", null);
+        String t2 = cache.get("bkt", null);
+        Assert.assertSame(t1, t2);
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+
+        long deadline = ((Number) policy(t1).get("deadline")).longValue();
+        Assert.assertEquals(auth.uploadTokenWithDeadline("bkt", null, deadline, null, true), t1);
+        Assert.assertEquals("bkt", policy(t1).get("scope"));
+
+        String k = cache.get("bkt", "a.txt");
+        Assert.assertEquals("bkt:a.txt", policy(k).get("scope"));
+        Assert.assertNotSame(t1, k);
+
+        StringMap p = new StringMap().put("mimeLimit", "image/*");
+        String withPolicy = cache.get("bkt", null, p);
+        Assert.assertEquals("image/*", policy(withPolicy).get("mimeLimit"));
+        Assert.assertSame(withPolicy, cache.get("bkt", null, new StringMap().put("mimeLimit", "image/*")));
+        Assert.assertEquals(3, cache.size());
+    }
+
+    @Test
+    public void testMarginAndEviction() {
+        // 剩余有效期永远小于 margin ，每次都重新生成
+        QiniuUploadTokenCache cache = new QiniuUploadTokenCache(Auth.create("ak", "sk"), 10, 9, 2);
+        cache.get("bkt", "a");
+        cache.get("bkt", "b");
+        cache.get("bkt", "c");
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(0, cache.getHitCount());
+
+        try {
+            new QiniuUploadTokenCache(Auth.create("ak", "sk"), 10, 10, 2);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // ok
+        }
+    }
+
+    @Test
+    public void testWithAuth() {
+        QiniuUploadTokenCache cache = new QiniuUploadTokenCache(Auth.create("ak", "sk"), 3600, 600, 10);
+        String t1 = cache.get("bkt", null);
+        QiniuUploadTokenCache other = cache.withAuth(Auth.create("ak2", "sk2"));
+        Assert.assertEquals(0, other.size());
+        String t2 = other.get("bkt", null);
+        Assert.assertTrue(t2.startsWith("ak2:"));
+        Assert.assertFalse(t1.equals(t2));
+    }
+}
@@ -0,0 +1,102 @@
+package com.aliyun.oss;
+
+import com.qiniu.util.Auth;
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
+
+
+public class QiniuUrlSignerTest {
+    private static final String URL = "https://cdn.example.com/a/b.jpg";
+
+    @Test
+    public void testSameAsAuth() {
+        QiniuUrlSigner signer = new QiniuUrlSigner("ak", "sk", 60, 100);
+        Auth auth = Auth.create("ak", "sk");
+        long deadline = 1500000000L;
+        Assert.assertEquals(auth.privateDownloadUrlWithDeadline(URL, deadline), signer.signWithDeadline(URL, deadline));
+        String withQuery = URL + "?imageView2/1/w/100";
+        Assert.assertEquals(auth.privateDownloadUrlWithDeadline(withQuery, deadline),
+                signer.signWithDeadline(withQuery, deadline));
+    }
+
+    @Test
+    public void testQuantize() {
+        QiniuUrlSigner signer = new QiniuUrlSigner("ak", "sk", 60, 100);
+        Assert.assertEquals(120, signer.quantize(61));
+        Assert.assertEquals(120, signer.quantize(120));
+        Assert.assertEquals(60, signer.quantize(1));
+    }
+
+    @Test
+    public void testCache() {
+        QiniuUrlSigner signer = new QiniuUrlSigner("ak", "sk", 60, 100);
+        String u1 = signer.sign(URL, 3600);
+        String u2 = signer.sign(URL, 3600);
+        Assert.assertSame(u1, u2);
+        Assert.assertEquals(1, signer.getHitCount());
+        Assert.assertEquals(1, signer.getMissCount());
+
+        long deadline = Long.parseLong(u1.substring(u1.indexOf("?e=") + 3, u1.indexOf("&token=")));
+        long now = System.currentTimeMillis() / 1000;
+        Assert.assertTrue(deadline % 60 == 0);
+        Assert.assertTrue(deadline - now >= 3600 && deadline - now < 3600 + 60 + 1);
+
+        // 缓存的剩余有效期不够
+        signer.sign(URL, 7200);
+        Assert.assertEquals(2, signer.getMissCount());
+
+        QiniuUrlSigner noCache = new QiniuUrlSigner("ak", "sk", 60, 0);
+        noCache.sign(URL, 3600);
+        noCache.sign(URL, 3600);
+        Assert.assertEquals(0, noCache.getHitCount());
+    }
+
+    @Test
+    public void testBulk() {
+        QiniuUrlSigner signer = new QiniuUrlSigner("ak", "sk", 60, 100);
+        List<String> urls = new ArrayList<String>();
+        for (int i = 9; i >= 0; i--) {
+            urls.add(URL + i);
+        }
+        Map<String, String> signed = signer.sign(urls, 600);
+        Assert.assertEquals(urls, new ArrayList<String>(signed.keySet()));
+        for (String u : urls) {
+            Assert.assertTrue(signed.get(u).startsWith(u + "?e="));
+            Assert.assertEquals(signed.get(u), signer.sign(u, 600));
+        }
+        Assert.assertEquals(10, signer.getHitCount());
+    }
+
+    @Test
+    public void testThreads() throws InterruptedException {
+        final QiniuUrlSigner signer = new QiniuUrlSigner("ak", "sk", 60, 0);
+        final long deadline = 1500000000L;
+        final String expected = Auth.create("ak", "sk").privateDownloadUrlWithDeadline(URL, deadline);
+        final AtomicReference<String> wrong = new AtomicReference<String>();
+        Thread[] threads = new Thread[8];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 1000; i++) {
+                        String u = signer.signWithDeadline(URL, deadline);
+                        if (!expected.equals(u)) {
+                            wrong.set(u);
+                        }
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread t : Arrays.asList(threads)) {
+            t.join();
+        }
+        Assert.assertNull(wrong.get());
+    }
+}